@@ -2,19 +2,20 @@ package rish.crearo.sensorfusion;
 
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
-import rish.crearo.sensorfusionlib.SensorFusion;
-import rish.crearo.sensorfusionlib.listeners.VerboseFusionListener;
+import rish.crearo.sensorfusionlib.FrameSyncedDispatcher;
+import rish.crearo.sensorfusionlib.SensorHub;
+import rish.crearo.sensorfusionlib.listeners.FusionListener;
 
 import static java.lang.Math.toDegrees;
 
-public class FusedSensorActivity extends AppCompatActivity implements VerboseFusionListener {
+public class FusedSensorActivity extends AppCompatActivity implements FusionListener {
 
     private static final String TAG = FusedSensorActivity.class.getSimpleName();
-    private SensorFusion mSensorFusion;
+    private SensorHub mSensorHub;
+    private FrameSyncedDispatcher mDispatcher;
     private TextView textView;
 
     @Override
@@ -22,14 +23,16 @@ public class FusedSensorActivity extends AppCompatActivity implements VerboseFus
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mSensorFusion = new SensorFusion(this, this);
+        // Fused by the process wide hub on its sensor thread, only update the text once per frame
+        mDispatcher = new FrameSyncedDispatcher(this);
+        mSensorHub = SensorHub.getInstance(this);
+        // Pick up where the last run left off; tapping the text starts over
+        mSensorHub.setWarmStart(getPreferences(MODE_PRIVATE), "fusion_state");
         textView = (TextView) findViewById(R.id.main_textview);
         textView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mSensorFusion.stop();
-                mSensorFusion.reset();
-                mSensorFusion.start();
+                mSensorHub.reset();
             }
         });
     }
@@ -37,32 +40,22 @@ public class FusedSensorActivity extends AppCompatActivity implements VerboseFus
     @Override
     protected void onResume() {
         super.onResume();
-        mSensorFusion.start();
+        mSensorHub.subscribeOrientation(mDispatcher);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
-        mSensorFusion.stop();
+        mSensorHub.unsubscribeOrientation(mDispatcher);
+        mDispatcher.cancel();
     }
 
     @Override
     public void onFusedOrientation(float[] fusedOrientation, long timestamp) {
-        Log.d(TAG, getFormatStringForOrientation(fusedOrientation));
         textView.setText("Fused Orientation is : "
                 + getFormatStringForOrientation(fusedOrientation));
     }
 
-    @Override
-    public void onGyroOrientation(float[] gyroOrientation, long timestamp) {
-        Log.d(TAG, getFormatStringForOrientation(gyroOrientation));
-    }
-
-    @Override
-    public void onAccMagOrientation(float[] accMagOrientation, long timestamp) {
-        Log.d(TAG, getFormatStringForOrientation(accMagOrientation));
-    }
-
     /**
      * Helper function
      *
@@ -70,10 +63,10 @@ public class FusedSensorActivity extends AppCompatActivity implements VerboseFus
      * @return formatted string; PRY (pitch roll yaw) ie, rotation about [x, y, z].
      */
     private String getFormatStringForOrientation(float orientation[]) {
-        String print = String.format("pitch = %d\nroll = %d\nyaw  %d",
+        String print = String.format("pitch = %.1f\nroll = %.1f\nyaw  %.1f",
                 toDegrees(orientation[0]),
                 toDegrees(orientation[1]),
                 toDegrees(orientation[2]));
         return print;
     }
-}
\ No newline at end of file
+}
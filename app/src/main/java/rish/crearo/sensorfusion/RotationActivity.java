@@ -5,11 +5,16 @@ import android.support.v7.app.AppCompatActivity;
 import android.widget.TextView;
 
 import rish.crearo.sensorfusion.views.AttitudeIndicator;
+import rish.crearo.sensorfusioncore.FusionMetrics;
+import rish.crearo.sensorfusionlib.MetricsReporter;
 import rish.crearo.sensorfusionlib.OrientationFromRotation;
 
 public class RotationActivity extends AppCompatActivity implements OrientationFromRotation.Listener {
 
+    private static final long METRICS_PERIOD_MS = 5000;
+
     private OrientationFromRotation orientationFromRotation;
+    private MetricsReporter metricsReporter;
     private AttitudeIndicator attitudeIndicator;
     private TextView textView;
 
@@ -20,24 +25,33 @@ public class RotationActivity extends AppCompatActivity implements OrientationFr
 
         orientationFromRotation = new OrientationFromRotation(this);
         attitudeIndicator = (AttitudeIndicator) findViewById(R.id.attitude);
+        attitudeIndicator.setRenderMode(AttitudeIndicator.RENDER_MODE_TRANSFORM);
         textView = findViewById(R.id.tv);
+
+        // Per stage timings, from sensor event to drawn frame, to logcat
+        FusionMetrics metrics = new FusionMetrics();
+        orientationFromRotation.setMetrics(metrics);
+        attitudeIndicator.setMetrics(metrics);
+        metricsReporter = new MetricsReporter(metrics, METRICS_PERIOD_MS, null);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         orientationFromRotation.startListening(this);
+        metricsReporter.start();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         orientationFromRotation.stopListening();
+        metricsReporter.stop();
     }
 
     @Override
-    public void onOrientationChanged(float azimuth, float pitch, float roll) {
-        attitudeIndicator.setAttitude(pitch, roll);
+    public void onOrientationChanged(float azimuth, float pitch, float roll, long timestamp) {
+        attitudeIndicator.setAttitude(pitch, roll, timestamp);
         textView.setText(String.format("Heading: %d", ((int) azimuth)));
     }
 }
@@ -5,14 +5,18 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.RectF;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
+import rish.crearo.sensorfusioncore.FusionMetrics;
+
 public class AttitudeIndicator extends View {
 
     private static final String TAG = AttitudeIndicator.class.getSimpleName();
@@ -23,6 +27,19 @@ public class AttitudeIndicator extends View {
     private static final int MIN_PLANE_COLOR = Color.parseColor("#E8D4BB");
     private static final float TOTAL_VISIBLE_PITCH_DEGREES = 45 * 2; // � 45�
 
+    /**
+     * Renders the whole instrument into a bitmap each frame and masks it through an offscreen
+     * layer. The original mode.
+     */
+    public static final int RENDER_MODE_LAYER = 0;
+    /**
+     * Pre-renders the pitch ladder and the miniature plane once per size. Each frame only sets a
+     * canvas transform, fills the sky and the earth and draws the two bitmaps, clipped to the
+     * dial with a cached path: no offscreen layer, no software rendering. The clip edge is not
+     * anti-aliased on hardware canvases.
+     */
+    public static final int RENDER_MODE_TRANSFORM = 1;
+
     private final PorterDuffXfermode mXfermode;
     private final Paint mBitmapPaint;
     private final Paint mEarthPaint;
@@ -34,12 +51,26 @@ public class AttitudeIndicator extends View {
     private Bitmap mSrcBitmap;
     private Canvas mSrcCanvas;
     private Bitmap mDstBitmap;
+    private final RectF mWingsCircleBounds = new RectF();
+
+    // RENDER_MODE_TRANSFORM, created once per size
+    private int mRenderMode = RENDER_MODE_LAYER;
+    private final Paint mTransformBitmapPaint;
+    private final Path mDialClip = new Path();
+    private Bitmap mLadderBitmap;
+    private Bitmap mPlaneBitmap;
 
     private int mWidth;
     private int mHeight;
 
     private float mPitch = 0; // Degrees
     private float mRoll = 0; // Degrees, left roll is positive
+    // Attitude of the last frame drawn, to skip redraws that would not move a pixel
+    private float mDrawnPitch = Float.NaN;
+    private float mDrawnRoll = Float.NaN;
+    // Sensor timestamp of the attitude, elapsedRealtimeNanos base; 0 if unknown
+    private long mTimestamp;
+    private FusionMetrics mMetrics;
     private long frameCountStartedAt = 0;
     private long frameCount = 0;
 
@@ -54,6 +85,9 @@ public class AttitudeIndicator extends View {
         mBitmapPaint = new Paint();
         mBitmapPaint.setFilterBitmap(false);
 
+        mTransformBitmapPaint = new Paint();
+        mTransformBitmapPaint.setFilterBitmap(true);
+
         mEarthPaint = new Paint();
         mEarthPaint.setAntiAlias(true);
         mEarthPaint.setColor(EARTH_COLOR);
@@ -84,9 +118,40 @@ public class AttitudeIndicator extends View {
         return mRoll;
     }
 
+    /**
+     * @param renderMode RENDER_MODE_LAYER or RENDER_MODE_TRANSFORM
+     */
+    public void setRenderMode(int renderMode) {
+        mRenderMode = renderMode;
+        invalidate();
+    }
+
+    /**
+     * Records draw times (STAGE_DRAW) and, for attitudes set with a timestamp, the time from
+     * sensor sample to drawn frame (STAGE_SENSOR_TO_DRAW) into metrics. Pass null to stop.
+     */
+    public void setMetrics(FusionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param timestamp sensor timestamp of the sample the attitude comes from, for metrics
+     */
+    public void setAttitude(float pitch, float roll, long timestamp) {
+        mTimestamp = timestamp;
+        setAttitude(pitch, roll);
+    }
+
     public void setAttitude(float pitch, float roll) {
         mPitch = pitch;
         mRoll = roll;
+
+        // How far the horizon would move: vertically for pitch, along the dial edge for roll
+        float pitchPixels = Math.abs(pitch - mDrawnPitch) / TOTAL_VISIBLE_PITCH_DEGREES * mHeight;
+        float rollPixels = (float) Math.toRadians(Math.abs(roll - mDrawnRoll)) * Math.max(mWidth, mHeight) / 2;
+        if (pitchPixels < 1 && rollPixels < 1) {
+            return;
+        }
         invalidate();
     }
 
@@ -95,6 +160,21 @@ public class AttitudeIndicator extends View {
         super.onSizeChanged(w, h, oldw, oldh);
         mWidth = w;
         mHeight = h;
+
+        // Everything rendered for the old size is useless now
+        mSrcBitmap = recycle(mSrcBitmap);
+        mDstBitmap = recycle(mDstBitmap);
+        mLadderBitmap = recycle(mLadderBitmap);
+        mPlaneBitmap = recycle(mPlaneBitmap);
+        mDialClip.reset();
+        mDialClip.addOval(new RectF(0, 0, w, h), Path.Direction.CW);
+    }
+
+    private static Bitmap recycle(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+        return null;
     }
 
     private Bitmap getSrc() {
@@ -118,13 +198,29 @@ public class AttitudeIndicator extends View {
         canvas.rotate(mRoll, centerX, centerY);
         canvas.translate(0, (mPitch / TOTAL_VISIBLE_PITCH_DEGREES) * mHeight);
 
+        drawEarth(canvas, centerX, centerY);
+        drawPitchLadder(canvas, centerX, centerY);
+
+        // Return to normal to draw the miniature plane
+        canvas.restore();
+
+        drawMiniaturePlane(canvas, centerX, centerY);
+
+        return mSrcBitmap;
+    }
+
+    private void drawEarth(Canvas canvas, float centerX, float centerY) {
         // Draw the earth as a rectangle, well beyond the view bounds
         // to account for large nose-down pitch.
         canvas.drawRect(-mWidth, centerY, mWidth * 2, mHeight * 2, mEarthPaint);
 
-        // Draw white horizon and top pitch ladder
-        float ladderStepY = mHeight / 12;
+        // Draw white horizon
         canvas.drawLine(-mWidth, centerY, mWidth * 2, centerY, mPitchLadderPaint);
+    }
+
+    private void drawPitchLadder(Canvas canvas, float centerX, float centerY) {
+        // Draw the top pitch ladder
+        float ladderStepY = mHeight / 12;
         for (int i = 1; i <= 4; i++) {
             float y = centerY - ladderStepY * i;
             float width = mWidth / 8;
@@ -143,19 +239,18 @@ public class AttitudeIndicator extends View {
             canvas.drawLine(centerX - bottomLadderStepX * i, y, centerX + bottomLadderStepX * i, y,
                     mBottomPitchLadderPaint);
         }
+    }
 
-        // Return to normal to draw the miniature plane
-        canvas.restore();
-
+    private void drawMiniaturePlane(Canvas canvas, float centerX, float centerY) {
         // Draw the nose dot
         canvas.drawPoint(centerX, centerY, mMinPlanePaint);
 
         // Half-circle of miniature plane
         float minPlaneCircleRadiusX = mWidth / 6;
         float minPlaneCircleRadiusY = mHeight / 6;
-        RectF wingsCircleBounds = new RectF(centerX - minPlaneCircleRadiusX, centerY
-                - minPlaneCircleRadiusY, centerX + minPlaneCircleRadiusX, centerY + minPlaneCircleRadiusY);
-        canvas.drawArc(wingsCircleBounds, 0, 180, false, mMinPlanePaint);
+        mWingsCircleBounds.set(centerX - minPlaneCircleRadiusX, centerY - minPlaneCircleRadiusY,
+                centerX + minPlaneCircleRadiusX, centerY + minPlaneCircleRadiusY);
+        canvas.drawArc(mWingsCircleBounds, 0, 180, false, mMinPlanePaint);
 
         // Wings of miniature plane
         float wingLength = mWidth / 6;
@@ -167,8 +262,6 @@ public class AttitudeIndicator extends View {
         // Draw vertical post
         canvas.drawLine(centerX, centerY + minPlaneCircleRadiusY, centerX, centerY
                 + minPlaneCircleRadiusY + mHeight / 3, mMinPlanePaint);
-
-        return mSrcBitmap;
     }
 
     private Bitmap getDst() {
@@ -189,7 +282,24 @@ public class AttitudeIndicator extends View {
         if (LOG_FPS) {
             countFps();
         }
+        mDrawnPitch = mPitch;
+        mDrawnRoll = mRoll;
 
+        final FusionMetrics metrics = mMetrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        if (mRenderMode == RENDER_MODE_TRANSFORM) {
+            drawTransformed(canvas);
+        } else {
+            drawLayered(canvas);
+        }
+        if (metrics != null) {
+            metrics.record(FusionMetrics.STAGE_DRAW, System.nanoTime() - start);
+            if (mTimestamp != 0)
+                metrics.record(FusionMetrics.STAGE_SENSOR_TO_DRAW, SystemClock.elapsedRealtimeNanos() - mTimestamp);
+        }
+    }
+
+    private void drawLayered(Canvas canvas) {
         Bitmap src = getSrc();
         Bitmap dst = getDst();
 
@@ -202,6 +312,42 @@ public class AttitudeIndicator extends View {
         canvas.restoreToCount(sc);
     }
 
+    private void drawTransformed(Canvas canvas) {
+        if (mLadderBitmap == null) {
+            prerender();
+        }
+        float centerX = mWidth / 2;
+        float centerY = mHeight / 2;
+
+        int sc = canvas.save();
+        canvas.clipPath(mDialClip);
+        canvas.drawColor(SKY_COLOR);
+
+        canvas.save();
+        canvas.rotate(mRoll, centerX, centerY);
+        canvas.translate(0, (mPitch / TOTAL_VISIBLE_PITCH_DEGREES) * mHeight);
+        drawEarth(canvas, centerX, centerY);
+        canvas.drawBitmap(mLadderBitmap, 0, 0, mTransformBitmapPaint);
+        canvas.restore();
+
+        canvas.drawBitmap(mPlaneBitmap, 0, 0, mBitmapPaint);
+        canvas.restoreToCount(sc);
+    }
+
+    /**
+     * Renders the parts that only ever move as a whole, at level attitude.
+     */
+    private void prerender() {
+        float centerX = mWidth / 2;
+        float centerY = mHeight / 2;
+
+        mLadderBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        drawPitchLadder(new Canvas(mLadderBitmap), centerX, centerY);
+
+        mPlaneBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        drawMiniaturePlane(new Canvas(mPlaneBitmap), centerX, centerY);
+    }
+
     private int saveLayer(Canvas canvas) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             return canvas.saveLayer(0, 0, mWidth, mHeight, null);
@@ -0,0 +1,42 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * Name to {@link FusionAlgorithm} lookup, so benchmarks can take the algorithm as a @Param.
+ */
+final class Algorithms {
+
+    static final String[] NAMES = {"complementary", "complementary-quaternion", "complementary-coning",
+            "complementary-rk4", "complementary-50hz", "madgwick", "mahony", "ekf"};
+
+    /* Acc/mag correction rate of "complementary-50hz" */
+    static final float DECIMATED_CORRECTION_RATE = 50;
+
+    private Algorithms() {
+    }
+
+    static FusionAlgorithm create(String name) {
+        switch (name) {
+            case "complementary":
+                return new ComplementaryFilter();
+            case "complementary-quaternion":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION);
+            case "complementary-coning":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, ComplementaryFilter.DEFAULT_ALPHA,
+                        IntegrationScheme.CONING);
+            case "complementary-rk4":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, ComplementaryFilter.DEFAULT_ALPHA,
+                        IntegrationScheme.RK4);
+            case "complementary-50hz":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, ComplementaryFilter.DEFAULT_ALPHA,
+                        IntegrationScheme.FIRST_ORDER, DECIMATED_CORRECTION_RATE);
+            case "madgwick":
+                return new MadgwickFilter();
+            case "mahony":
+                return new MahonyFilter();
+            case "ekf":
+                return new ExtendedKalmanFilter();
+            default:
+                throw new IllegalArgumentException("Unknown algorithm " + name);
+        }
+    }
+}
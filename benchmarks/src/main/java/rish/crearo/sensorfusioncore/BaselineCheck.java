@@ -0,0 +1,119 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares a JMH csv result file against the checked-in baseline and exits non-zero if any
+ * benchmark got slower, or allocates more, than the given tolerance, or if there is no
+ * baseline.
+ * <p>
+ * Usage: BaselineCheck baseline.csv results.csv tolerancePercent
+ */
+public class BaselineCheck {
+
+    /* Allocation noise below this many bytes per op is ignored */
+    private static final double ALLOC_SLACK_BYTES = 1.0;
+
+    public static void main(String[] args) throws IOException {
+        File baselineFile = new File(args[0]);
+        File resultsFile = new File(args[1]);
+        double tolerance = Double.parseDouble(args[2]) / 100.0;
+
+        if (!baselineFile.exists()) {
+            // A gate that passes without anything to compare against is no gate
+            System.err.println("No baseline at " + baselineFile + ", record one with :benchmarks:jmhBaseline");
+            System.exit(1);
+        }
+
+        Map<String, Row> baseline = read(baselineFile);
+        Map<String, Row> results = read(resultsFile);
+        int regressions = 0;
+        for (Row current : results.values()) {
+            Row base = baseline.get(current.key);
+            if (base == null || !base.unit.equals(current.unit)) {
+                System.out.println("NEW   " + current);
+                continue;
+            }
+            boolean alloc = current.unit.equals("B/op");
+            boolean regressed = current.score > base.score * (1 + tolerance)
+                    && (!alloc || current.score - base.score > ALLOC_SLACK_BYTES);
+            if (regressed) regressions++;
+            System.out.println((regressed ? "WORSE " : "ok    ") + current + "  (baseline "
+                    + String.format("%.3f", base.score) + ")");
+        }
+
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) regressed by more than "
+                    + Math.round(tolerance * 100) + "%");
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Row> read(File file) throws IOException {
+        Map<String, Row> rows = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            List<String> header = split(reader.readLine());
+            int scoreColumn = header.indexOf("Score");
+            int unitColumn = header.indexOf("Unit");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                List<String> cells = split(line);
+                String unit = cells.get(unitColumn);
+                // Only time per op and normalized allocation are stable enough to compare
+                if (!unit.endsWith("/op")) continue;
+
+                StringBuilder key = new StringBuilder(cells.get(0));
+                for (int c = unitColumn + 1; c < cells.size(); c++) {
+                    key.append(' ').append(header.get(c)).append('=').append(cells.get(c));
+                }
+                Row row = new Row(key.toString(), Double.parseDouble(cells.get(scoreColumn)), unit);
+                rows.put(row.key, row);
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> split(String line) {
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells;
+    }
+
+    private static class Row {
+        final String key;
+        final double score;
+        final String unit;
+
+        Row(String key, double score, String unit) {
+            this.key = key;
+            this.score = score;
+            this.unit = unit;
+        }
+
+        @Override
+        public String toString() {
+            return key + " = " + String.format("%.3f", score) + " " + unit;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.Random;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * Prints how long each {@link FusionAlgorithm} takes to settle on the same simulated input: a
+ * device lying still at a fixed tilt, sampled at 400 Hz with realistic noise.
+ * <ul>
+ * <li>initial: from the identity start until the tilt is within 1 degree of the truth. Only
+ * meaningful for the absolute filters; the complementary filter reports orientation relative
+ * to where it started.</li>
+ * <li>recovery: after settling, the gyro reports a 0.25 s burst of 1 rad/s that did not happen
+ * (a bump, or a glitch). Time until the tilt is back within 1 degree of the pre-glitch estimate.</li>
+ * <li>resume: the settled state is saved ({@link RestorableAlgorithm}), the device turns 30
+ * degrees while stopped, and a new instance starts on the turned input, cold or restored from
+ * the saved state. Time until its tilt is within 1 degree of what an instance that kept running
+ * through the turn reports, i.e. until output continues where it left off.</li>
+ * </ul>
+ * Run with {@code ./gradlew :benchmarks:convergence}.
+ */
+public class ConvergenceReport {
+
+    private static final int RATE_HZ = 400;
+    private static final float DT = 1.0f / RATE_HZ;
+    private static final double THRESHOLD_RAD = Math.toRadians(1);
+    private static final int SETTLE_SAMPLES = 60 * RATE_HZ;
+    private static final int GLITCH_SAMPLES = RATE_HZ / 4;
+    private static final int MAX_RECOVERY_SAMPLES = 120 * RATE_HZ;
+    /* The turn while stopped, about the device x axis */
+    private static final float TURN_RATE = 1.0f;
+    private static final int TURN_SAMPLES = (int) (Math.toRadians(30) / TURN_RATE * RATE_HZ);
+    private static final int RESUME_SAMPLES = 60 * RATE_HZ;
+
+    public static void main(String[] args) {
+        float truth[] = new float[4];
+        Quat.fromEuler(new float[]{0.3f, -0.2f, 0.5f}, truth);
+        float acc[] = toDevice(truth, 0, 0, 9.81f);
+        float mag[] = toDevice(truth, 0, 22, -40);
+
+        float turned[] = new float[4];
+        Quat.multiply(truth, new float[]{(float) Math.cos(TURN_SAMPLES * DT * TURN_RATE / 2),
+                (float) Math.sin(TURN_SAMPLES * DT * TURN_RATE / 2), 0, 0}, turned);
+        float turnedAcc[] = toDevice(turned, 0, 0, 9.81f);
+        float turnedMag[] = toDevice(turned, 0, 22, -40);
+
+        System.out.println(String.format("%-26s %12s %12s %12s %12s", "algorithm", "initial (s)", "recovery (s)",
+                "cold (s)", "resumed (s)"));
+        for (String name : Algorithms.NAMES) {
+            FusionAlgorithm algorithm = Algorithms.create(name);
+            Orientation orientation = new Orientation();
+            Random random = new Random(7);
+
+            int initial = settle(algorithm, random, acc, mag, truth, SETTLE_SAMPLES);
+            algorithm.getOrientation(orientation);
+
+            float saved[] = null;
+            if (algorithm instanceof RestorableAlgorithm) {
+                saved = new float[((RestorableAlgorithm) algorithm).getStateSize()];
+                ((RestorableAlgorithm) algorithm).saveState(saved);
+            }
+
+            float settled[] = orientation.getQuaternion().clone();
+            for (int i = 0; i < GLITCH_SAMPLES; i++) {
+                step(algorithm, random, acc, mag, 1.0f);
+            }
+            int recovery = -1;
+            for (int i = 0; i < MAX_RECOVERY_SAMPLES; i++) {
+                step(algorithm, random, acc, mag, 0);
+                algorithm.getOrientation(orientation);
+                if (tiltError(orientation.getQuaternion(), settled) < THRESHOLD_RAD) {
+                    recovery = i;
+                    break;
+                }
+            }
+
+            // What the output should continue with: the same run, had it seen the turn
+            FusionAlgorithm reference = Algorithms.create(name);
+            settle(reference, new Random(7), acc, mag, truth, SETTLE_SAMPLES);
+            for (int i = 0; i < TURN_SAMPLES; i++) {
+                reference.updateGyro(DT, TURN_RATE, 0, 0);
+            }
+            Random resumeRandom = new Random(11);
+            settle(reference, resumeRandom, turnedAcc, turnedMag, turned, RESUME_SAMPLES);
+            reference.getOrientation(orientation);
+            float expected[] = orientation.getQuaternion().clone();
+
+            resumeRandom = new Random(11);
+            int cold = settle(Algorithms.create(name), resumeRandom, turnedAcc, turnedMag, expected, RESUME_SAMPLES);
+            String resumed = "n/a";
+            if (saved != null) {
+                RestorableAlgorithm restored = (RestorableAlgorithm) Algorithms.create(name);
+                restored.restoreState(saved);
+                resumeRandom = new Random(11);
+                resumed = seconds(settle(restored, resumeRandom, turnedAcc, turnedMag, expected, RESUME_SAMPLES));
+            }
+
+            boolean absolute = !(algorithm instanceof ComplementaryFilter);
+            System.out.println(String.format("%-26s %12s %12s %12s %12s", name,
+                    absolute ? seconds(initial) : "relative", seconds(recovery), seconds(cold), resumed));
+        }
+    }
+
+    /**
+     * Runs samples steps of still input.
+     *
+     * @return step from which the tilt stayed within the threshold of target, -1 if it did not
+     * end within it
+     */
+    private static int settle(FusionAlgorithm algorithm, Random random, float acc[], float mag[],
+                              float target[], int samples) {
+        Orientation orientation = new Orientation();
+        int settled = -1;
+        for (int i = 0; i < samples; i++) {
+            step(algorithm, random, acc, mag, 0);
+            algorithm.getOrientation(orientation);
+            boolean within = tiltError(orientation.getQuaternion(), target) < THRESHOLD_RAD;
+            if (within && settled < 0) settled = i;
+            else if (!within) settled = -1;
+        }
+        return settled;
+    }
+
+    private static void step(FusionAlgorithm algorithm, Random random, float acc[], float mag[],
+                             float gyroGlitch) {
+        algorithm.updateMagnetometer(mag[0] + noise(random, 0.3), mag[1] + noise(random, 0.3),
+                mag[2] + noise(random, 0.3));
+        algorithm.updateAccelerometer(acc[0] + noise(random, 0.05), acc[1] + noise(random, 0.05),
+                acc[2] + noise(random, 0.05));
+        algorithm.updateGyro(DT, gyroGlitch + noise(random, 0.01), noise(random, 0.01),
+                noise(random, 0.01));
+    }
+
+    /**
+     * Angle between the "up" directions seen from the two orientations, i.e. tilt error
+     * regardless of heading.
+     */
+    private static double tiltError(float a[], float b[]) {
+        float ra[] = new float[9];
+        float rb[] = new float[9];
+        Quat.toRotationMatrix(a, ra);
+        Quat.toRotationMatrix(b, rb);
+        double dot = ra[6] * rb[6] + ra[7] * rb[7] + ra[8] * rb[8];
+        return Math.acos(Math.max(-1, Math.min(1, dot)));
+    }
+
+    /**
+     * World vector (z up) as measured in device coordinates.
+     */
+    private static float[] toDevice(float q[], float x, float y, float z) {
+        float r[] = new float[9];
+        Quat.toRotationMatrix(q, r);
+        return new float[]{
+                r[0] * x + r[3] * y + r[6] * z,
+                r[1] * x + r[4] * y + r[7] * z,
+                r[2] * x + r[5] * y + r[8] * z};
+    }
+
+    private static float noise(Random random, double sigma) {
+        return (float) (random.nextGaussian() * sigma);
+    }
+
+    private static String seconds(int samples) {
+        return samples < 0 ? "never" : String.format("%.2f", samples / (double) RATE_HZ);
+    }
+}
@@ -0,0 +1,85 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays a trace through {@link ComplementaryFilter} with the acc/mag correction on every
+ * gyro sample and at lower correction rates, and prints the CPU time the filter takes against
+ * how far its orientation moves from the every sample one:
+ * <pre>
+ *   CorrectionReport &lt;directory&gt; &lt;prefix&gt; [rates]
+ *     rates   correction rates in Hz, comma separated (default 100,50,25,10)
+ * </pre>
+ * Times are of the filter alone, fed straight from memory, the fastest of several replays of
+ * the whole trace after a warm up round; good enough to compare the rows with each other, use
+ * the JMH benchmarks for absolute costs. Errors are between the orientations out of a
+ * {@link FusionEngine}, per gyro sample. Run with
+ * {@code ./gradlew :benchmarks:correction -PcorrectionArgs="trace/ session"}.
+ */
+public class CorrectionReport {
+
+    private static final int RUNS = 15;
+    private static final IntegrationMode MODES[] = {IntegrationMode.EULER, IntegrationMode.QUATERNION};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: CorrectionReport <directory> <prefix> [rates], see javadoc");
+            System.exit(2);
+        }
+        String rateList[] = (args.length > 2 ? args[2] : "100,50,25,10").split(",");
+        float rates[] = new float[rateList.length + 1];
+        for (int i = 0; i < rateList.length; i++) {
+            rates[i + 1] = Float.parseFloat(rateList[i]);
+        }
+
+        TraceReplay reference = new TraceReplay();
+        TraceReplay replay = new TraceReplay();
+        reference.load(new File(args[0]), args[1]);
+        replay.load(new File(args[0]), args[1]);
+
+        for (IntegrationMode mode : MODES) {
+            // Rounds over all rates, so drift in machine speed hits every rate alike; the
+            // first round is warm up
+            long best[] = new long[rates.length];
+            Arrays.fill(best, Long.MAX_VALUE);
+            for (int i = 0; i <= RUNS; i++) {
+                for (int j = 0; j < rates.length; j++) {
+                    final long elapsed = replay.runAlgorithm(create(mode, rates[j]));
+                    if (i > 0) best[j] = Math.min(best[j], elapsed);
+                }
+            }
+
+            System.out.println(String.format(Locale.US, "%n%s mode, alpha %s", mode.name().toLowerCase(Locale.US),
+                    ComplementaryFilter.DEFAULT_ALPHA));
+            System.out.println(String.format("%-12s%12s%10s%14s%14s", "correction", "time (ms)", "saved",
+                    "rms (deg)", "max (deg)"));
+            run(reference, mode, 0);
+            for (int j = 0; j < rates.length; j++) {
+                run(replay, mode, rates[j]);
+                double sumSq = 0, max = 0;
+                final int rows = replay.getRows();
+                for (int r = 0; r < rows; r++) {
+                    final double error = replay.angleTo(reference, r);
+                    sumSq += error * error;
+                    max = Math.max(max, error);
+                }
+                System.out.println(String.format(Locale.US, "%-12s%12.2f%9.0f%%%14.4f%14.4f",
+                        rates[j] == 0 ? "every gyro" : String.format(Locale.US, "%.0f Hz", rates[j]),
+                        best[j] * 1e-6, 100.0 * (best[0] - best[j]) / best[0],
+                        Math.toDegrees(Math.sqrt(sumSq / rows)), Math.toDegrees(max)));
+            }
+        }
+    }
+
+    private static void run(TraceReplay replay, IntegrationMode mode, float correctionRate) {
+        replay.runFusion(create(mode, correctionRate), null, null, false);
+    }
+
+    private static ComplementaryFilter create(IntegrationMode mode, float correctionRate) {
+        return new ComplementaryFilter(mode, ComplementaryFilter.DEFAULT_ALPHA, IntegrationScheme.FIRST_ORDER,
+                correctionRate);
+    }
+}
@@ -0,0 +1,70 @@
+package rish.crearo.sensorfusioncore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of each {@link FusionAlgorithm} on the same input. A sample is one
+ * accelerometer, magnetometer and gyro reading, i.e. every sensor running at the same rate;
+ * {@link #gyroOnly()} is the cost of the gyro samples in between when acc/mag run slower.
+ * See {@link ConvergenceReport} for how quickly each of them settles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FusionAlgorithmBenchmark {
+
+    private static final float GYRO_DT = SyntheticImu.GYRO_PERIOD_NS * 1e-9f;
+
+    @Param({"complementary", "complementary-quaternion", "complementary-coning", "complementary-rk4",
+            "complementary-50hz", "madgwick", "mahony", "ekf"})
+    public String algorithmName;
+
+    private final SyntheticImu imu = new SyntheticImu();
+    private final Orientation orientation = new Orientation();
+    private FusionAlgorithm algorithm;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        algorithm = Algorithms.create(algorithmName);
+        // One full sample first, so filters that start from acc/mag are running for gyroOnly
+        algorithm.updateMagnetometer(imu.mag[0], imu.mag[1], imu.mag[2]);
+        algorithm.updateAccelerometer(imu.acc[0], imu.acc[1], imu.acc[2]);
+        algorithm.updateGyro(GYRO_DT, imu.gyro[0], imu.gyro[1], imu.gyro[2]);
+    }
+
+    @Benchmark
+    public Orientation sample() {
+        i = (i + 1) & SyntheticImu.MASK;
+        int k = i * 3;
+        algorithm.updateMagnetometer(imu.mag[k], imu.mag[k + 1], imu.mag[k + 2]);
+        algorithm.updateAccelerometer(imu.acc[k], imu.acc[k + 1], imu.acc[k + 2]);
+        algorithm.updateGyro(GYRO_DT, imu.gyro[k], imu.gyro[k + 1], imu.gyro[k + 2]);
+        algorithm.getOrientation(orientation);
+        return orientation;
+    }
+
+    @Benchmark
+    public Orientation gyroOnly() {
+        i = (i + 1) & SyntheticImu.MASK;
+        int k = i * 3;
+        algorithm.updateGyro(GYRO_DT, imu.gyro[k], imu.gyro[k + 1], imu.gyro[k + 2]);
+        algorithm.getOrientation(orientation);
+        return orientation;
+    }
+}
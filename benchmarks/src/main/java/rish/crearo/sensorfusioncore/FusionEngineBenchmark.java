@@ -0,0 +1,110 @@
+package rish.crearo.sensorfusioncore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import rish.crearo.sensorfusionlib.listeners.FusionListener;
+
+/**
+ * Cost of one sensor event through {@link FusionEngine} with the default complementary filter,
+ * stage by stage and end to end. Lives in the engine's package so it can call the package
+ * private stages of {@link ComplementaryFilter} directly.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FusionEngineBenchmark {
+
+    /* Samples per FIFO burst in the batched benchmark, ~160 ms of gyro at 400 Hz */
+    private static final int BURST = 64;
+
+    private static final float GYRO_DT = SyntheticImu.GYRO_PERIOD_NS * 1e-9f;
+
+    private final SyntheticImu imu = new SyntheticImu();
+    private ComplementaryFilter filter;
+    private FusionEngine engine;
+    private final SampleBatch batch = new SampleBatch(BURST);
+    private Blackhole blackhole;
+    private int i;
+    private long timestamp;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        filter = new ComplementaryFilter();
+        engine = new FusionEngine(filter, new FusionListener() {
+            @Override
+            public void onFusedOrientation(float[] fusedOrientation, long timestamp) {
+                FusionEngineBenchmark.this.blackhole.consume(fusedOrientation);
+            }
+        });
+        engine.onMagnetometer(0, imu.mag[0], imu.mag[1], imu.mag[2]);
+        engine.onAccelerometer(0, imu.acc[0], imu.acc[1], imu.acc[2]);
+        timestamp = SyntheticImu.GYRO_PERIOD_NS;
+    }
+
+    private int next() {
+        timestamp += SyntheticImu.GYRO_PERIOD_NS;
+        i = (i + 1) & SyntheticImu.MASK;
+        return i * 3;
+    }
+
+    @Benchmark
+    public void rawGyroOrientation() {
+        int k = next();
+        filter.calculateRawGyroOrientation(GYRO_DT, imu.gyro[k], imu.gyro[k + 1], imu.gyro[k + 2]);
+    }
+
+    /**
+     * Rotation matrix plus orientation extraction, i.e. everything an accelerometer event costs.
+     */
+    @Benchmark
+    public boolean accMagOrientation() {
+        int k = next();
+        return engine.onAccelerometer(timestamp, imu.acc[k], imu.acc[k + 1], imu.acc[k + 2]);
+    }
+
+    @Benchmark
+    public void fusedOrientation() {
+        filter.calculateFusedOrientation();
+    }
+
+    /**
+     * A whole gyroscope event: integration, fusion and listener dispatch.
+     */
+    @Benchmark
+    public void gyroEvent() {
+        int k = next();
+        engine.onGyro(timestamp, imu.gyro[k], imu.gyro[k + 1], imu.gyro[k + 2]);
+    }
+
+    /**
+     * Per gyro event cost when a burst goes through {@link FusionEngine#onSamples}, i.e. with
+     * one listener dispatch per burst. Compare with {@link #gyroEvent}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void gyroEventBatched() {
+        batch.clear();
+        for (int n = 0; n < BURST; n++) {
+            int k = next();
+            batch.add(FusionEngine.SENSOR_GYROSCOPE, timestamp, imu.gyro[k], imu.gyro[k + 1], imu.gyro[k + 2]);
+        }
+        engine.onSamples(batch);
+    }
+}
@@ -0,0 +1,207 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Prints how far gyro-only integration drifts with each {@link IntegrationScheme} as the gyro
+ * rate goes down:
+ * <pre>
+ *   IntegrationReport                       a simulated 30 s of hand held motion, against the
+ *                                           exact orientation, at 400, 200, 100 and 50 Hz
+ *   IntegrationReport &lt;directory&gt; &lt;prefix&gt;  the gyro of a recorded trace, keeping every 1st,
+ *                                           2nd, 4th and 8th sample, against RK4 on all of them
+ * </pre>
+ * Errors are the angle between the integrated and the reference orientation, in degrees: RMS
+ * and largest over all samples. Run with {@code ./gradlew :benchmarks:integration}, or
+ * {@code -PintegrationArgs="trace/ session"} for a trace.
+ */
+public class IntegrationReport {
+
+    private static final int SIMULATED_SECONDS = 30;
+    private static final int RATES_HZ[] = {400, 200, 100, 50};
+    private static final int DECIMATIONS[] = {1, 2, 4, 8};
+
+    /* Euler angles of the simulated motion: amplitude (rad), frequency (Hz), phase (rad) */
+    private static final double MOTION[][] = {{0.8, 0.7, 0}, {0.6, 1.1, 1}, {0.5, 1.7, 2}};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2) {
+            replay(new File(args[0]), args[1]);
+        } else {
+            simulate();
+        }
+    }
+
+    private static void simulate() {
+        System.out.println(String.format(Locale.US, "Simulated motion, %d s, error against the exact orientation",
+                SIMULATED_SECONDS));
+        header("rate (Hz)");
+        for (int rate : RATES_HZ) {
+            final int count = SIMULATED_SECONDS * rate + 1;
+            long timestamps[] = new long[count];
+            float rates[] = new float[count * 3];
+            float truth[] = new float[count * 4];
+            double q[] = new double[4], w[] = new double[3];
+            for (int i = 0; i < count; i++) {
+                final double t = i / (double) rate;
+                timestamps[i] = Math.round(t * 1e9);
+                motion(t, q, w);
+                for (int j = 0; j < 4; j++) truth[i * 4 + j] = (float) q[j];
+                for (int j = 0; j < 3; j++) rates[i * 3 + j] = (float) w[j];
+            }
+            row(Integer.toString(rate), timestamps, rates, count, 1, truth);
+        }
+    }
+
+    private static void replay(File directory, String prefix) throws IOException {
+        int count = 0;
+        long timestamps[] = new long[4096];
+        float rates[] = new float[4096 * 3];
+        try (TraceReader reader = new TraceReader(directory, prefix)) {
+            while (reader.next()) {
+                if (reader.getSensor() != FusionEngine.SENSOR_GYROSCOPE) continue;
+                if (count == timestamps.length) {
+                    timestamps = Arrays.copyOf(timestamps, count * 2);
+                    rates = Arrays.copyOf(rates, count * 6);
+                }
+                timestamps[count] = reader.getTimestamp();
+                rates[count * 3] = reader.getX();
+                rates[count * 3 + 1] = reader.getY();
+                rates[count * 3 + 2] = reader.getZ();
+                count++;
+            }
+        }
+        if (count < 2) {
+            System.err.println("No gyro samples in " + prefix);
+            System.exit(1);
+        }
+        final double seconds = (timestamps[count - 1] - timestamps[0]) * 1e-9;
+        System.out.println(String.format(Locale.US,
+                "%s: %d gyro samples over %.1f s (%.0f Hz), error against RK4 on every sample",
+                prefix, count, seconds, (count - 1) / seconds));
+
+        float reference[] = new float[count * 4];
+        float identity[] = {1, 0, 0, 0};
+        integrate(IntegrationScheme.RK4, identity, timestamps, rates, count, 1, reference);
+
+        header("kept");
+        for (int decimation : DECIMATIONS) {
+            row("1/" + decimation, timestamps, rates, count, decimation, reference);
+        }
+    }
+
+    private static void header(String first) {
+        StringBuilder line = new StringBuilder(String.format("%-10s", first));
+        for (IntegrationScheme scheme : IntegrationScheme.values()) {
+            line.append(String.format("%22s", scheme.name().toLowerCase(Locale.US) + " rms/max"));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Integrates every step'th sample with each scheme from the reference start, and prints
+     * the errors against the reference at those samples.
+     */
+    private static void row(String label, long timestamps[], float rates[], int count, int step,
+                            float reference[]) {
+        StringBuilder line = new StringBuilder(String.format("%-10s", label));
+        float start[] = Arrays.copyOf(reference, 4);
+        float result[] = new float[count * 4];
+        for (IntegrationScheme scheme : IntegrationScheme.values()) {
+            integrate(scheme, start, timestamps, rates, count, step, result);
+            double sumSq = 0, max = 0;
+            int n = 0;
+            for (int i = 0; i < count; i += step) {
+                final double error = angle(result, reference, i);
+                sumSq += error * error;
+                max = Math.max(max, error);
+                n++;
+            }
+            line.append(String.format(Locale.US, "%22s",
+                    String.format(Locale.US, "%.4f / %.4f", Math.toDegrees(Math.sqrt(sumSq / n)), Math.toDegrees(max))));
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Integrates samples 0, step, 2 * step, ... from start the way ComplementaryFilter does,
+     * writing the orientation after each into out at the sample's index.
+     */
+    private static void integrate(IntegrationScheme scheme, float start[], long timestamps[], float rates[],
+                                  int count, int step, float out[]) {
+        QuaternionIntegrator integrator = new QuaternionIntegrator(scheme);
+        float q[] = integrator.getQuaternion();
+        System.arraycopy(start, 0, q, 0, 4);
+        for (int i = 0; i < count; i += step) {
+            final float dt = i > 0 ? (timestamps[i] - timestamps[i - step]) * 1e-9f : 0;
+            integrator.integrate(dt, rates[i * 3], rates[i * 3 + 1], rates[i * 3 + 2]);
+            System.arraycopy(q, 0, out, i * 4, 4);
+        }
+    }
+
+    /**
+     * Orientation and body rate at t of the simulated motion: yaw, then pitch, then roll, each
+     * a sine. The rate is 2 * conj(q) * dq/dt, with dq/dt by the product rule.
+     */
+    private static void motion(double t, double q[], double w[]) {
+        double angles[] = new double[3], rates[] = new double[3];
+        for (int i = 0; i < 3; i++) {
+            final double phase = 2 * Math.PI * MOTION[i][1] * t + MOTION[i][2];
+            angles[i] = MOTION[i][0] * Math.sin(phase);
+            rates[i] = MOTION[i][0] * 2 * Math.PI * MOTION[i][1] * Math.cos(phase);
+        }
+        // Rotations about z, x, y, and their derivatives
+        double factors[][] = new double[3][4], derivatives[][] = new double[3][4];
+        final int axes[] = {3, 1, 2};
+        for (int i = 0; i < 3; i++) {
+            final double c = Math.cos(angles[i] / 2), s = Math.sin(angles[i] / 2);
+            factors[i][0] = c;
+            factors[i][axes[i]] = s;
+            derivatives[i][0] = -s * rates[i] / 2;
+            derivatives[i][axes[i]] = c * rates[i] / 2;
+        }
+        double product[] = multiply(multiply(factors[0], factors[1]), factors[2]);
+        double derivative[] = add(add(
+                multiply(multiply(derivatives[0], factors[1]), factors[2]),
+                multiply(multiply(factors[0], derivatives[1]), factors[2])),
+                multiply(multiply(factors[0], factors[1]), derivatives[2]));
+        System.arraycopy(product, 0, q, 0, 4);
+        double conjugate[] = {product[0], -product[1], -product[2], -product[3]};
+        double rate[] = multiply(conjugate, derivative);
+        w[0] = 2 * rate[1];
+        w[1] = 2 * rate[2];
+        w[2] = 2 * rate[3];
+    }
+
+    private static double[] multiply(double a[], double b[]) {
+        return new double[]{
+                a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3],
+                a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2],
+                a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1],
+                a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0]};
+    }
+
+    private static double[] add(double a[], double b[]) {
+        return new double[]{a[0] + b[0], a[1] + b[1], a[2] + b[2], a[3] + b[3]};
+    }
+
+    /**
+     * Rotation angle between the orientations at index i of a and b, radians.
+     */
+    private static double angle(float a[], float b[], int i) {
+        final int p = i * 4;
+        // conj(a) * b: scalar part and length of the vector part
+        final double w = (double) a[p] * b[p] + (double) a[p + 1] * b[p + 1] + (double) a[p + 2] * b[p + 2]
+                + (double) a[p + 3] * b[p + 3];
+        final double x = (double) a[p] * b[p + 1] - (double) a[p + 1] * b[p] - (double) a[p + 2] * b[p + 3]
+                + (double) a[p + 3] * b[p + 2];
+        final double y = (double) a[p] * b[p + 2] + (double) a[p + 1] * b[p + 3] - (double) a[p + 2] * b[p]
+                - (double) a[p + 3] * b[p + 1];
+        final double z = (double) a[p] * b[p + 3] - (double) a[p + 1] * b[p + 2] + (double) a[p + 2] * b[p + 1]
+                - (double) a[p + 3] * b[p];
+        return 2 * Math.atan2(Math.sqrt(x * x + y * y + z * z), Math.abs(w));
+    }
+}
@@ -0,0 +1,99 @@
+package rish.crearo.sensorfusioncore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import rish.crearo.sensorfusioncore.math.FastMath;
+import rish.crearo.sensorfusioncore.math.Mat3;
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * The math package against the SensorManager port it replaces, on the per-sample work of the
+ * complementary filter: acc/mag rotation matrix plus azimuth/pitch/roll, and the
+ * quaternion to Euler conversion of quaternion mode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MathBenchmark {
+
+    private final SyntheticImu imu = new SyntheticImu();
+    private final float acc[] = new float[3];
+    private final float mag[] = new float[3];
+    private final float rotationMatrix[] = new float[9];
+    private final float orientation[] = new float[3];
+    private final float q[] = new float[4];
+    private int i;
+
+    @Benchmark
+    public float accMagOrientationReference() {
+        next();
+        RotationMath.getRotationMatrix(rotationMatrix, acc, mag);
+        RotationMath.getOrientation(rotationMatrix, orientation);
+        return orientation[0] + orientation[1] + orientation[2];
+    }
+
+    @Benchmark
+    public float accMagOrientation() {
+        next();
+        Mat3.fromGravityAndField(rotationMatrix, acc, mag);
+        Mat3.toOrientation(rotationMatrix, orientation);
+        return orientation[0] + orientation[1] + orientation[2];
+    }
+
+    @Benchmark
+    public float quaternionToEulerReference() {
+        nextQuaternion();
+        final float w = q[0], x = q[1], y = q[2], z = q[3];
+        orientation[0] = (float) Math.asin(Math.max(-1, Math.min(1, 2 * (y * z + w * x))));
+        orientation[1] = (float) Math.atan2(-2 * (x * z - w * y), 1 - 2 * (x * x + y * y));
+        orientation[2] = (float) Math.atan2(-2 * (x * y - w * z), 1 - 2 * (x * x + z * z));
+        return orientation[0] + orientation[1] + orientation[2];
+    }
+
+    @Benchmark
+    public float quaternionToEuler() {
+        nextQuaternion();
+        Quat.toEuler(q, orientation);
+        return orientation[0] + orientation[1] + orientation[2];
+    }
+
+    @Benchmark
+    public float atan2Reference() {
+        next();
+        return (float) Math.atan2(acc[0], acc[2]);
+    }
+
+    @Benchmark
+    public float atan2() {
+        next();
+        return FastMath.atan2(acc[0], acc[2]);
+    }
+
+    private void next() {
+        i = (i + 1) & SyntheticImu.MASK;
+        System.arraycopy(imu.acc, i * 3, acc, 0, 3);
+        System.arraycopy(imu.mag, i * 3, mag, 0, 3);
+    }
+
+    private void nextQuaternion() {
+        next();
+        q[0] = 1;
+        q[1] = acc[1] * 0.05f;
+        q[2] = acc[0] * 0.05f;
+        q[3] = mag[0] * 0.05f;
+        Quat.normalize(q);
+    }
+}
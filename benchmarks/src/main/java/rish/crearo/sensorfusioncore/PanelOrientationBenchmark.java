@@ -0,0 +1,65 @@
+package rish.crearo.sensorfusioncore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What turning a rotation matrix into panel orientation costs: the original remap path, which
+ * allocated per event, against the table driven one OrientationFromRotation now uses. The
+ * display lookup the original also did per event needs a device and is not included.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PanelOrientationBenchmark {
+
+    @Param({"0", "1"})
+    public int displayRotation;
+
+    private final float rotationMatrices[][] = new float[SyntheticImu.SIZE][9];
+    private final float adjusted[] = new float[9];
+    private final float orientation[] = new float[3];
+    private int i;
+
+    @Setup
+    public void setUp() {
+        SyntheticImu imu = new SyntheticImu();
+        float acc[] = new float[3];
+        float mag[] = new float[3];
+        for (int k = 0; k < SyntheticImu.SIZE; k++) {
+            System.arraycopy(imu.acc, k * 3, acc, 0, 3);
+            System.arraycopy(imu.mag, k * 3, mag, 0, 3);
+            RotationMath.getRotationMatrix(rotationMatrices[k], acc, mag);
+        }
+    }
+
+    @Benchmark
+    public float updateOrientation() {
+        i = (i + 1) & SyntheticImu.MASK;
+        // Mirrors the original OrientationFromRotation, which used a fresh array per event
+        float orientation[] = new float[3];
+        PanelOrientation.getOrientation(rotationMatrices[i], displayRotation, adjusted, orientation);
+        return orientation[0] * -57 + orientation[1] * -57 + orientation[2] * -57;
+    }
+
+    @Benchmark
+    public float remapTables() {
+        i = (i + 1) & SyntheticImu.MASK;
+        PanelOrientation.getOrientation(rotationMatrices[i], displayRotation, orientation);
+        return orientation[0] * -57 + orientation[1] * -57 + orientation[2] * -57;
+    }
+}
@@ -0,0 +1,371 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+
+/**
+ * Re-runs fusion over every trace recorded by {@link TraceRecorder} under a directory, one
+ * independent engine per session, spread over a fork-join pool:
+ * <pre>
+ *   Reprocessor &lt;input directory&gt; &lt;output directory&gt; [options]
+ *     --algorithm &lt;name&gt;        fusion algorithm, see Algorithms.NAMES (default complementary)
+ *     --alpha &lt;value&gt;           complementary filter weight of the gyro (default 0.995)
+ *     --sync-rate &lt;hz&gt;          aligns acc/mag with an AccMagSynchronizer at this rate
+ *     --parallelism &lt;n&gt;         worker threads (default: all cores)
+ *     --reorder-window &lt;n&gt;      records held back to restore timestamp order (default 64)
+ * </pre>
+ * A session is a {@code <prefix>-00000.sftrace} segment and its successors, found anywhere
+ * below the input directory. Each session is streamed from disk through a small reorder
+ * window, never loaded whole, and its fused orientation written to
+ * {@code <output>/<relative directory>/<prefix>.csv} (timestamp, w, x, y, z per gyro sample).
+ * {@code <output>/summary.csv} gets one row per session: throughput, sensor health and, if it
+ * failed, why. A failed session does not stop the others; the exit status is 1 if any failed.
+ * Run with {@code ./gradlew :benchmarks:reprocess -PreprocessArgs="uploads/ fused/ --alpha 0.98"}.
+ */
+public class Reprocessor {
+
+    private static final String FIRST_SEGMENT = "-00000" + TraceRecorder.EXTENSION;
+
+    private final File input;
+    private final File output;
+    private final String algorithm;
+    private final Float alpha;
+    private final Float syncRate;
+    private final int reorderWindow;
+
+    Reprocessor(File input, File output, String algorithm, Float alpha, Float syncRate, int reorderWindow) {
+        this.input = input;
+        this.output = output;
+        this.algorithm = algorithm;
+        this.alpha = alpha;
+        this.syncRate = syncRate;
+        this.reorderWindow = reorderWindow;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: Reprocessor <input directory> <output directory> [options], see javadoc");
+            System.exit(2);
+        }
+        String algorithm = option(args, "--algorithm", "complementary");
+        String alpha = option(args, "--alpha", null);
+        String syncRate = option(args, "--sync-rate", null);
+        int parallelism = Integer.parseInt(option(args, "--parallelism",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        int reorderWindow = Integer.parseInt(option(args, "--reorder-window", "64"));
+
+        Reprocessor reprocessor = new Reprocessor(new File(args[0]), new File(args[1]), algorithm,
+                alpha != null ? Float.valueOf(alpha) : null,
+                syncRate != null ? Float.valueOf(syncRate) : null, reorderWindow);
+        // Fail on a bad name or input before spending time on discovery
+        reprocessor.createAlgorithm();
+        if (!new File(args[0]).isDirectory()) {
+            System.err.println("Not a directory: " + args[0]);
+            System.exit(2);
+        }
+
+        List<Session> sessions = reprocessor.findSessions();
+        final long start = System.nanoTime();
+        reprocessor.run(sessions, parallelism);
+        final long elapsed = System.nanoTime() - start;
+
+        reprocessor.writeSummary(sessions);
+        long samples = 0;
+        int failed = 0;
+        for (Session session : sessions) {
+            samples += session.samples;
+            if (session.error != null) failed++;
+        }
+        System.out.println(String.format(Locale.US,
+                "%d sessions (%d failed), %d samples in %.1f s on %d threads: %.0f samples/s",
+                sessions.size(), failed, samples, elapsed * 1e-9, parallelism, samples / (elapsed * 1e-9)));
+        if (failed > 0) System.exit(1);
+    }
+
+    private static String option(String args[], String name, String fallback) {
+        for (int i = 2; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return fallback;
+    }
+
+    FusionAlgorithm createAlgorithm() {
+        if (alpha == null) return Algorithms.create(algorithm);
+        switch (algorithm) {
+            case "complementary":
+                return new ComplementaryFilter(IntegrationMode.EULER, alpha);
+            case "complementary-quaternion":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, alpha);
+            case "complementary-coning":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, alpha, IntegrationScheme.CONING);
+            case "complementary-rk4":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, alpha, IntegrationScheme.RK4);
+            case "complementary-50hz":
+                return new ComplementaryFilter(IntegrationMode.QUATERNION, alpha, IntegrationScheme.FIRST_ORDER,
+                        Algorithms.DECIMATED_CORRECTION_RATE);
+            default:
+                throw new IllegalArgumentException("--alpha only applies to the complementary filters");
+        }
+    }
+
+    /**
+     * @return every session below the input directory, in name order
+     */
+    List<Session> findSessions() {
+        List<Session> sessions = new ArrayList<>();
+        collect(input, "", sessions);
+        Collections.sort(sessions, (a, b) -> a.name.compareTo(b.name));
+        return sessions;
+    }
+
+    private void collect(File directory, String relative, List<Session> sessions) {
+        File files[] = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                collect(file, relative + name + File.separator, sessions);
+            } else if (name.endsWith(FIRST_SEGMENT)) {
+                String prefix = name.substring(0, name.length() - FIRST_SEGMENT.length());
+                sessions.add(new Session(directory, prefix, relative + prefix));
+            }
+        }
+    }
+
+    void run(List<Session> sessions, int parallelism) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Batch(this, sessions, 0, sessions.size()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits the session list in halves until single sessions are left; workers that run
+     * out steal the other halves, so long and short sessions even out.
+     */
+    private static final class Batch extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Reprocessor reprocessor;
+        private final transient List<Session> sessions;
+        private final int from, to;
+
+        Batch(Reprocessor reprocessor, List<Session> sessions, int from, int to) {
+            this.reprocessor = reprocessor;
+            this.sessions = sessions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                // Empty when there are no sessions at all
+                if (to > from) reprocessor.process(sessions.get(from));
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Batch(reprocessor, sessions, from, middle), new Batch(reprocessor, sessions, middle, to));
+        }
+    }
+
+    /**
+     * Runs one session; records what went wrong in it instead of throwing.
+     */
+    void process(Session session) {
+        File file = new File(output, session.name + ".csv");
+        final long start = System.nanoTime();
+        try {
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+            try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+                replay(session, out);
+            }
+        } catch (IOException | RuntimeException e) {
+            session.error = e.toString();
+        }
+        session.elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void replay(Session session, final Writer out) throws IOException {
+        out.write("timestamp,w,x,y,z\n");
+        final StringBuilder row = new StringBuilder();
+        FusionEngine engine = new FusionEngine(createAlgorithm(), new OrientationListener() {
+            @Override
+            public void onOrientation(Orientation orientation, long timestamp) {
+                float q[] = orientation.getQuaternion();
+                row.setLength(0);
+                // Float.toString round trips exactly
+                row.append(timestamp).append(',').append(q[0]).append(',').append(q[1])
+                        .append(',').append(q[2]).append(',').append(q[3]).append('\n');
+                try {
+                    out.append(row);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                session.rows++;
+            }
+        });
+        FusionHealth health = new FusionHealth();
+        engine.setHealth(health);
+        if (syncRate != null) engine.setAccMagSynchronizer(new AccMagSynchronizer(syncRate));
+
+        ReorderWindow window = new ReorderWindow(reorderWindow);
+        try (TraceReader reader = new TraceReader(session.directory, session.prefix)) {
+            while (reader.next()) {
+                session.samples++;
+                if (!window.add(reader.getSensor(), reader.getTimestamp(), reader.getX(), reader.getY(), reader.getZ())) {
+                    session.late++;
+                    continue;
+                }
+                if (window.isFull()) window.emit(engine);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        while (!window.isEmpty()) {
+            window.emit(engine);
+        }
+        session.health = health;
+    }
+
+    void writeSummary(List<Session> sessions) throws IOException {
+        if (!output.isDirectory() && !output.mkdirs()) throw new IOException("Cannot create " + output);
+        try (PrintWriter out = new PrintWriter(new FileWriter(new File(output, "summary.csv")))) {
+            out.println("session,samples,rows,elapsed_ms,samples_per_s,late,gyro_gaps,acc_gaps,mag_gaps,"
+                    + "out_of_order,rejected,error");
+            for (Session session : sessions) {
+                long gaps[] = new long[4];
+                long outOfOrder = 0, rejected = 0;
+                if (session.health != null) {
+                    for (int sensor = FusionEngine.SENSOR_GYROSCOPE; sensor <= FusionEngine.SENSOR_MAGNETOMETER; sensor++) {
+                        SensorHealth.Snapshot snapshot = session.health.get(sensor).snapshot();
+                        gaps[sensor] = snapshot.gaps;
+                        outOfOrder += snapshot.nonMonotonic;
+                        rejected += snapshot.rejected;
+                    }
+                }
+                double seconds = session.elapsedNanos * 1e-9;
+                out.println(String.format(Locale.US, "%s,%d,%d,%.1f,%.0f,%d,%d,%d,%d,%d,%d,%s",
+                        session.name, session.samples, session.rows, seconds * 1e3,
+                        seconds > 0 ? session.samples / seconds : 0, session.late,
+                        gaps[FusionEngine.SENSOR_GYROSCOPE], gaps[FusionEngine.SENSOR_ACCELEROMETER],
+                        gaps[FusionEngine.SENSOR_MAGNETOMETER], outOfOrder, rejected,
+                        session.error == null ? "" : '"' + session.error.replace("\"", "'") + '"'));
+            }
+        }
+    }
+
+    static final class Session {
+
+        final File directory;
+        final String prefix;
+        /* Path below the input directory, and of the output below the output directory */
+        final String name;
+
+        /* Written by the worker that processes the session, read after the pool is done */
+        long samples;
+        long rows;
+        long late;
+        long elapsedNanos;
+        FusionHealth health;
+        String error;
+
+        Session(File directory, String prefix, String name) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The last few records read, kept sorted by timestamp. Sensors are recorded in delivery
+     * order, which interleaves slightly differently from timestamp order; holding back a
+     * window's worth restores it without reading the whole session.
+     */
+    static final class ReorderWindow {
+
+        private final int sensors[];
+        private final long timestamps[];
+        private final float values[];
+        private int size;
+        /* Timestamp of the last record emitted; anything older arrived too late */
+        private long emitted = Long.MIN_VALUE;
+
+        ReorderWindow(int capacity) {
+            if (capacity < 1) throw new IllegalArgumentException("window must hold at least one record");
+            sensors = new int[capacity];
+            timestamps = new long[capacity];
+            values = new float[capacity * 3];
+        }
+
+        /**
+         * @return false if the record is older than one already emitted, and was dropped
+         */
+        boolean add(int sensor, long timestamp, float x, float y, float z) {
+            if (timestamp < emitted) return false;
+            // Insertion from the back, stable for equal timestamps
+            int i = size;
+            while (i > 0 && timestamps[i - 1] > timestamp) {
+                sensors[i] = sensors[i - 1];
+                timestamps[i] = timestamps[i - 1];
+                System.arraycopy(values, 3 * (i - 1), values, 3 * i, 3);
+                i--;
+            }
+            sensors[i] = sensor;
+            timestamps[i] = timestamp;
+            values[3 * i] = x;
+            values[3 * i + 1] = y;
+            values[3 * i + 2] = z;
+            size++;
+            return true;
+        }
+
+        boolean isFull() {
+            return size == sensors.length;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Feeds the oldest record to engine.
+         */
+        void emit(FusionEngine engine) {
+            final float x = values[0], y = values[1], z = values[2];
+            emitted = timestamps[0];
+            switch (sensors[0]) {
+                case FusionEngine.SENSOR_GYROSCOPE:
+                    engine.onGyro(emitted, x, y, z);
+                    break;
+                case FusionEngine.SENSOR_ACCELEROMETER:
+                    engine.onAccelerometer(emitted, x, y, z);
+                    break;
+                case FusionEngine.SENSOR_MAGNETOMETER:
+                    engine.onMagnetometer(emitted, x, y, z);
+                    break;
+            }
+            size--;
+            System.arraycopy(sensors, 1, sensors, 0, size);
+            System.arraycopy(timestamps, 1, timestamps, 0, size);
+            System.arraycopy(values, 3, values, 0, 3 * size);
+        }
+    }
+}
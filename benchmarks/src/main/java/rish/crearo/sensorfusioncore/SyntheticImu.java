@@ -0,0 +1,46 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.Random;
+
+/**
+ * Deterministic gyro/acc/mag samples for the benchmarks: a device slowly wobbling around all
+ * three axes, with a little sensor noise. Values are precomputed so generating them is not
+ * part of what gets measured.
+ */
+final class SyntheticImu {
+
+    /* Power of two so callers can wrap with a mask */
+    static final int SIZE = 1024;
+    static final int MASK = SIZE - 1;
+    /* 400 Hz, the low end of what we run SENSOR_DELAY_FASTEST at */
+    static final long GYRO_PERIOD_NS = 2500000L;
+
+    final float gyro[] = new float[SIZE * 3];
+    final float acc[] = new float[SIZE * 3];
+    final float mag[] = new float[SIZE * 3];
+
+    SyntheticImu() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            double t = i * GYRO_PERIOD_NS * 1e-9;
+            double pitch = 0.4 * Math.sin(2 * Math.PI * 0.5 * t);
+            double roll = 0.3 * Math.sin(2 * Math.PI * 0.3 * t);
+
+            gyro[i * 3] = (float) (0.4 * 2 * Math.PI * 0.5 * Math.cos(2 * Math.PI * 0.5 * t) + noise(random, 0.01));
+            gyro[i * 3 + 1] = (float) (0.3 * 2 * Math.PI * 0.3 * Math.cos(2 * Math.PI * 0.3 * t) + noise(random, 0.01));
+            gyro[i * 3 + 2] = (float) noise(random, 0.01);
+
+            // Gravity and a northward, downward tilted field seen from the tilted device
+            acc[i * 3] = (float) (9.81 * Math.sin(roll) + noise(random, 0.05));
+            acc[i * 3 + 1] = (float) (9.81 * Math.sin(pitch) + noise(random, 0.05));
+            acc[i * 3 + 2] = (float) (9.81 * Math.cos(pitch) * Math.cos(roll) + noise(random, 0.05));
+            mag[i * 3] = (float) (2.0 * Math.cos(roll) + noise(random, 0.3));
+            mag[i * 3 + 1] = (float) (22.0 * Math.cos(pitch) + noise(random, 0.3));
+            mag[i * 3 + 2] = (float) (-40.0 + noise(random, 0.3));
+        }
+    }
+
+    private static double noise(Random random, double sigma) {
+        return random.nextGaussian() * sigma;
+    }
+}
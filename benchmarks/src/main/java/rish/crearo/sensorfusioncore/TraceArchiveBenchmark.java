@@ -0,0 +1,156 @@
+package rish.crearo.sensorfusioncore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding cost per record of {@link TraceArchiveWriter}/{@link TraceArchiveReader}
+ * on a synthetic session: gyro at 400 Hz, acc at 200 Hz, mag at 100 Hz, with timestamp jitter.
+ * Setup prints the archive's size per record, against {@link TraceRecorder#RECORD_SIZE} for
+ * the raw trace; {@link TraceArchiver} reports the same for a real trace.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class TraceArchiveBenchmark {
+
+    /* A bit under 11 s of recording */
+    private static final int RECORDS = 8192;
+    private static final int SEEK_READ = 64;
+
+    @Param({"quantized", "lossless"})
+    public String steps;
+
+    private final int sensors[] = new int[RECORDS];
+    private final long timestamps[] = new long[RECORDS];
+    private final float values[] = new float[RECORDS * 3];
+    private float gyroStep, accStep, magStep;
+    private File archive;
+    private TraceArchiveReader seekReader;
+    private final Random random = new Random(3);
+
+    @Setup
+    public void setUp() throws IOException {
+        SyntheticImu imu = new SyntheticImu();
+        Random jitter = new Random(7);
+        for (int i = 0, gyro = 0; i < RECORDS; gyro++) {
+            final long timestamp = gyro * SyntheticImu.GYRO_PERIOD_NS;
+            final int j = gyro & SyntheticImu.MASK;
+            i = add(i, FusionEngine.SENSOR_GYROSCOPE, timestamp, jitter, imu.gyro, j);
+            if (gyro % 2 == 0) i = add(i, FusionEngine.SENSOR_ACCELEROMETER, timestamp, jitter, imu.acc, j);
+            if (gyro % 4 == 0) i = add(i, FusionEngine.SENSOR_MAGNETOMETER, timestamp, jitter, imu.mag, j);
+        }
+        if (steps.equals("quantized")) {
+            gyroStep = TraceArchiveWriter.DEFAULT_GYRO_STEP;
+            accStep = TraceArchiveWriter.DEFAULT_ACC_STEP;
+            magStep = TraceArchiveWriter.DEFAULT_MAG_STEP;
+        }
+
+        archive = File.createTempFile("benchmark", TraceArchiveWriter.EXTENSION);
+        try (TraceArchiveWriter writer = new TraceArchiveWriter(archive, TraceArchiveWriter.DEFAULT_CHUNK_SIZE,
+                gyroStep, accStep, magStep)) {
+            write(writer);
+        }
+        System.out.println(String.format(Locale.US, "%n%s archive: %.2f bytes/record, raw trace %d",
+                steps, archive.length() / (double) RECORDS, TraceRecorder.RECORD_SIZE));
+        seekReader = new TraceArchiveReader(archive);
+    }
+
+    private int add(int i, int sensor, long timestamp, Random jitter, float source[], int j) {
+        if (i == RECORDS) return i;
+        sensors[i] = sensor;
+        timestamps[i] = timestamp + jitter.nextInt(40000) - 20000;
+        System.arraycopy(source, j * 3, values, i * 3, 3);
+        return i + 1;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        seekReader.close();
+        archive.delete();
+    }
+
+    private void write(TraceArchiveWriter writer) throws IOException {
+        for (int i = 0; i < RECORDS; i++) {
+            writer.record(sensors[i], timestamps[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2], 3);
+        }
+    }
+
+    /**
+     * Into memory, so the file system is not part of it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long encode() throws IOException {
+        NullOutputStream out = new NullOutputStream();
+        try (TraceArchiveWriter writer = new TraceArchiveWriter(out, TraceArchiveWriter.DEFAULT_CHUNK_SIZE,
+                gyroStep, accStep, magStep)) {
+            write(writer);
+        }
+        return out.size;
+    }
+
+    /**
+     * From the page cache, opening included.
+     */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public float decode() throws IOException {
+        float sum = 0;
+        try (TraceArchiveReader reader = new TraceArchiveReader(archive)) {
+            while (reader.next()) {
+                sum += reader.getX();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Seeks to a random time and reads a few records: an index lookup and a chunk per sensor.
+     */
+    @Benchmark
+    public float seek() throws IOException {
+        seekReader.seek(timestamps[random.nextInt(RECORDS - SEEK_READ)]);
+        float sum = 0;
+        for (int i = 0; i < SEEK_READ && seekReader.next(); i++) {
+            sum += seekReader.getX();
+        }
+        return sum;
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+
+        long size;
+
+        @Override
+        public void write(int b) {
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+        }
+    }
+}
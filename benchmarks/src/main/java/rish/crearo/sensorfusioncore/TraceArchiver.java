@@ -0,0 +1,130 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Converts a trace written by {@link TraceRecorder} into a {@link TraceArchiveWriter} archive,
+ * reads it back against the original and reports size, speed and quantization error:
+ * <pre>
+ *   TraceArchiver &lt;directory&gt; &lt;prefix&gt; &lt;archive&gt; [options]
+ *     --chunk-size &lt;n&gt;          samples per chunk and sensor (default 1024)
+ *     --gyro-step &lt;value&gt;       quantization steps, 0 for lossless (defaults in TraceArchiveWriter)
+ *     --acc-step &lt;value&gt;
+ *     --mag-step &lt;value&gt;
+ * </pre>
+ * Exits with status 1 if the archive does not give back the same records in the same order,
+ * each value within half a step. Run with
+ * {@code ./gradlew :benchmarks:archive -ParchiveArgs="trace/ session session.sfarchive"}.
+ */
+public class TraceArchiver {
+
+    private static final String SENSOR_NAMES[] = {"gyro", "acc", "mag"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: TraceArchiver <directory> <prefix> <archive> [options], see javadoc");
+            System.exit(2);
+        }
+        File directory = new File(args[0]);
+        String prefix = args[1];
+        File archive = new File(args[2]);
+        int chunkSize = Integer.parseInt(option(args, "--chunk-size",
+                Integer.toString(TraceArchiveWriter.DEFAULT_CHUNK_SIZE)));
+        float gyroStep = Float.parseFloat(option(args, "--gyro-step",
+                Float.toString(TraceArchiveWriter.DEFAULT_GYRO_STEP)));
+        float accStep = Float.parseFloat(option(args, "--acc-step",
+                Float.toString(TraceArchiveWriter.DEFAULT_ACC_STEP)));
+        float magStep = Float.parseFloat(option(args, "--mag-step",
+                Float.toString(TraceArchiveWriter.DEFAULT_MAG_STEP)));
+
+        long traceBytes = 0;
+        for (int i = 0; TraceRecorder.segmentFile(directory, prefix, i).isFile(); i++) {
+            traceBytes += TraceRecorder.segmentFile(directory, prefix, i).length();
+        }
+
+        long start = System.nanoTime();
+        long records;
+        try (TraceReader reader = new TraceReader(directory, prefix);
+             TraceArchiveWriter writer = new TraceArchiveWriter(archive, chunkSize, gyroStep, accStep, magStep)) {
+            records = writer.append(reader);
+        }
+        final long encodeNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        try (TraceArchiveReader reader = new TraceArchiveReader(archive)) {
+            while (reader.next()) {
+                // Decode only
+            }
+        }
+        final long decodeNs = System.nanoTime() - start;
+
+        final long archiveBytes = archive.length();
+        System.out.println(String.format(Locale.US,
+                "%d records: trace %d bytes, archive %d bytes (%.2f bytes/record), ratio %.2f",
+                records, traceBytes, archiveBytes, archiveBytes / (double) records,
+                traceBytes / (double) archiveBytes));
+        System.out.println(String.format(Locale.US,
+                "encode %.0f records/s (including reading the trace), decode %.0f records/s",
+                records / (encodeNs * 1e-9), records / (decodeNs * 1e-9)));
+
+        if (!verify(directory, prefix, archive)) System.exit(1);
+    }
+
+    private static boolean verify(File directory, String prefix, File archive) throws IOException {
+        double maxError[] = new double[3];
+        long outOfStep[] = new long[3];
+        try (TraceReader expected = new TraceReader(directory, prefix);
+             TraceArchiveReader actual = new TraceArchiveReader(archive)) {
+            long record = 0;
+            while (expected.next()) {
+                if (!actual.next()) {
+                    System.out.println("FAIL: archive ends at record " + record);
+                    return false;
+                }
+                if (actual.getSensor() != expected.getSensor()
+                        || actual.getTimestamp() != expected.getTimestamp()
+                        || actual.getAccuracy() != expected.getAccuracy()) {
+                    System.out.println(String.format(Locale.US,
+                            "FAIL: record %d is sensor %d at %d, expected sensor %d at %d", record,
+                            actual.getSensor(), actual.getTimestamp(), expected.getSensor(), expected.getTimestamp()));
+                    return false;
+                }
+                final int s = expected.getSensor() - 1;
+                final double error = Math.max(error(actual.getX(), expected.getX()),
+                        Math.max(error(actual.getY(), expected.getY()), error(actual.getZ(), expected.getZ())));
+                maxError[s] = Math.max(maxError[s], error);
+                // Half a step, plus float rounding in quantizing and scaling back
+                final float magnitude = Math.max(Math.abs(expected.getX()),
+                        Math.max(Math.abs(expected.getY()), Math.abs(expected.getZ())));
+                if (error > actual.getStep(s + 1) * 0.5 + 4 * Math.ulp(magnitude)) outOfStep[s]++;
+                record++;
+            }
+            if (actual.next()) {
+                System.out.println("FAIL: archive has more than " + record + " records");
+                return false;
+            }
+
+            boolean pass = true;
+            for (int s = 0; s < 3; s++) {
+                System.out.println(String.format(Locale.US, "%-4s step %g, max error %g%s", SENSOR_NAMES[s],
+                        actual.getStep(s + 1), maxError[s],
+                        outOfStep[s] == 0 ? "" : "  FAIL: " + outOfStep[s] + " records off by more than half a step"));
+                pass &= outOfStep[s] == 0;
+            }
+            return pass;
+        }
+    }
+
+    private static double error(float actual, float expected) {
+        return Math.abs((double) actual - expected);
+    }
+
+    private static String option(String args[], String name, String fallback) {
+        for (int i = 3; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return fallback;
+    }
+}
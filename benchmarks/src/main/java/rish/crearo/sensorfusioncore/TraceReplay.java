@@ -0,0 +1,371 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+
+/**
+ * Replays a trace written by {@link TraceRecorder} through the fusion code on a plain JVM,
+ * deterministically, and reports throughput:
+ * <pre>
+ *   TraceReplay &lt;directory&gt; &lt;prefix&gt; [options]
+ *     --pipeline fusion|panel   FusionEngine (default), or the acc/mag rotation matrix and
+ *                               panel orientation path of RotationSensor/OrientationFromRotation
+ *     --algorithm &lt;name&gt;        fusion algorithm, see Algorithms.NAMES (default complementary)
+ *     --sync-rate &lt;hz&gt;          aligns acc/mag with an AccMagSynchronizer at this rate
+ *     --display-rotation &lt;n&gt;    Surface.ROTATION_* for the panel pipeline (default 0)
+ *     --predict &lt;ms&gt;            fusion only: grades an OrientationPredictor at this lead time
+ *     --realtime                paces samples by their timestamps instead of running flat out
+ *     --output &lt;file&gt;           writes the trajectory as csv
+ *     --golden &lt;file&gt;           fails unless the trajectory matches this csv
+ *     --tolerance &lt;degrees&gt;     allowed deviation from the golden trajectory (default 0.01)
+ *     --min-rate &lt;samples/s&gt;    fails if throughput is below this
+ * </pre>
+ * Samples are replayed in timestamp order; sensors are recorded in delivery order, which can
+ * interleave slightly differently. The trajectory is one row per gyro sample (w, x, y, z) for
+ * fusion, one per accelerometer sample (azimuth, pitch, roll) for panel. Exits with status 1
+ * when a check fails, for CI. Run with
+ * {@code ./gradlew :benchmarks:replay -PreplayArgs="trace/ session --golden golden.csv"}.
+ */
+public class TraceReplay {
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+
+    /* Whole trace in timestamp order */
+    private int count;
+    private int sensors[] = new int[4096];
+    private long timestamps[] = new long[4096];
+    private float values[] = new float[3 * 4096];
+
+    /* Output, one row of width columns per step */
+    private int rows;
+    private int width;
+    private long rowTimestamps[];
+    private float rowValues[];
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: TraceReplay <directory> <prefix> [options], see javadoc");
+            System.exit(2);
+        }
+        String pipeline = option(args, "--pipeline", "fusion");
+        String algorithm = option(args, "--algorithm", "complementary");
+        String syncRate = option(args, "--sync-rate", null);
+        int displayRotation = Integer.parseInt(option(args, "--display-rotation", "0"));
+        boolean realtime = Arrays.asList(args).contains("--realtime");
+        String output = option(args, "--output", null);
+        String golden = option(args, "--golden", null);
+        double tolerance = Math.toRadians(Double.parseDouble(option(args, "--tolerance", "0.01")));
+        String minRate = option(args, "--min-rate", null);
+        String predict = option(args, "--predict", null);
+
+        TraceReplay replay = new TraceReplay();
+        replay.load(new File(args[0]), args[1]);
+
+        OrientationPredictor predictor = null;
+        if (predict != null) {
+            long leadNs = (long) (Double.parseDouble(predict) * 1e6);
+            predictor = new OrientationPredictor(Math.max(leadNs, OrientationPredictor.DEFAULT_MAX_HORIZON_NS));
+            predictor.setErrorHorizon(leadNs);
+        }
+
+        long elapsed;
+        switch (pipeline) {
+            case "fusion":
+                elapsed = replay.runFusion(Algorithms.create(algorithm),
+                        syncRate != null ? new AccMagSynchronizer(Float.parseFloat(syncRate)) : null,
+                        predictor, realtime);
+                break;
+            case "panel":
+                elapsed = replay.runPanel(displayRotation, realtime);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pipeline " + pipeline);
+        }
+
+        double rate = replay.count / (elapsed * 1e-9);
+        System.out.println(String.format(Locale.US, "%d samples, %d output rows in %.1f ms: %.0f samples/s",
+                replay.count, replay.rows, elapsed * 1e-6, rate));
+        if (predictor != null) System.out.println("prediction " + predict + " ms: " + predictor.getError());
+
+        if (output != null) replay.write(new File(output));
+
+        boolean ok = true;
+        if (golden != null) {
+            String error = replay.compare(new File(golden), tolerance);
+            System.out.println(error == null ? "trajectory matches " + golden : "MISMATCH: " + error);
+            ok = error == null;
+        }
+        if (minRate != null && rate < Double.parseDouble(minRate)) {
+            System.out.println(String.format(Locale.US, "TOO SLOW: %.0f samples/s, expected at least %s", rate, minRate));
+            ok = false;
+        }
+        if (!ok) System.exit(1);
+    }
+
+    private static String option(String args[], String name, String fallback) {
+        for (int i = 2; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return fallback;
+    }
+
+    void load(File directory, String prefix) throws IOException {
+        try (TraceReader reader = new TraceReader(directory, prefix)) {
+            while (reader.next()) {
+                if (count == sensors.length) {
+                    sensors = Arrays.copyOf(sensors, 2 * count);
+                    timestamps = Arrays.copyOf(timestamps, 2 * count);
+                    values = Arrays.copyOf(values, 6 * count);
+                }
+                sensors[count] = reader.getSensor();
+                timestamps[count] = reader.getTimestamp();
+                values[3 * count] = reader.getX();
+                values[3 * count + 1] = reader.getY();
+                values[3 * count + 2] = reader.getZ();
+                count++;
+            }
+        }
+        sortByTimestamp();
+    }
+
+    /**
+     * Stable insertion sort: the trace is already nearly in order, so this is close to linear.
+     */
+    private void sortByTimestamp() {
+        for (int i = 1; i < count; i++) {
+            long ts = timestamps[i];
+            if (ts >= timestamps[i - 1]) continue;
+            int sensor = sensors[i];
+            float x = values[3 * i], y = values[3 * i + 1], z = values[3 * i + 2];
+            int j = i;
+            while (j > 0 && timestamps[j - 1] > ts) {
+                timestamps[j] = timestamps[j - 1];
+                sensors[j] = sensors[j - 1];
+                System.arraycopy(values, 3 * (j - 1), values, 3 * j, 3);
+                j--;
+            }
+            timestamps[j] = ts;
+            sensors[j] = sensor;
+            values[3 * j] = x;
+            values[3 * j + 1] = y;
+            values[3 * j + 2] = z;
+        }
+    }
+
+    private void allocateRows(int sensor, int width) {
+        int capacity = 0;
+        for (int i = 0; i < count; i++) {
+            if (sensors[i] == sensor) capacity++;
+        }
+        this.width = width;
+        rows = 0;
+        rowTimestamps = new long[capacity];
+        rowValues = new float[capacity * width];
+    }
+
+    /**
+     * @param synchronizer null to feed acc/mag as recorded
+     * @param predictor    null for none
+     * @return nanoseconds spent replaying
+     */
+    long runFusion(FusionAlgorithm algorithm, AccMagSynchronizer synchronizer,
+                   OrientationPredictor predictor, boolean realtime) {
+        allocateRows(FusionEngine.SENSOR_GYROSCOPE, 4);
+        FusionEngine engine = new FusionEngine(algorithm, new OrientationListener() {
+            @Override
+            public void onOrientation(Orientation orientation, long timestamp) {
+                rowTimestamps[rows] = timestamp;
+                System.arraycopy(orientation.getQuaternion(), 0, rowValues, rows * 4, 4);
+                rows++;
+            }
+        });
+        engine.setAccMagSynchronizer(synchronizer);
+        engine.setPredictor(predictor);
+
+        final long start = System.nanoTime();
+        for (int i = 0, v = 0; i < count; i++, v += 3) {
+            if (realtime) pace(start, i);
+            switch (sensors[i]) {
+                case FusionEngine.SENSOR_GYROSCOPE:
+                    engine.onGyro(timestamps[i], values[v], values[v + 1], values[v + 2]);
+                    break;
+                case FusionEngine.SENSOR_ACCELEROMETER:
+                    engine.onAccelerometer(timestamps[i], values[v], values[v + 1], values[v + 2]);
+                    break;
+                case FusionEngine.SENSOR_MAGNETOMETER:
+                    engine.onMagnetometer(timestamps[i], values[v], values[v + 1], values[v + 2]);
+                    break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Feeds the trace straight into algorithm, without an engine, listeners or output, to
+     * time the algorithm on its own.
+     *
+     * @return nanoseconds spent replaying
+     */
+    long runAlgorithm(FusionAlgorithm algorithm) {
+        long previousGyro = 0;
+        final long start = System.nanoTime();
+        for (int i = 0, v = 0; i < count; i++, v += 3) {
+            switch (sensors[i]) {
+                case FusionEngine.SENSOR_GYROSCOPE:
+                    final float dt = previousGyro != 0 ? (timestamps[i] - previousGyro) * NS2S : 0;
+                    previousGyro = timestamps[i];
+                    algorithm.updateGyro(dt, values[v], values[v + 1], values[v + 2]);
+                    break;
+                case FusionEngine.SENSOR_ACCELEROMETER:
+                    algorithm.updateAccelerometer(values[v], values[v + 1], values[v + 2]);
+                    break;
+                case FusionEngine.SENSOR_MAGNETOMETER:
+                    algorithm.updateMagnetometer(values[v], values[v + 1], values[v + 2]);
+                    break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return nanoseconds spent replaying
+     */
+    long runPanel(int displayRotation, boolean realtime) {
+        allocateRows(FusionEngine.SENSOR_ACCELEROMETER, 3);
+        float acc[] = new float[3];
+        float mag[] = new float[3];
+        float rotationMatrix[] = new float[9];
+        float adjusted[] = new float[9];
+        float orientation[] = new float[3];
+
+        final long start = System.nanoTime();
+        for (int i = 0, v = 0; i < count; i++, v += 3) {
+            if (realtime) pace(start, i);
+            switch (sensors[i]) {
+                case FusionEngine.SENSOR_MAGNETOMETER:
+                    System.arraycopy(values, v, mag, 0, 3);
+                    break;
+                case FusionEngine.SENSOR_ACCELEROMETER:
+                    System.arraycopy(values, v, acc, 0, 3);
+                    RotationMath.getRotationMatrix(rotationMatrix, acc, mag);
+                    PanelOrientation.getOrientation(rotationMatrix, displayRotation, adjusted, orientation);
+                    rowTimestamps[rows] = timestamps[i];
+                    System.arraycopy(orientation, 0, rowValues, rows * 3, 3);
+                    rows++;
+                    break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Waits until as much wall time has passed since start as sensor time since the first sample.
+     */
+    private void pace(long start, int i) {
+        long due = start + (timestamps[i] - timestamps[0]);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println(width == 4 ? "timestamp,w,x,y,z" : "timestamp,azimuth,pitch,roll");
+            StringBuilder row = new StringBuilder();
+            for (int r = 0; r < rows; r++) {
+                row.setLength(0);
+                row.append(rowTimestamps[r]);
+                for (int c = 0; c < width; c++) {
+                    // Float.toString round trips exactly
+                    row.append(',').append(rowValues[r * width + c]);
+                }
+                out.println(row);
+            }
+        }
+    }
+
+    /**
+     * @return null if every row matches the golden file within tolerance radians, otherwise
+     * what differs first
+     */
+    String compare(File golden, double tolerance) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(golden))) {
+            in.readLine(); // header
+            float expected[] = new float[width];
+            double worst = 0;
+            int r = 0;
+            String line;
+            for (; (line = in.readLine()) != null; r++) {
+                if (r == rows) return "golden has more than " + rows + " rows";
+                String fields[] = line.split(",");
+                if (fields.length != width + 1) return "golden row " + r + " has " + fields.length + " columns";
+                if (Long.parseLong(fields[0]) != rowTimestamps[r]) return "timestamps differ at row " + r;
+                for (int c = 0; c < width; c++) {
+                    expected[c] = Float.parseFloat(fields[c + 1]);
+                }
+                double error = width == 4 ? quaternionAngle(expected, r) : eulerError(expected, r);
+                if (error > tolerance) {
+                    return String.format(Locale.US, "row %d (t=%.3f s) off by %.4f degrees", r,
+                            (rowTimestamps[r] - rowTimestamps[0]) * NS2S, Math.toDegrees(error));
+                }
+                worst = Math.max(worst, error);
+            }
+            if (r != rows) return "golden has " + r + " rows, replay produced " + rows;
+            System.out.println(String.format(Locale.US, "largest deviation %.6f degrees", Math.toDegrees(worst)));
+            return null;
+        }
+    }
+
+    /**
+     * @return fusion only: rotation angle in radians between output row r of this replay and
+     * the same row of other
+     */
+    double angleTo(TraceReplay other, int r) {
+        return quaternionAngle(other.rowValues, r * 4, rowValues, r * 4);
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    private double quaternionAngle(float expected[], int r) {
+        return quaternionAngle(expected, 0, rowValues, r * 4);
+    }
+
+    /**
+     * Rotation angle between the quaternions at a[i] and b[j]. Goes through the chord between
+     * the two rather than acos of their dot product, which is too coarse near zero in float.
+     */
+    private static double quaternionAngle(float a[], int i, float b[], int j) {
+        double minus = 0, plus = 0;
+        for (int c = 0; c < 4; c++) {
+            double u = a[i + c], v = b[j + c];
+            minus += (u - v) * (u - v);
+            plus += (u + v) * (u + v);
+        }
+        double chord = Math.sqrt(Math.min(minus, plus));
+        return 4 * Math.asin(Math.min(1, chord / 2));
+    }
+
+    /**
+     * Largest difference between the angles of expected and row r, wrapped to [0, pi].
+     */
+    private double eulerError(float expected[], int r) {
+        double error = 0;
+        for (int c = 0; c < 3; c++) {
+            double d = Math.abs(expected[c] - rowValues[r * 3 + c]) % (2 * Math.PI);
+            error = Math.max(error, Math.min(d, 2 * Math.PI - d));
+        }
+        return error;
+    }
+}
@@ -0,0 +1,247 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * Aligns accelerometer and magnetometer samples on a common time grid, so acc/mag orientation
+ * is computed from values taken at the same instant, at a fixed rate, instead of from each
+ * accelerometer sample and whatever magnetometer sample came last.
+ * <p>
+ * Both sensors keep a queue of the samples from the next grid tick on. Once both have reached
+ * that tick, each is linearly interpolated to it and the pair is handed out:
+ * <pre>
+ *   sync.addAccelerometer(timestamp, x, y, z);
+ *   while (sync.next()) use(sync.getTimestamp(), sync.getAccelerometer(), sync.getMagnetometer());
+ * </pre>
+ * If one sensor falls silent for longer than maxLatency, ticks go on with its last value held.
+ * After a gap in both, the grid skips ahead instead of replaying the missed ticks.
+ * <p>
+ * Samples of a FIFO burst may be added in delivery order, all of one sensor and then all of
+ * the other, as long as next() is only called once the burst is in: a queue grows to hold
+ * whatever one sensor runs ahead, rather than dropping samples a tick still needs. Allocation
+ * free once the queues have grown to that; not thread safe.
+ */
+public class AccMagSynchronizer {
+
+    /* Samples per sensor before a queue first has to grow: 100 ms at 1 kHz, plus slack */
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+    public static final long DEFAULT_MAX_LATENCY_NS = 100000000L;
+
+    private final long periodNs;
+    private final long maxLatencyNs;
+    private final Queue acc;
+    private final Queue mag;
+
+    /* -1 until both sensors have delivered */
+    private long nextTick = -1;
+
+    private long timestamp;
+    private final float accValues[] = new float[3];
+    private final float magValues[] = new float[3];
+
+    /**
+     * @param rateHz aligned pairs per second
+     */
+    public AccMagSynchronizer(float rateHz) {
+        this(rateHz, DEFAULT_MAX_LATENCY_NS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param maxLatencyNs  how long to wait for a lagging sensor before holding its last value
+     * @param queueCapacity samples per sensor to allocate for up front; a full queue drops the
+     *                      samples no tick needs any more, and grows if that is not enough
+     */
+    public AccMagSynchronizer(float rateHz, long maxLatencyNs, int queueCapacity) {
+        if (rateHz <= 0) throw new IllegalArgumentException("rateHz must be positive");
+        if (queueCapacity < 2) throw new IllegalArgumentException("queueCapacity must be at least 2");
+        this.periodNs = (long) (1000000000.0 / rateHz);
+        this.maxLatencyNs = maxLatencyNs;
+        this.acc = new Queue(queueCapacity);
+        this.mag = new Queue(queueCapacity);
+    }
+
+    public void addAccelerometer(long timestamp, float x, float y, float z) {
+        acc.add(timestamp, x, y, z, neededFrom(timestamp));
+    }
+
+    public void addMagnetometer(long timestamp, float x, float y, float z) {
+        mag.add(timestamp, x, y, z, neededFrom(timestamp));
+    }
+
+    /**
+     * Oldest time a tick may still be interpolated at: the next tick, or before the first
+     * one, as far back as the other sensor may still turn up with.
+     */
+    private long neededFrom(long timestamp) {
+        return nextTick != -1 ? nextTick : timestamp - maxLatencyNs;
+    }
+
+    /**
+     * Moves on to the next aligned pair, if both sensors have caught up with it.
+     *
+     * @return false if there is none yet
+     */
+    public boolean next() {
+        if (acc.count == 0 || mag.count == 0) return false;
+        final long accNewest = acc.newest();
+        final long magNewest = mag.newest();
+        if (nextTick == -1) {
+            nextTick = Math.max(acc.oldest(), mag.oldest());
+        }
+
+        final long behind = Math.min(accNewest, magNewest);
+        final long ahead = Math.max(accNewest, magNewest);
+        if (behind < nextTick) {
+            // Wait for the lagging sensor, unless it has been silent for too long
+            if (ahead - nextTick < maxLatencyNs || ahead < nextTick) return false;
+        } else {
+            // Both resumed after a gap: skip the ticks in between. Judged by the first samples
+            // after the tick, not the newest, which may just be the end of a long burst
+            final long resumed = Math.max(acc.firstAfter(nextTick), mag.firstAfter(nextTick));
+            if (resumed - nextTick > maxLatencyNs) {
+                nextTick += (resumed - nextTick + periodNs - 1) / periodNs * periodNs;
+            }
+        }
+
+        timestamp = nextTick;
+        nextTick += periodNs;
+        acc.interpolate(timestamp, accValues);
+        mag.interpolate(timestamp, magValues);
+        return true;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return accelerometer x, y, z at {@link #getTimestamp()}; overwritten by the next call to next()
+     */
+    public float[] getAccelerometer() {
+        return accValues;
+    }
+
+    /**
+     * @return magnetometer x, y, z at {@link #getTimestamp()}; overwritten by the next call to next()
+     */
+    public float[] getMagnetometer() {
+        return magValues;
+    }
+
+    public long getPeriodNs() {
+        return periodNs;
+    }
+
+    public void reset() {
+        acc.clear();
+        mag.clear();
+        nextTick = -1;
+    }
+
+    /**
+     * Ring of the samples of one sensor still needed, oldest first.
+     */
+    private static final class Queue {
+
+        long timestamps[];
+        float values[];
+        int first;
+        int count;
+
+        Queue(int capacity) {
+            timestamps = new long[capacity];
+            values = new float[capacity * 3];
+        }
+
+        /**
+         * @param neededFrom samples up to the one at or preceding this time may be dropped to
+         *                   make room
+         */
+        void add(long timestamp, float x, float y, float z, long neededFrom) {
+            if (count > 0 && timestamp <= newest()) return; // out of order or duplicate
+            if (count == timestamps.length) {
+                discardBefore(neededFrom);
+                if (count == timestamps.length) grow();
+            }
+            final int i = (first + count) % timestamps.length;
+            timestamps[i] = timestamp;
+            values[i * 3] = x;
+            values[i * 3 + 1] = y;
+            values[i * 3 + 2] = z;
+            count++;
+        }
+
+        void clear() {
+            first = 0;
+            count = 0;
+        }
+
+        /**
+         * Doubles the capacity, keeping the queued samples; the first sample moves to index 0.
+         */
+        private void grow() {
+            final int capacity = timestamps.length;
+            long grownTimestamps[] = new long[capacity * 2];
+            float grownValues[] = new float[capacity * 6];
+            final int head = capacity - first;
+            System.arraycopy(timestamps, first, grownTimestamps, 0, head);
+            System.arraycopy(timestamps, 0, grownTimestamps, head, first);
+            System.arraycopy(values, first * 3, grownValues, 0, head * 3);
+            System.arraycopy(values, 0, grownValues, head * 3, first * 3);
+            timestamps = grownTimestamps;
+            values = grownValues;
+            first = 0;
+        }
+
+        /**
+         * Drops the samples before the one at or preceding t.
+         */
+        private void discardBefore(long t) {
+            final int capacity = timestamps.length;
+            while (count > 1 && timestamps[(first + 1) % capacity] <= t) {
+                first = (first + 1) % capacity;
+                count--;
+            }
+        }
+
+        /**
+         * @return the timestamp of the first sample after t, t if there is none
+         */
+        long firstAfter(long t) {
+            final int capacity = timestamps.length;
+            for (int n = 0; n < count; n++) {
+                final long timestamp = timestamps[(first + n) % capacity];
+                if (timestamp > t) return timestamp;
+            }
+            return t;
+        }
+
+        long oldest() {
+            return timestamps[first];
+        }
+
+        long newest() {
+            return timestamps[(first + count - 1) % timestamps.length];
+        }
+
+        /**
+         * Linear interpolation at t, holding the first/last value outside the queued range.
+         * Drops the samples that no later t can need.
+         */
+        void interpolate(long t, float out[]) {
+            final int capacity = timestamps.length;
+            // Samples before the one at or preceding t are no longer needed, ticks only go up
+            discardBefore(t);
+            final int a = first;
+            if (count == 1 || t <= timestamps[a]) {
+                out[0] = values[a * 3];
+                out[1] = values[a * 3 + 1];
+                out[2] = values[a * 3 + 2];
+                return;
+            }
+            final int b = (a + 1) % capacity;
+            final float f = (float) (t - timestamps[a]) / (float) (timestamps[b] - timestamps[a]);
+            out[0] = values[a * 3] + f * (values[b * 3] - values[a * 3]);
+            out[1] = values[a * 3 + 1] + f * (values[b * 3 + 1] - values[a * 3 + 1]);
+            out[2] = values[a * 3 + 2] + f * (values[b * 3 + 2] - values[a * 3 + 2]);
+        }
+    }
+}
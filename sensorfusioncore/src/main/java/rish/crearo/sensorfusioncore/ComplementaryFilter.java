@@ -0,0 +1,418 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusioncore.math.Mat3;
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * The original fusion algorithm of this library: gyro integration blended with the acc/mag
+ * orientation as {@code fused = alpha * gyro + (1 - alpha) * accMag} on every gyro sample.
+ * <p>
+ * Orientation is relative to where the device was at the first sample. Gyro samples are
+ * integrated either per axis into Euler angles (the original behaviour) or into quaternions,
+ * see {@link IntegrationMode}. In quaternion mode the acc/mag reference is the rotation since
+ * the first acc/mag fix, and the blend is a normalized lerp between quaternions.
+ * <p>
+ * Each gyro step uses the current sample's rate unless a higher order
+ * {@link IntegrationScheme} is given, which keeps drift down at lower gyro rates.
+ * <p>
+ * The acc/mag correction can run at a lower rate than the gyro, see the correction rate
+ * constructor argument. Gyro integration stays at the full rate either way.
+ */
+public class ComplementaryFilter implements RestorableAlgorithm {
+
+    public static final float DEFAULT_ALPHA = 0.995f;
+
+    private static final int STATE_TYPE_EULER = 1;
+    private static final int STATE_TYPE_QUATERNION = 2;
+    /* hasAccMagPrevOrientation, accMagPrevOrientation, then the four trajectories */
+    private static final int EULER_STATE_SIZE = 1 + 3 + 4 * 3;
+    /* raw and corrected gyro, first and current acc/mag quaternions, hasAccMagQuaternion */
+    private static final int QUATERNION_STATE_SIZE = 4 * 4 + 1;
+
+    /**
+     * This is the absolute difference in sensor values from the previously recorded reading.
+     * For gyroscope, it is simply the integration of angular velocity (angVel * dT)
+     * For acc/mag, it is the difference in orientation angles (YPR) obtained using
+     * Mat3.toOrientation(rotationMatrix) between current and prev orientations
+     **/
+    private final float gyroDiff[] = new float[3];
+    private final float accMagDiff[] = new float[3];
+
+    /**
+     * Latest accelerometer and magnetometer samples, valid once the first one has arrived
+     */
+    private final float accData[] = new float[3], magData[] = new float[3];
+    private boolean hasAccData, hasMagData;
+
+    /**
+     * Stores YPR(in that order) of the fused magnetometer and accelerometer obtained by calling
+     * Mat3.fromGravityAndField(acc, mag), and then passing the rotation matrix received to
+     * Mat3.toOrientation(rot).
+     */
+    private final float accMagPrevOrientation[] = new float[3];
+    private boolean hasAccMagPrevOrientation;
+    private final float accMagOrientation[] = new float[3];
+
+    /* temp variable storing rotation matrix */
+    private final float accMagRotationMatrix[] = new float[9];
+
+    /* pitch, roll, yaw (x, y, z) */
+    private final float accMagTrajectory[] = new float[3];
+    private final float gyroTrajectoryCorrected[] = new float[3];
+    private final float gyroTrajectoryRaw[] = new float[3];
+    private final float fusedTrajectory[] = new float[3];
+
+    /* Quaternion mode state, (w, x, y, z) */
+    private final IntegrationMode integrationMode;
+    private final QuaternionIntegrator gyroQuaternionRaw;
+    private final QuaternionIntegrator gyroQuaternionCorrected;
+    private final float accMagQuaternion[] = {1, 0, 0, 0};
+    private final float accMagFirstQuaternion[] = new float[4];
+    private boolean hasAccMagQuaternion = false;
+
+    private final float alpha;
+    private final float oneMinusAlpha;
+
+    private final IntegrationScheme scheme;
+    /* Previous gyro sample, for higher order schemes in EULER mode */
+    private final float previousGyro[] = new float[3];
+    private boolean hasPreviousGyro;
+
+    /* Decimated correction, seconds between corrections, 0 for on every gyro sample */
+    private final float correctionPeriod;
+    private float timeSinceCorrection;
+    private int gyroSamplesSinceCorrection;
+    /* alpha^n for the n of the previous correction; n rarely changes, and pow is not cheap */
+    private int correctionSamples;
+    private float correctionGyroWeight;
+    /* Latest valid acc/mag pair not turned into an orientation yet */
+    private final float pendingAcc[] = new float[3], pendingMag[] = new float[3];
+    private boolean hasPendingAccMag;
+
+    public ComplementaryFilter() {
+        this(IntegrationMode.EULER);
+    }
+
+    public ComplementaryFilter(IntegrationMode integrationMode) {
+        this(integrationMode, DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param alpha weight of the gyro estimate in each blend, closer to 1 trusts acc/mag less
+     */
+    public ComplementaryFilter(IntegrationMode integrationMode, float alpha) {
+        this(integrationMode, alpha, IntegrationScheme.FIRST_ORDER);
+    }
+
+    /**
+     * @param scheme how each gyro step is integrated; in EULER mode, anything but FIRST_ORDER
+     *               integrates the mean of the previous and current rate
+     */
+    public ComplementaryFilter(IntegrationMode integrationMode, float alpha, IntegrationScheme scheme) {
+        this(integrationMode, alpha, scheme, 0);
+    }
+
+    /**
+     * @param correctionRate how often the acc/mag correction runs, in Hz of gyro time, or 0 for
+     *                       on every gyro sample. Acc/mag samples in between are only checked
+     *                       for free fall and a usable field; the latest valid pair is turned
+     *                       into an orientation when the correction is due. The blend then
+     *                       weighs acc/mag by 1 - alpha^n for the n gyro samples since the last
+     *                       correction, which is what n per sample blends would have, so the
+     *                       filter's time constant does not change.
+     */
+    public ComplementaryFilter(IntegrationMode integrationMode, float alpha, IntegrationScheme scheme,
+                               float correctionRate) {
+        if (correctionRate < 0) throw new IllegalArgumentException("Negative correction rate " + correctionRate);
+        this.integrationMode = integrationMode;
+        this.alpha = alpha;
+        this.oneMinusAlpha = 1.0f - alpha;
+        this.scheme = scheme;
+        gyroQuaternionRaw = new QuaternionIntegrator(scheme);
+        gyroQuaternionCorrected = new QuaternionIntegrator(scheme);
+        correctionPeriod = correctionRate > 0 ? 1 / correctionRate : 0;
+    }
+
+    public IntegrationMode getIntegrationMode() {
+        return integrationMode;
+    }
+
+    public IntegrationScheme getIntegrationScheme() {
+        return scheme;
+    }
+
+    /**
+     * @return acc/mag corrections per second of gyro time, 0 if on every gyro sample
+     */
+    public float getCorrectionRate() {
+        return correctionPeriod > 0 ? 1 / correctionPeriod : 0;
+    }
+
+    @Override
+    public void updateGyro(float dt, float x, float y, float z) {
+        calculateRawGyroOrientation(dt, x, y, z);
+        if (correctionPeriod == 0) {
+            calculateFusedOrientation();
+            return;
+        }
+
+        gyroSamplesSinceCorrection++;
+        timeSinceCorrection += dt;
+        if (timeSinceCorrection < correctionPeriod) {
+            if (integrationMode == IntegrationMode.EULER)
+                System.arraycopy(gyroTrajectoryCorrected, 0, fusedTrajectory, 0, fusedTrajectory.length);
+            return;
+        }
+        if (hasPendingAccMag) {
+            hasPendingAccMag = false;
+            if (Mat3.fromGravityAndField(accMagRotationMatrix, pendingAcc, pendingMag))
+                convertAccMagOrientation();
+        }
+        if (gyroSamplesSinceCorrection != correctionSamples) {
+            correctionSamples = gyroSamplesSinceCorrection;
+            correctionGyroWeight = (float) Math.pow(alpha, correctionSamples);
+        }
+        calculateFusedOrientation(correctionGyroWeight, 1.0f - correctionGyroWeight);
+        gyroSamplesSinceCorrection = 0;
+        // Keeps the average rate, but a long gap between gyro samples does not queue corrections
+        timeSinceCorrection -= correctionPeriod;
+        if (timeSinceCorrection >= correctionPeriod) timeSinceCorrection = 0;
+    }
+
+    @Override
+    public boolean updateAccelerometer(float x, float y, float z) {
+        hasAccData = true;
+        accData[0] = x;
+        accData[1] = y;
+        accData[2] = z;
+        if (correctionPeriod == 0) return calculateAccMagOrientation();
+        if (!hasMagData) return true;
+        // The first fix is the reference the acc/mag orientation is relative to, so it is
+        // taken right away rather than replaced by a later one
+        final boolean hasReference = integrationMode == IntegrationMode.QUATERNION
+                ? hasAccMagQuaternion : hasAccMagPrevOrientation;
+        if (!hasReference) return calculateAccMagOrientation();
+        if (!Mat3.acceptsGravityAndField(accData, magData)) return false;
+        System.arraycopy(accData, 0, pendingAcc, 0, 3);
+        System.arraycopy(magData, 0, pendingMag, 0, 3);
+        hasPendingAccMag = true;
+        return true;
+    }
+
+    @Override
+    public void updateMagnetometer(float x, float y, float z) {
+        hasMagData = true;
+        magData[0] = x;
+        magData[1] = y;
+        magData[2] = z;
+    }
+
+    @Override
+    public void getOrientation(Orientation orientation) {
+        if (integrationMode == IntegrationMode.QUATERNION)
+            orientation.setQuaternion(gyroQuaternionCorrected.getQuaternion());
+        else
+            orientation.setEuler(fusedTrajectory);
+    }
+
+    /**
+     * @return gyro only orientation, PRY (x, y, z). Live array, overwritten by the next sample.
+     */
+    public float[] getGyroOrientation() {
+        if (integrationMode == IntegrationMode.QUATERNION)
+            Quat.toEuler(gyroQuaternionRaw.getQuaternion(), gyroTrajectoryRaw);
+        return gyroTrajectoryRaw;
+    }
+
+    /**
+     * @return acc/mag only orientation, PRY (x, y, z). Live array, overwritten by the next sample.
+     */
+    public float[] getAccMagOrientation() {
+        if (integrationMode == IntegrationMode.QUATERNION)
+            Quat.toEuler(accMagQuaternion, accMagTrajectory);
+        return accMagTrajectory;
+    }
+
+    void calculateRawGyroOrientation(float dt, float x, float y, float z) {
+        if (integrationMode == IntegrationMode.QUATERNION) {
+            gyroQuaternionRaw.integrate(dt, x, y, z);
+            gyroQuaternionCorrected.integrate(dt, x, y, z);
+            return;
+        }
+
+        if (scheme != IntegrationScheme.FIRST_ORDER) {
+            // Trapezoid: the mean of the rates at both ends of the step
+            final float x0 = hasPreviousGyro ? previousGyro[0] : x;
+            final float y0 = hasPreviousGyro ? previousGyro[1] : y;
+            final float z0 = hasPreviousGyro ? previousGyro[2] : z;
+            previousGyro[0] = x;
+            previousGyro[1] = y;
+            previousGyro[2] = z;
+            hasPreviousGyro = true;
+            x = 0.5f * (x0 + x);
+            y = 0.5f * (y0 + y);
+            z = 0.5f * (z0 + z);
+        }
+        gyroDiff[0] = dt * x;
+        gyroDiff[1] = dt * y;
+        gyroDiff[2] = dt * z;
+
+        /* Add these diff values to raw and corrected trajectory, just the same */
+        gyroTrajectoryRaw[0] += gyroDiff[0];
+        gyroTrajectoryRaw[1] += gyroDiff[1];
+        gyroTrajectoryRaw[2] += gyroDiff[2];
+
+        gyroTrajectoryCorrected[0] += gyroDiff[0];
+        gyroTrajectoryCorrected[1] += gyroDiff[1];
+        gyroTrajectoryCorrected[2] += gyroDiff[2];
+    }
+
+    boolean calculateAccMagOrientation() {
+        if (hasMagData && hasAccData) {
+            if (Mat3.fromGravityAndField(accMagRotationMatrix, accData, magData)) {
+                convertAccMagOrientation();
+            } else
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the acc/mag trajectory, or quaternion, to the orientation in accMagRotationMatrix.
+     */
+    private void convertAccMagOrientation() {
+        if (integrationMode == IntegrationMode.QUATERNION) {
+            calculateAccMagQuaternion();
+            return;
+        }
+        Mat3.toOrientation(accMagRotationMatrix, accMagOrientation);
+        if (!hasAccMagPrevOrientation) {
+            hasAccMagPrevOrientation = true;
+        } else {
+            accMagDiff[0] = accMagOrientation[0] - accMagPrevOrientation[0];
+            accMagDiff[1] = accMagOrientation[1] - accMagPrevOrientation[1];
+            accMagDiff[2] = accMagOrientation[2] - accMagPrevOrientation[2];
+
+            /*  Add these diff values to accMagTrajectory
+             *  The getOrientation method returns value like so : -yaw, -pitch, roll (-z, -x, y)
+             *  To stay consistent throughout, I convert these here to the PRY (x,y,z)
+             *  I've followed throughout the code
+             **/
+            accMagTrajectory[0] -= accMagDiff[1]; // pitch
+            accMagTrajectory[1] += accMagDiff[2]; // roll
+            accMagTrajectory[2] -= accMagDiff[0]; // yaw
+        }
+
+        /* set cur values as prev */
+        accMagPrevOrientation[0] = accMagOrientation[0];
+        accMagPrevOrientation[1] = accMagOrientation[1];
+        accMagPrevOrientation[2] = accMagOrientation[2];
+    }
+
+    /**
+     * Quaternion mode counterpart of the Euler trajectory above: the rotation from the first
+     * acc/mag orientation to the current one.
+     */
+    private void calculateAccMagQuaternion() {
+        if (!hasAccMagQuaternion) {
+            Quat.fromRotationMatrix(accMagRotationMatrix, accMagFirstQuaternion);
+            hasAccMagQuaternion = true;
+        }
+        Quat.fromRotationMatrix(accMagRotationMatrix, accMagQuaternion);
+        Quat.multiplyConjugate(accMagFirstQuaternion, accMagQuaternion, accMagQuaternion);
+    }
+
+    void calculateFusedOrientation() {
+        calculateFusedOrientation(alpha, oneMinusAlpha);
+    }
+
+    private void calculateFusedOrientation(float gyroWeight, float accMagWeight) {
+        if (integrationMode == IntegrationMode.QUATERNION) {
+            Quat.nlerp(gyroQuaternionCorrected.getQuaternion(), accMagQuaternion, accMagWeight);
+            return;
+        }
+        fusedTrajectory[0] = (gyroWeight * gyroTrajectoryCorrected[0]) + (accMagWeight * accMagTrajectory[0]); // pitch
+        fusedTrajectory[1] = (gyroWeight * gyroTrajectoryCorrected[1]) + (accMagWeight * accMagTrajectory[1]); // roll
+        fusedTrajectory[2] = (gyroWeight * gyroTrajectoryCorrected[2]) + (accMagWeight * accMagTrajectory[2]); // yaw
+        System.arraycopy(fusedTrajectory, 0, gyroTrajectoryCorrected, 0, fusedTrajectory.length);
+    }
+
+    @Override
+    public void reset() {
+        hasAccData = false;
+        hasMagData = false;
+        hasAccMagPrevOrientation = false;
+        hasPreviousGyro = false;
+        timeSinceCorrection = 0;
+        gyroSamplesSinceCorrection = 0;
+        hasPendingAccMag = false;
+
+        clear(accMagTrajectory); /* -yaw, -pitch, roll (-z, -x, y) */
+        clear(gyroTrajectoryCorrected); /* pitch, roll, yaw (x, y, z) */
+        clear(gyroTrajectoryRaw); /* pitch, roll, yaw (x, y, z) */
+        clear(fusedTrajectory); /* pitch, roll, yaw (x, y, z) */
+
+        gyroQuaternionRaw.reset();
+        gyroQuaternionCorrected.reset();
+        Quat.setIdentity(accMagQuaternion);
+        hasAccMagQuaternion = false;
+    }
+
+    private static void clear(float values[]) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 0;
+        }
+    }
+
+    @Override
+    public int getStateType() {
+        return integrationMode == IntegrationMode.QUATERNION ? STATE_TYPE_QUATERNION : STATE_TYPE_EULER;
+    }
+
+    @Override
+    public int getStateSize() {
+        return integrationMode == IntegrationMode.QUATERNION ? QUATERNION_STATE_SIZE : EULER_STATE_SIZE;
+    }
+
+    /**
+     * Keeps the trajectories and the last acc/mag orientation, so after a restore output
+     * continues in the same frame, and the first acc/mag fix moves the acc/mag trajectory by
+     * however much the device turned in between.
+     */
+    @Override
+    public void saveState(float state[]) {
+        if (integrationMode == IntegrationMode.QUATERNION) {
+            System.arraycopy(gyroQuaternionRaw.getQuaternion(), 0, state, 0, 4);
+            System.arraycopy(gyroQuaternionCorrected.getQuaternion(), 0, state, 4, 4);
+            System.arraycopy(accMagFirstQuaternion, 0, state, 8, 4);
+            System.arraycopy(accMagQuaternion, 0, state, 12, 4);
+            state[16] = hasAccMagQuaternion ? 1 : 0;
+            return;
+        }
+        state[0] = hasAccMagPrevOrientation ? 1 : 0;
+        System.arraycopy(accMagPrevOrientation, 0, state, 1, 3);
+        System.arraycopy(accMagTrajectory, 0, state, 4, 3);
+        System.arraycopy(gyroTrajectoryRaw, 0, state, 7, 3);
+        System.arraycopy(gyroTrajectoryCorrected, 0, state, 10, 3);
+        System.arraycopy(fusedTrajectory, 0, state, 13, 3);
+    }
+
+    @Override
+    public void restoreState(float state[]) {
+        reset();
+        if (integrationMode == IntegrationMode.QUATERNION) {
+            System.arraycopy(state, 0, gyroQuaternionRaw.getQuaternion(), 0, 4);
+            System.arraycopy(state, 4, gyroQuaternionCorrected.getQuaternion(), 0, 4);
+            System.arraycopy(state, 8, accMagFirstQuaternion, 0, 4);
+            System.arraycopy(state, 12, accMagQuaternion, 0, 4);
+            hasAccMagQuaternion = state[16] != 0;
+            return;
+        }
+        hasAccMagPrevOrientation = state[0] != 0;
+        System.arraycopy(state, 1, accMagPrevOrientation, 0, 3);
+        System.arraycopy(state, 4, accMagTrajectory, 0, 3);
+        System.arraycopy(state, 7, gyroTrajectoryRaw, 0, 3);
+        System.arraycopy(state, 10, gyroTrajectoryCorrected, 0, 3);
+        System.arraycopy(state, 13, fusedTrajectory, 0, 3);
+    }
+}
@@ -0,0 +1,436 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * Extended Kalman filter over a 7 element state: the orientation quaternion (w, x, y, z) and
+ * the gyro bias (x, y, z) in rad/s.
+ * <ul>
+ * <li>Predict, every gyro sample: integrate the bias corrected rate into the quaternion and
+ * propagate the covariance with the linearized transition.</li>
+ * <li>Update, once per new accelerometer sample: the measured gravity direction against the
+ * one predicted from the quaternion. Samples whose magnitude is far from 1 g (the device is
+ * accelerating) are skipped.</li>
+ * <li>Update, once per new magnetometer sample: the measured field direction against the
+ * reference field rotated into the device frame, with the reference taken from the current
+ * estimate as in Madgwick's filter, so the field's inclination is never assumed.</li>
+ * </ul>
+ * The quaternion is absolute: it rotates device coordinates into an earth frame with z up and
+ * x towards magnetic north, like {@link MadgwickFilter} and {@link MahonyFilter}. It starts out
+ * from the first accelerometer (and magnetometer) sample.
+ * <p>
+ * All matrix work is written out for the fixed sizes over flat row-major float arrays
+ * allocated with the filter, exploiting the block structure of the transition
+ * [[A(4x4), B(4x3)], [0, I]] and of the measurement Jacobians, which only depend on the
+ * quaternion. No allocation per sample.
+ */
+public class ExtendedKalmanFilter implements RestorableAlgorithm {
+
+    public static final float DEFAULT_GYRO_NOISE = 0.01f;        // rad/s
+    public static final float DEFAULT_BIAS_NOISE = 0.0001f;      // rad/s per sqrt(s)
+    public static final float DEFAULT_ACC_NOISE = 0.05f;         // unit vector
+    public static final float DEFAULT_MAG_NOISE = 0.1f;          // unit vector
+
+    private static final int N = 7;
+    private static final int STATE_TYPE = 5;
+    private static final float GRAVITY = 9.81f;
+    /* Accelerometer samples off by more than this fraction of 1 g are not used for tilt */
+    private static final float MAX_ACC_DEVIATION = 0.25f;
+    private static final float INITIAL_QUATERNION_VARIANCE = 0.01f;
+    private static final float INITIAL_BIAS_VARIANCE = 0.0001f;
+
+    private final float gyroVariance;
+    private final float biasVariance;
+    private final float accVariance;
+    private final float magVariance;
+
+    /* State: q (w, x, y, z), then bias (x, y, z) */
+    private final float x[] = new float[N];
+    /* Covariance, row-major 7x7 */
+    private final float P[] = new float[N * N];
+
+    /* Scratch */
+    private final float A[] = new float[16];   // d q' / d q
+    private final float B[] = new float[12];   // d q' / d bias
+    private final float FP[] = new float[N * N];
+    private final float H[] = new float[12];   // 3x4, the bias columns are zero
+    private final float h[] = new float[3];
+    private final float PHt[] = new float[N * 3];
+    private final float S[] = new float[9];
+    private final float K[] = new float[N * 3];
+
+    private float ax, ay, az;
+    private float mx, my, mz;
+    private boolean newAcc, newMag, hasMag;
+    private boolean initialized;
+
+    public ExtendedKalmanFilter() {
+        this(DEFAULT_GYRO_NOISE, DEFAULT_BIAS_NOISE, DEFAULT_ACC_NOISE, DEFAULT_MAG_NOISE);
+    }
+
+    /**
+     * All noise figures are standard deviations.
+     *
+     * @param gyroNoise gyro rate noise, rad/s
+     * @param biasNoise gyro bias random walk, rad/s per sqrt(s)
+     * @param accNoise  noise of the normalized accelerometer direction
+     * @param magNoise  noise of the normalized magnetometer direction
+     */
+    public ExtendedKalmanFilter(float gyroNoise, float biasNoise, float accNoise, float magNoise) {
+        gyroVariance = gyroNoise * gyroNoise;
+        biasVariance = biasNoise * biasNoise;
+        accVariance = accNoise * accNoise;
+        magVariance = magNoise * magNoise;
+        reset();
+    }
+
+    @Override
+    public boolean updateAccelerometer(float x, float y, float z) {
+        if (x == 0 && y == 0 && z == 0) return false;
+        ax = x;
+        ay = y;
+        az = z;
+        newAcc = true;
+        return true;
+    }
+
+    @Override
+    public void updateMagnetometer(float x, float y, float z) {
+        if (x == 0 && y == 0 && z == 0) return;
+        mx = x;
+        my = y;
+        mz = z;
+        newMag = true;
+        hasMag = true;
+    }
+
+    @Override
+    public void updateGyro(float dt, float gx, float gy, float gz) {
+        if (!initialized) {
+            if (!newAcc || !initialize()) return;
+        }
+        if (dt > 0) predict(dt, gx - x[4], gy - x[5], gz - x[6]);
+
+        if (newAcc) {
+            newAcc = false;
+            final float norm = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+            if (Math.abs(norm - GRAVITY) < MAX_ACC_DEVIATION * GRAVITY) {
+                accelerometerJacobian();
+                correct(ax / norm, ay / norm, az / norm, accVariance);
+            }
+        }
+        if (newMag) {
+            newMag = false;
+            final float norm = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+            if (magnetometerJacobian(mx / norm, my / norm, mz / norm)) {
+                correct(mx / norm, my / norm, mz / norm, magVariance);
+            }
+        }
+    }
+
+    /**
+     * Starts from the orientation the first accelerometer sample, and magnetometer sample if
+     * there is one, imply: rows of the rotation matrix are north, west and up in device
+     * coordinates.
+     */
+    private boolean initialize() {
+        float ux = ax, uy = ay, uz = az;
+        float n = (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+        ux /= n;
+        uy /= n;
+        uz /= n;
+        // West is up x field; without a field, any horizontal direction will do
+        final float rx = hasMag ? mx : 1, ry = hasMag ? my : 0, rz = hasMag ? mz : 0;
+        float wx = uy * rz - uz * ry, wy = uz * rx - ux * rz, wz = ux * ry - uy * rx;
+        n = (float) Math.sqrt(wx * wx + wy * wy + wz * wz);
+        if (n < 1e-3f) {
+            // Up x device y
+            wx = -uz;
+            wy = 0;
+            wz = ux;
+            n = (float) Math.sqrt(wx * wx + wz * wz);
+            if (n < 1e-3f) return false;
+        }
+        wx /= n;
+        wy /= n;
+        wz /= n;
+        final float R[] = FP; // scratch, not in use yet
+        R[0] = wy * uz - wz * uy;
+        R[1] = wz * ux - wx * uz;
+        R[2] = wx * uy - wy * ux;
+        R[3] = wx;
+        R[4] = wy;
+        R[5] = wz;
+        R[6] = ux;
+        R[7] = uy;
+        R[8] = uz;
+        Quat.fromRotationMatrix(R, x);
+        Quat.normalize(x);
+        initialized = true;
+        return true;
+    }
+
+    /**
+     * x = f(x), P = F P F' + Q, for the bias corrected rate (wx, wy, wz) over dt.
+     */
+    private void predict(float dt, float wx, float wy, float wz) {
+        final float q0 = x[0], q1 = x[1], q2 = x[2], q3 = x[3];
+        final float hx = 0.5f * dt * wx, hy = 0.5f * dt * wy, hz = 0.5f * dt * wz;
+
+        // A = I + dt/2 * Omega(w), right multiplication by the rate quaternion
+        A[0] = 1;   A[1] = -hx; A[2] = -hy; A[3] = -hz;
+        A[4] = hx;  A[5] = 1;   A[6] = hz;  A[7] = -hy;
+        A[8] = hy;  A[9] = -hz; A[10] = 1;  A[11] = hx;
+        A[12] = hz; A[13] = hy; A[14] = -hx; A[15] = 1;
+
+        // B = -dt/2 * Xi(q), how the bias enters the quaternion derivative
+        final float k = -0.5f * dt;
+        B[0] = -k * q1; B[1] = -k * q2;  B[2] = -k * q3;
+        B[3] = k * q0;  B[4] = -k * q3;  B[5] = k * q2;
+        B[6] = k * q3;  B[7] = k * q0;   B[8] = -k * q1;
+        B[9] = -k * q2; B[10] = k * q1;  B[11] = k * q0;
+
+        x[0] = q0 - hx * q1 - hy * q2 - hz * q3;
+        x[1] = q1 + hx * q0 + hz * q2 - hy * q3;
+        x[2] = q2 + hy * q0 - hz * q1 + hx * q3;
+        x[3] = q3 + hz * q0 + hy * q1 - hx * q2;
+        Quat.normalizeFast(x);
+
+        // FP = F * P: quaternion rows mix, bias rows are unchanged
+        for (int r = 0; r < 4; r++) {
+            final int a = r * 4, b = r * 3;
+            for (int c = 0; c < N; c++) {
+                FP[r * N + c] = A[a] * P[c] + A[a + 1] * P[N + c] + A[a + 2] * P[2 * N + c]
+                        + A[a + 3] * P[3 * N + c]
+                        + B[b] * P[4 * N + c] + B[b + 1] * P[5 * N + c] + B[b + 2] * P[6 * N + c];
+            }
+        }
+        System.arraycopy(P, 4 * N, FP, 4 * N, 3 * N);
+
+        // P = FP * F': likewise for columns; symmetric, so compute the upper triangle only
+        for (int r = 0; r < N; r++) {
+            final int row = r * N;
+            for (int c = r; c < 4; c++) {
+                final int a = c * 4, b = c * 3;
+                P[row + c] = FP[row] * A[a] + FP[row + 1] * A[a + 1] + FP[row + 2] * A[a + 2]
+                        + FP[row + 3] * A[a + 3]
+                        + FP[row + 4] * B[b] + FP[row + 5] * B[b + 1] + FP[row + 6] * B[b + 2];
+            }
+            for (int c = Math.max(r, 4); c < N; c++) {
+                P[row + c] = FP[row + c];
+            }
+        }
+
+        // Q: gyro noise enters the quaternion the same way the bias does, g B B';
+        // bias random walk on the diagonal
+        final float g = gyroVariance;
+        for (int r = 0; r < 4; r++) {
+            final int b = r * 3;
+            for (int c = r; c < 4; c++) {
+                final int d = c * 3;
+                P[r * N + c] += g * (B[b] * B[d] + B[b + 1] * B[d + 1] + B[b + 2] * B[d + 2]);
+            }
+        }
+        final float walk = biasVariance * dt;
+        P[4 * N + 4] += walk;
+        P[5 * N + 5] += walk;
+        P[6 * N + 6] += walk;
+
+        mirrorUpperTriangle();
+    }
+
+    /**
+     * h = gravity direction in device coordinates, R' (0, 0, 1); H = dh/dq.
+     */
+    private void accelerometerJacobian() {
+        final float q0 = x[0], q1 = x[1], q2 = x[2], q3 = x[3];
+        h[0] = 2 * (q1 * q3 - q0 * q2);
+        h[1] = 2 * (q0 * q1 + q2 * q3);
+        h[2] = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+        H[0] = -2 * q2; H[1] = 2 * q3;  H[2] = -2 * q0; H[3] = 2 * q1;
+        H[4] = 2 * q1;  H[5] = 2 * q0;  H[6] = 2 * q3;  H[7] = 2 * q2;
+        H[8] = 2 * q0;  H[9] = -2 * q1; H[10] = -2 * q2; H[11] = 2 * q3;
+    }
+
+    /**
+     * h = reference field (bx, 0, bz) in device coordinates, R' b; H = dh/dq for fixed b.
+     * The reference is the measured direction rotated into the earth frame with its
+     * horizontal part turned onto x.
+     *
+     * @return false if the field is (nearly) vertical and says nothing about heading
+     */
+    private boolean magnetometerJacobian(float mx, float my, float mz) {
+        final float q0 = x[0], q1 = x[1], q2 = x[2], q3 = x[3];
+        // Field in the earth frame, R m
+        final float ex = (1 - 2 * (q2 * q2 + q3 * q3)) * mx + 2 * (q1 * q2 - q0 * q3) * my
+                + 2 * (q1 * q3 + q0 * q2) * mz;
+        final float ey = 2 * (q1 * q2 + q0 * q3) * mx + (1 - 2 * (q1 * q1 + q3 * q3)) * my
+                + 2 * (q2 * q3 - q0 * q1) * mz;
+        final float ez = 2 * (q1 * q3 - q0 * q2) * mx + 2 * (q2 * q3 + q0 * q1) * my
+                + (1 - 2 * (q1 * q1 + q2 * q2)) * mz;
+        final float bx = (float) Math.sqrt(ex * ex + ey * ey);
+        final float bz = ez;
+        if (bx < 0.1f) return false;
+
+        h[0] = 2 * bx * (0.5f - q2 * q2 - q3 * q3) + 2 * bz * (q1 * q3 - q0 * q2);
+        h[1] = 2 * bx * (q1 * q2 - q0 * q3) + 2 * bz * (q0 * q1 + q2 * q3);
+        h[2] = 2 * bx * (q0 * q2 + q1 * q3) + 2 * bz * (0.5f - q1 * q1 - q2 * q2);
+        H[0] = -2 * bz * q2;
+        H[1] = 2 * bz * q3;
+        H[2] = -4 * bx * q2 - 2 * bz * q0;
+        H[3] = -4 * bx * q3 + 2 * bz * q1;
+        H[4] = -2 * bx * q3 + 2 * bz * q1;
+        H[5] = 2 * bx * q2 + 2 * bz * q0;
+        H[6] = 2 * bx * q1 + 2 * bz * q3;
+        H[7] = -2 * bx * q0 + 2 * bz * q2;
+        H[8] = 2 * bx * q2;
+        H[9] = 2 * bx * q3 - 4 * bz * q1;
+        H[10] = 2 * bx * q0 - 4 * bz * q2;
+        H[11] = 2 * bx * q1;
+        return true;
+    }
+
+    /**
+     * Kalman update with measurement (zx, zy, zz), prediction h, Jacobian H and isotropic
+     * measurement noise.
+     */
+    private void correct(float zx, float zy, float zz, float variance) {
+        // PH' (7x3), only the quaternion columns of P meet H
+        for (int r = 0; r < N; r++) {
+            final int row = r * N;
+            final float p0 = P[row], p1 = P[row + 1], p2 = P[row + 2], p3 = P[row + 3];
+            for (int m = 0; m < 3; m++) {
+                final int j = m * 4;
+                PHt[r * 3 + m] = p0 * H[j] + p1 * H[j + 1] + p2 * H[j + 2] + p3 * H[j + 3];
+            }
+        }
+        // S = H PH' + R
+        for (int m = 0; m < 3; m++) {
+            final int j = m * 4;
+            for (int n = 0; n < 3; n++) {
+                S[m * 3 + n] = H[j] * PHt[n] + H[j + 1] * PHt[3 + n] + H[j + 2] * PHt[6 + n]
+                        + H[j + 3] * PHt[9 + n];
+            }
+            S[m * 4] += variance;
+        }
+        // S^-1 by the adjugate, written back into S
+        final float s0 = S[0], s1 = S[1], s2 = S[2], s3 = S[3], s4 = S[4], s5 = S[5],
+                s6 = S[6], s7 = S[7], s8 = S[8];
+        final float c0 = s4 * s8 - s5 * s7, c1 = s5 * s6 - s3 * s8, c2 = s3 * s7 - s4 * s6;
+        final float det = s0 * c0 + s1 * c1 + s2 * c2;
+        if (Math.abs(det) < 1e-12f) return;
+        final float inv = 1 / det;
+        S[0] = c0 * inv;
+        S[1] = (s2 * s7 - s1 * s8) * inv;
+        S[2] = (s1 * s5 - s2 * s4) * inv;
+        S[3] = c1 * inv;
+        S[4] = (s0 * s8 - s2 * s6) * inv;
+        S[5] = (s2 * s3 - s0 * s5) * inv;
+        S[6] = c2 * inv;
+        S[7] = (s1 * s6 - s0 * s7) * inv;
+        S[8] = (s0 * s4 - s1 * s3) * inv;
+
+        // K = PH' S^-1 (7x3), x += K (z - h)
+        final float y0 = zx - h[0], y1 = zy - h[1], y2 = zz - h[2];
+        for (int r = 0; r < N; r++) {
+            final int i = r * 3;
+            final float a = PHt[i], b = PHt[i + 1], c = PHt[i + 2];
+            final float k0 = a * S[0] + b * S[3] + c * S[6];
+            final float k1 = a * S[1] + b * S[4] + c * S[7];
+            final float k2 = a * S[2] + b * S[5] + c * S[8];
+            K[i] = k0;
+            K[i + 1] = k1;
+            K[i + 2] = k2;
+            x[r] += k0 * y0 + k1 * y1 + k2 * y2;
+        }
+        Quat.normalize(x);
+
+        // P -= K (H P) = K PH', upper triangle, then mirror
+        for (int r = 0; r < N; r++) {
+            final int i = r * 3;
+            final float k0 = K[i], k1 = K[i + 1], k2 = K[i + 2];
+            for (int c = r; c < N; c++) {
+                final int j = c * 3;
+                P[r * N + c] -= k0 * PHt[j] + k1 * PHt[j + 1] + k2 * PHt[j + 2];
+            }
+        }
+        mirrorUpperTriangle();
+    }
+
+    private void mirrorUpperTriangle() {
+        for (int r = 1; r < N; r++) {
+            for (int c = 0; c < r; c++) {
+                P[r * N + c] = P[c * N + r];
+            }
+        }
+    }
+
+    /**
+     * @param bias receives the estimated gyro bias (x, y, z) in rad/s
+     */
+    public void getGyroBias(float bias[]) {
+        bias[0] = x[4];
+        bias[1] = x[5];
+        bias[2] = x[6];
+    }
+
+    @Override
+    public void getOrientation(Orientation orientation) {
+        orientation.setQuaternion(x);
+    }
+
+    @Override
+    public void reset() {
+        Quat.setIdentity(x);
+        x[4] = x[5] = x[6] = 0;
+        for (int i = 0; i < N * N; i++) {
+            P[i] = 0;
+        }
+        for (int i = 0; i < 4; i++) {
+            P[i * N + i] = INITIAL_QUATERNION_VARIANCE;
+        }
+        for (int i = 4; i < N; i++) {
+            P[i * N + i] = INITIAL_BIAS_VARIANCE;
+        }
+        newAcc = false;
+        newMag = false;
+        hasMag = false;
+        initialized = false;
+    }
+
+    @Override
+    public int getStateType() {
+        return STATE_TYPE;
+    }
+
+    @Override
+    public int getStateSize() {
+        return 3 + 9;
+    }
+
+    /**
+     * The gyro bias and its covariance, which take tens of seconds to learn. The orientation
+     * is not kept: it is taken from the first acc/mag samples after a restore, as after a
+     * reset, which is immediate and right even if the device moved in between.
+     */
+    @Override
+    public void saveState(float state[]) {
+        for (int r = 0; r < 3; r++) {
+            state[r] = x[4 + r];
+            for (int c = 0; c < 3; c++) {
+                state[3 + r * 3 + c] = P[(4 + r) * N + 4 + c];
+            }
+        }
+    }
+
+    @Override
+    public void restoreState(float state[]) {
+        reset();
+        for (int r = 0; r < 3; r++) {
+            x[4 + r] = state[r];
+            for (int c = 0; c < 3; c++) {
+                P[(4 + r) * N + 4 + c] = state[3 + r * 3 + c];
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * A sensor fusion algorithm driven by {@link FusionEngine}.
+ * <p>
+ * The engine takes care of timestamps and listeners; implementations only see sensor values
+ * and the gyro step length. Implementations must not allocate per sample, and are only ever
+ * called from one thread.
+ */
+public interface FusionAlgorithm {
+
+    /**
+     * Advances the estimate by one gyro sample. This is where fusion with the latest
+     * accelerometer/magnetometer values happens.
+     *
+     * @param dt seconds since the previous gyro sample, 0 for the first one
+     * @param x  angular velocity around x in rad/s, likewise y and z
+     */
+    void updateGyro(float dt, float x, float y, float z);
+
+    /**
+     * @return false if the sample could not be used (e.g. free fall)
+     */
+    boolean updateAccelerometer(float x, float y, float z);
+
+    void updateMagnetometer(float x, float y, float z);
+
+    /**
+     * Writes the current fused estimate into orientation.
+     */
+    void getOrientation(Orientation orientation);
+
+    /**
+     * Forgets all state, as if no sample had been seen.
+     */
+    void reset();
+}
@@ -0,0 +1,409 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusionlib.listeners.FusionListener;
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+import rish.crearo.sensorfusionlib.listeners.VerboseFusionListener;
+
+/**
+ * Runs a {@link FusionAlgorithm} (the {@link ComplementaryFilter} unless told otherwise) and
+ * reports its output, with no dependency on android.*.
+ * <p>
+ * Samples are pushed in as primitives (timestamp in nanoseconds, x, y, z), so the same engine
+ * can be driven by SensorManager callbacks on a device or by a plain JVM (tests, benchmarks,
+ * recorded traces). Not thread safe; feed it from one thread.
+ * <p>
+ * VerboseFusionListener only receives gyro and acc/mag orientations from the complementary
+ * filter; other algorithms have no separate estimates to report.
+ * <p>
+ * Samples can also be pushed a batch at a time with {@link #onSamples}, e.g. a burst drained
+ * from the sensor hub FIFO. Listeners are then called once per batch, with the state after its
+ * last sample, instead of once per sample.
+ * <p>
+ * With an {@link AccMagSynchronizer} set, acc/mag samples are aligned first and the algorithm
+ * gets one accelerometer/magnetometer pair per synchronizer tick rather than every sample.
+ * <p>
+ * With a {@link RestorableAlgorithm}, {@link #snapshot} and {@link #restore} carry the state
+ * over a stop and start, or a process restart, so output is usable from the first samples.
+ */
+public class FusionEngine {
+
+    /* Sensor ids for batched input */
+    public static final int SENSOR_GYROSCOPE = 1;
+    public static final int SENSOR_ACCELEROMETER = 2;
+    public static final int SENSOR_MAGNETOMETER = 3;
+
+    /* Snapshots older than this are not restored by default */
+    public static final long DEFAULT_MAX_SNAPSHOT_AGE_MS = 10 * 60 * 1000L;
+    /* Longest gap after a restored gyro timestamp that is integrated over as one step */
+    public static final long MAX_RESUME_GYRO_GAP_NS = 100 * 1000000L;
+
+    /* Nanoseconds to seconds */
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    private long prevGyroTimestamp = 0;
+    /* Set by restore until the first gyro sample has been checked against the gap limit */
+    private boolean resumed;
+
+    private final FusionAlgorithm algorithm;
+    /* Same object as algorithm when that is a complementary filter, for the verbose callbacks */
+    private final ComplementaryFilter complementaryFilter;
+
+    /* Reused for every callback */
+    private final Orientation fusedOrientation = new Orientation();
+
+    private VerboseFusionListener verboseFusionListener;
+    private FusionListener fusionListener;
+    private OrientationListener orientationListener;
+    private OrientationHistory history;
+    private OrientationPredictor predictor;
+    private OrientationStream stream;
+    private AccMagSynchronizer synchronizer;
+    private FusionMetrics metrics;
+    private FusionHealth health;
+    /* Timestamp of the last synchronizer tick fed to the algorithm */
+    private long lastTickTimestamp = -1;
+
+    public FusionEngine(VerboseFusionListener verboseFusionListener) {
+        this(new ComplementaryFilter(), verboseFusionListener);
+    }
+
+    public FusionEngine(FusionListener fusionListener) {
+        this(new ComplementaryFilter(), fusionListener);
+    }
+
+    public FusionEngine(OrientationListener orientationListener) {
+        this(new ComplementaryFilter(), orientationListener);
+    }
+
+    public FusionEngine(FusionAlgorithm algorithm, VerboseFusionListener verboseFusionListener) {
+        this(algorithm);
+        this.verboseFusionListener = verboseFusionListener;
+    }
+
+    public FusionEngine(FusionAlgorithm algorithm, FusionListener fusionListener) {
+        this(algorithm);
+        this.fusionListener = fusionListener;
+    }
+
+    public FusionEngine(FusionAlgorithm algorithm, OrientationListener orientationListener) {
+        this(algorithm);
+        this.orientationListener = orientationListener;
+    }
+
+    private FusionEngine(FusionAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        this.complementaryFilter = algorithm instanceof ComplementaryFilter
+                ? (ComplementaryFilter) algorithm : null;
+    }
+
+    public FusionAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Records every fused orientation into history, on top of notifying the listener.
+     * Pass null to stop recording.
+     */
+    public void setHistory(OrientationHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Feeds predictor every gyro sample and fused orientation, so other threads can ask it for
+     * the orientation at a later time, e.g. the next frame. Pass null to stop.
+     */
+    public void setPredictor(OrientationPredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * Publishes every fused orientation to stream, whose subscribers each get it on their own
+     * executor. Pass null to stop.
+     */
+    public void setStream(OrientationStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Feeds acc/mag to the algorithm through synchronizer, at its rate and aligned in time.
+     * Pass null to go back to feeding every sample as it comes.
+     */
+    public void setAccMagSynchronizer(AccMagSynchronizer synchronizer) {
+        this.synchronizer = synchronizer;
+        if (synchronizer != null) synchronizer.reset();
+    }
+
+    /**
+     * Times the algorithm (STAGE_FUSION, per gyro/accelerometer sample or per batch) and the
+     * listener calls (STAGE_DISPATCH) into metrics. Pass null to stop.
+     */
+    public void setMetrics(FusionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Counts events, gaps, reordering and rejected accelerometer samples per sensor into
+     * health. Pass null to stop.
+     */
+    public void setHealth(FusionHealth health) {
+        this.health = health;
+    }
+
+    /**
+     * Saves the algorithm's state, for {@link #restore} on a later start. Call on the thread
+     * that feeds the engine, e.g. once sensors are stopped.
+     *
+     * @param wallClockMillis System.currentTimeMillis(), for judging the snapshot's age later
+     * @return null if the algorithm is not a {@link RestorableAlgorithm}
+     */
+    public FusionSnapshot snapshot(long wallClockMillis) {
+        if (!(algorithm instanceof RestorableAlgorithm)) return null;
+        final RestorableAlgorithm restorable = (RestorableAlgorithm) algorithm;
+        float state[] = new float[restorable.getStateSize()];
+        restorable.saveState(state);
+        return new FusionSnapshot(restorable.getStateType(), wallClockMillis, prevGyroTimestamp, state);
+    }
+
+    public boolean restore(FusionSnapshot snapshot, long wallClockMillis) {
+        return restore(snapshot, wallClockMillis, DEFAULT_MAX_SNAPSHOT_AGE_MS);
+    }
+
+    /**
+     * Resets the engine, then puts the algorithm state from snapshot back if it is still
+     * valid: taken from the same kind of algorithm, no more than maxAgeMillis ago. The first
+     * gyro sample continues from the snapshot's if it comes within
+     * {@link #MAX_RESUME_GYRO_GAP_NS} of it; after a longer pause it starts a new time base,
+     * as after a reset, rather than integrating its rate over the whole pause.
+     *
+     * @param wallClockMillis System.currentTimeMillis()
+     * @return false if the snapshot was rejected and the engine starts cold
+     */
+    public boolean restore(FusionSnapshot snapshot, long wallClockMillis, long maxAgeMillis) {
+        reset();
+        if (snapshot == null || !(algorithm instanceof RestorableAlgorithm)) return false;
+        final RestorableAlgorithm restorable = (RestorableAlgorithm) algorithm;
+        final long age = wallClockMillis - snapshot.getWallClockMillis();
+        if (snapshot.getStateType() != restorable.getStateType()
+                || snapshot.getState().length != restorable.getStateSize()
+                || age < 0 || age > maxAgeMillis) {
+            return false;
+        }
+        restorable.restoreState(snapshot.getState());
+        prevGyroTimestamp = snapshot.getGyroTimestamp();
+        resumed = prevGyroTimestamp != 0;
+        return true;
+    }
+
+    /**
+     * @param timestamp nanoseconds, same time base as the other sensors
+     * @param x         angular velocity around x in rad/s, likewise y and z
+     */
+    public void onGyro(long timestamp, float x, float y, float z) {
+        final FusionMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (health != null) health.get(SENSOR_GYROSCOPE).onEvent(timestamp);
+        updateGyro(timestamp, x, y, z);
+        if (metrics != null) {
+            long computed = System.nanoTime();
+            metrics.record(FusionMetrics.STAGE_FUSION, computed - start);
+            start = computed;
+        }
+        if (verboseFusionListener != null && complementaryFilter != null)
+            verboseFusionListener.onGyroOrientation(complementaryFilter.getGyroOrientation(), timestamp);
+        dispatchFusedOrientation(timestamp);
+        if (metrics != null)
+            metrics.record(FusionMetrics.STAGE_DISPATCH, System.nanoTime() - start);
+    }
+
+    public void onMagnetometer(long timestamp, float x, float y, float z) {
+        if (health != null) health.get(SENSOR_MAGNETOMETER).onEvent(timestamp);
+        if (synchronizer == null) {
+            algorithm.updateMagnetometer(x, y, z);
+            return;
+        }
+        synchronizer.addMagnetometer(timestamp, x, y, z);
+        long previousTick = lastTickTimestamp;
+        int failed = drainSynchronizer();
+        if (health != null && failed > 0) health.get(SENSOR_ACCELEROMETER).onRejected(failed);
+        if (lastTickTimestamp != previousTick) notifyAccMag(lastTickTimestamp);
+    }
+
+    /**
+     * @return false if the algorithm could not use this sample, e.g. because no rotation matrix
+     * could be computed from it and the last magnetometer sample (free fall, or no usable field).
+     * With a synchronizer, false if it could not use one of the pairs this sample completed.
+     */
+    public boolean onAccelerometer(long timestamp, float x, float y, float z) {
+        final FusionMetrics metrics = this.metrics;
+        final long start = metrics != null ? System.nanoTime() : 0;
+        final int failed;
+        final long previousTick = lastTickTimestamp;
+        if (synchronizer == null) {
+            failed = algorithm.updateAccelerometer(x, y, z) ? 0 : 1;
+        } else {
+            synchronizer.addAccelerometer(timestamp, x, y, z);
+            failed = drainSynchronizer();
+        }
+        if (metrics != null)
+            metrics.record(FusionMetrics.STAGE_FUSION, System.nanoTime() - start);
+        if (health != null) {
+            SensorHealth accHealth = health.get(SENSOR_ACCELEROMETER);
+            accHealth.onEvent(timestamp);
+            if (failed > 0) accHealth.onRejected(failed);
+        }
+
+        if (synchronizer == null)
+            notifyAccMag(timestamp);
+        else if (lastTickTimestamp != previousTick)
+            notifyAccMag(lastTickTimestamp);
+        return failed == 0;
+    }
+
+    public int onSamples(SampleBatch batch) {
+        return onSamples(batch.sensors, batch.timestamps, batch.values, batch.count);
+    }
+
+    /**
+     * Runs a whole batch of samples through the algorithm in one loop, then notifies listeners
+     * once: gyro/fused callbacks with the timestamp of the last gyro sample, the acc/mag callback
+     * with that of the last accelerometer sample. Nothing is reported for sensors the batch
+     * does not contain. A synchronizer is only asked for pairs after the whole batch.
+     *
+     * @param sensors    SENSOR_* id per sample
+     * @param timestamps nanoseconds per sample, in delivery order
+     * @param xyz        x, y, z per sample, i.e. 3 * count values
+     * @return how many accelerometer samples (synchronizer pairs, if one is set) the algorithm
+     * could not use
+     */
+    public int onSamples(int sensors[], long timestamps[], float xyz[], int count) {
+        long lastGyroTimestamp = -1;
+        long lastAccTimestamp = -1;
+        final long previousTick = lastTickTimestamp;
+        final FusionMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        int failed = 0;
+        final FusionHealth health = this.health;
+        for (int i = 0, v = 0; i < count; i++, v += 3) {
+            if (health != null && sensors[i] > 0 && sensors[i] <= SENSOR_MAGNETOMETER)
+                health.get(sensors[i]).onEvent(timestamps[i]);
+            final int failedBefore = failed;
+            switch (sensors[i]) {
+                case SENSOR_GYROSCOPE:
+                    updateGyro(timestamps[i], xyz[v], xyz[v + 1], xyz[v + 2]);
+                    lastGyroTimestamp = timestamps[i];
+                    break;
+                case SENSOR_ACCELEROMETER:
+                    if (synchronizer != null) {
+                        synchronizer.addAccelerometer(timestamps[i], xyz[v], xyz[v + 1], xyz[v + 2]);
+                    } else {
+                        if (!algorithm.updateAccelerometer(xyz[v], xyz[v + 1], xyz[v + 2])) failed++;
+                        lastAccTimestamp = timestamps[i];
+                    }
+                    break;
+                case SENSOR_MAGNETOMETER:
+                    if (synchronizer != null) {
+                        synchronizer.addMagnetometer(timestamps[i], xyz[v], xyz[v + 1], xyz[v + 2]);
+                    } else {
+                        algorithm.updateMagnetometer(xyz[v], xyz[v + 1], xyz[v + 2]);
+                    }
+                    break;
+            }
+            if (health != null && failed != failedBefore)
+                health.get(SENSOR_ACCELEROMETER).onRejected(failed - failedBefore);
+        }
+        if (synchronizer != null) {
+            // Only now: in delivery order a burst has all of one sensor before the other, and
+            // draining earlier would pair the first with a stale value of the second
+            final int failedTicks = drainSynchronizer();
+            if (health != null && failedTicks > 0) health.get(SENSOR_ACCELEROMETER).onRejected(failedTicks);
+            failed += failedTicks;
+            if (lastTickTimestamp != previousTick) lastAccTimestamp = lastTickTimestamp;
+        }
+        if (metrics != null) {
+            long computed = System.nanoTime();
+            metrics.record(FusionMetrics.STAGE_FUSION, computed - start);
+            start = computed;
+        }
+
+        if (lastAccTimestamp != -1)
+            notifyAccMag(lastAccTimestamp);
+        if (verboseFusionListener != null && complementaryFilter != null && lastGyroTimestamp != -1)
+            verboseFusionListener.onGyroOrientation(complementaryFilter.getGyroOrientation(), lastGyroTimestamp);
+        if (lastGyroTimestamp != -1)
+            dispatchFusedOrientation(lastGyroTimestamp);
+        if (metrics != null)
+            metrics.record(FusionMetrics.STAGE_DISPATCH, System.nanoTime() - start);
+        return failed;
+    }
+
+    /**
+     * Feeds every pair the synchronizer has ready to the algorithm.
+     *
+     * @return how many of them the algorithm could not use
+     */
+    private int drainSynchronizer() {
+        int failed = 0;
+        while (synchronizer.next()) {
+            final float mag[] = synchronizer.getMagnetometer();
+            final float acc[] = synchronizer.getAccelerometer();
+            algorithm.updateMagnetometer(mag[0], mag[1], mag[2]);
+            if (!algorithm.updateAccelerometer(acc[0], acc[1], acc[2])) failed++;
+            lastTickTimestamp = synchronizer.getTimestamp();
+        }
+        return failed;
+    }
+
+    private void notifyAccMag(long timestamp) {
+        if (verboseFusionListener != null && complementaryFilter != null)
+            verboseFusionListener.onAccMagOrientation(complementaryFilter.getAccMagOrientation(), timestamp);
+    }
+
+    private void updateGyro(long timestamp, float x, float y, float z) {
+        if (resumed) {
+            resumed = false;
+            final long gap = timestamp - prevGyroTimestamp;
+            // Another boot, or too long a pause to treat as one step
+            if (gap <= 0 || gap > MAX_RESUME_GYRO_GAP_NS) prevGyroTimestamp = 0;
+        }
+        float dt = prevGyroTimestamp != 0 ? (timestamp - prevGyroTimestamp) * NS2S : 0;
+        prevGyroTimestamp = timestamp;
+        algorithm.updateGyro(dt, x, y, z);
+        if (predictor != null)
+            predictor.onGyro(timestamp, x, y, z);
+    }
+
+    private void dispatchFusedOrientation(long timestamp) {
+        if (verboseFusionListener == null && fusionListener == null && orientationListener == null
+                && history == null && predictor == null && stream == null)
+            return;
+        algorithm.getOrientation(fusedOrientation);
+        if (history != null)
+            history.record(timestamp, fusedOrientation.getQuaternion());
+        if (predictor != null)
+            predictor.record(timestamp, fusedOrientation.getQuaternion());
+        if (stream != null)
+            stream.publish(timestamp, fusedOrientation.getQuaternion());
+        if (verboseFusionListener != null)
+            verboseFusionListener.onFusedOrientation(fusedOrientation.getEuler(), timestamp);
+        if (fusionListener != null)
+            fusionListener.onFusedOrientation(fusedOrientation.getEuler(), timestamp);
+        if (orientationListener != null)
+            orientationListener.onOrientation(fusedOrientation, timestamp);
+    }
+
+    /**
+     * Forgets all state, as if no sample had been seen. Clears in place, allocates nothing.
+     */
+    public void reset() {
+        prevGyroTimestamp = 0;
+        resumed = false;
+        lastTickTimestamp = -1;
+        if (synchronizer != null)
+            synchronizer.reset();
+        algorithm.reset();
+        fusedOrientation.setIdentity();
+        if (history != null)
+            history.clear();
+        if (predictor != null)
+            predictor.reset();
+    }
+}
@@ -0,0 +1,44 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * A {@link SensorHealth} per sensor the engine consumes, to tell delivery problems (missing,
+ * late or reordered events) from algorithm problems in the field without logging.
+ * Give it to {@link FusionEngine#setHealth}; accuracy changes come from the Android adapter.
+ */
+public class FusionHealth {
+
+    private final SensorHealth sensors[] = new SensorHealth[4];
+
+    public FusionHealth() {
+        sensors[FusionEngine.SENSOR_GYROSCOPE] = new SensorHealth("gyroscope");
+        sensors[FusionEngine.SENSOR_ACCELEROMETER] = new SensorHealth("accelerometer");
+        sensors[FusionEngine.SENSOR_MAGNETOMETER] = new SensorHealth("magnetometer");
+    }
+
+    /**
+     * @param sensor one of the FusionEngine.SENSOR_* ids
+     */
+    public SensorHealth get(int sensor) {
+        return sensors[sensor];
+    }
+
+    public void onAccuracyChanged(int sensor, int accuracy) {
+        if (sensor > 0 && sensor < sensors.length) sensors[sensor].onAccuracyChanged(accuracy);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i < sensors.length; i++) {
+            if (i > 1) builder.append('\n');
+            builder.append(sensors[i].snapshot());
+        }
+        return builder.toString();
+    }
+
+    public void reset() {
+        for (int i = 1; i < sensors.length; i++) {
+            sensors[i].reset();
+        }
+    }
+}
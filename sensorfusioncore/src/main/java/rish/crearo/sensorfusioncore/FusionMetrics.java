@@ -0,0 +1,82 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * Where time goes between a sensor sample and the pixels showing it, one
+ * {@link LatencyHistogram} per stage:
+ * <ul>
+ * <li>{@link #STAGE_DELIVERY}: sensor timestamp to onSensorChanged</li>
+ * <li>{@link #STAGE_FUSION}: running the algorithm on a sample</li>
+ * <li>{@link #STAGE_DISPATCH}: calling the listeners with the result</li>
+ * <li>{@link #STAGE_DRAW}: drawing it</li>
+ * <li>{@link #STAGE_SENSOR_TO_DRAW}: sensor timestamp to the end of that draw</li>
+ * </ul>
+ * Share one instance between the engine, the Android adapter and the view, see their
+ * setMetrics methods. Recording is lock free and allocation free.
+ */
+public class FusionMetrics {
+
+    public static final int STAGE_DELIVERY = 0;
+    public static final int STAGE_FUSION = 1;
+    public static final int STAGE_DISPATCH = 2;
+    public static final int STAGE_DRAW = 3;
+    public static final int STAGE_SENSOR_TO_DRAW = 4;
+
+    static final String STAGE_NAMES[] = {"delivery", "fusion", "dispatch", "draw", "sensor-to-draw"};
+
+    private final LatencyHistogram stages[] = new LatencyHistogram[STAGE_NAMES.length];
+
+    public FusionMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param stage one of the STAGE_* constants
+     */
+    public void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return stages[stage];
+    }
+
+    /**
+     * @param reset also start every histogram over, for periodic reports
+     */
+    public Snapshot snapshot(boolean reset) {
+        LatencyHistogram.Snapshot snapshots[] = new LatencyHistogram.Snapshot[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            snapshots[i] = stages[i].snapshot(reset);
+        }
+        return new Snapshot(snapshots);
+    }
+
+    public static final class Snapshot {
+
+        private final LatencyHistogram.Snapshot stages[];
+
+        Snapshot(LatencyHistogram.Snapshot stages[]) {
+            this.stages = stages;
+        }
+
+        /**
+         * @param stage one of the STAGE_* constants
+         */
+        public LatencyHistogram.Snapshot getStage(int stage) {
+            return stages[stage];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < stages.length; i++) {
+                if (stages[i].getCount() == 0) continue;
+                if (builder.length() > 0) builder.append('\n');
+                builder.append(STAGE_NAMES[i]).append(": ").append(stages[i]);
+            }
+            return builder.toString();
+        }
+    }
+}
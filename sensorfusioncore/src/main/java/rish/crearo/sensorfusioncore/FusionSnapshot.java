@@ -0,0 +1,89 @@
+package rish.crearo.sensorfusioncore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The state of a {@link FusionEngine} at one point in time, from {@link FusionEngine#snapshot},
+ * for {@link FusionEngine#restore} on the next start.
+ * <p>
+ * {@link #toByteArray} gives a compact little endian form to persist, e.g. in preferences:
+ * <pre>
+ *   0  int    magic
+ *   4  short  version
+ *   6  short  algorithm state type, RestorableAlgorithm.getStateType
+ *   8  long   wall clock time taken, milliseconds
+ *   16 long   timestamp of the last gyro sample, nanoseconds, 0 if none
+ *   24 int    number of floats of algorithm state, then the floats
+ * </pre>
+ */
+public final class FusionSnapshot {
+
+    public static final int MAGIC = 0x53534653; // "SFSS" little endian
+    public static final short VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+
+    private final int stateType;
+    private final long wallClockMillis;
+    private final long gyroTimestamp;
+    private final float state[];
+
+    FusionSnapshot(int stateType, long wallClockMillis, long gyroTimestamp, float state[]) {
+        this.stateType = stateType;
+        this.wallClockMillis = wallClockMillis;
+        this.gyroTimestamp = gyroTimestamp;
+        this.state = state;
+    }
+
+    /**
+     * @return the snapshot, or null if bytes are not one, or from another version
+     */
+    public static FusionSnapshot fromByteArray(byte bytes[]) {
+        if (bytes == null || bytes.length < HEADER_SIZE) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC || buffer.getShort(4) != VERSION) return null;
+        final int size = buffer.getInt(24);
+        if (size < 0 || size != (bytes.length - HEADER_SIZE) / 4) return null;
+        float state[] = new float[size];
+        for (int i = 0; i < size; i++) {
+            state[i] = buffer.getFloat(HEADER_SIZE + i * 4);
+        }
+        return new FusionSnapshot(buffer.getShort(6), buffer.getLong(8), buffer.getLong(16), state);
+    }
+
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + state.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) stateType);
+        buffer.putLong(wallClockMillis);
+        buffer.putLong(gyroTimestamp);
+        buffer.putInt(state.length);
+        for (float value : state) {
+            buffer.putFloat(value);
+        }
+        return buffer.array();
+    }
+
+    public int getStateType() {
+        return stateType;
+    }
+
+    /**
+     * @return System.currentTimeMillis() based time the snapshot was taken
+     */
+    public long getWallClockMillis() {
+        return wallClockMillis;
+    }
+
+    /**
+     * @return sensor timestamp of the last gyro sample before the snapshot, 0 if there was none
+     */
+    public long getGyroTimestamp() {
+        return gyroTimestamp;
+    }
+
+    float[] getState() {
+        return state;
+    }
+}
@@ -0,0 +1,17 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * How {@link FusionEngine} integrates gyroscope samples.
+ */
+public enum IntegrationMode {
+    /**
+     * Adds dt * angularVelocity to pitch, roll and yaw independently. Cheap, but only right for
+     * small rotations, since rotations about different axes do not commute.
+     */
+    EULER,
+    /**
+     * Integrates into a unit quaternion. Correct for arbitrary rotations; Euler angles are only
+     * computed when someone asks for them.
+     */
+    QUATERNION
+}
@@ -0,0 +1,30 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * How a gyro step turns the rate samples at both ends of the step into a rotation. The higher
+ * order schemes use the previous sample as well as the current one, so they hold the same
+ * accuracy at a lower gyro rate; IntegrationReport in the benchmarks measures by how much.
+ */
+public enum IntegrationScheme {
+    /**
+     * The current sample's rate for the whole step, dt * angularVelocity. What the library
+     * always did; error grows with the square of the step.
+     */
+    FIRST_ORDER,
+    /**
+     * The mean of the previous and current rate over the step.
+     */
+    MIDPOINT,
+    /**
+     * Midpoint plus the two sample coning correction, (w0 x w1) * dt^2 / 12: the rotation
+     * that comes from the rate axis itself turning during the step. Right for a rate that
+     * changes linearly over the step, to third order. Quaternion mode only; EULER mode uses
+     * midpoint.
+     */
+    CONING,
+    /**
+     * Classic fourth order Runge-Kutta on the quaternion rate equation, with the rate
+     * interpolated linearly between the samples. Quaternion mode only; EULER mode uses midpoint.
+     */
+    RK4
+}
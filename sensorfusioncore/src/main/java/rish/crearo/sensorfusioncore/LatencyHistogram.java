@@ -0,0 +1,133 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations in nanoseconds: four buckets per power of two, so any
+ * recorded value is known to within 25%, from 1 ns up to the range of a long.
+ * <p>
+ * Preallocated and lock free: {@link #record} is a couple of atomic increments, safe from any
+ * number of threads. {@link #snapshot} copies the counts out for reading, and may run
+ * concurrently with recording; a snapshot can then be off by the samples recorded meanwhile.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current;
+        while (nanos > (current = max.get())) {
+            if (max.compareAndSet(current, nanos)) break;
+        }
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls into bucket
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        final int msb = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long sub = bucket % SUB_BUCKETS;
+        final long lower = (SUB_BUCKETS + sub) << (msb - SUB_BUCKET_BITS);
+        return lower + (1L << (msb - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Copies the current state out. Allocates, so call it from a reporting thread rather than
+     * the sensor path.
+     *
+     * @param reset also start over from zero, so the next snapshot only covers what follows
+     */
+    public Snapshot snapshot(boolean reset) {
+        long bucketCounts[] = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketCounts[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            total += bucketCounts[i];
+        }
+        long snapshotSum = reset ? sum.getAndSet(0) : sum.get();
+        long snapshotMax = reset ? max.getAndSet(0) : max.get();
+        if (reset) count.set(0);
+        return new Snapshot(bucketCounts, total, snapshotSum, snapshotMax);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+
+        private final long counts[];
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long counts[], long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public long getMaxNanos() {
+            return max;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return upper bound of the bucket holding that percentile, never above the max
+         */
+        public long getPercentileNanos(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(bucketUpperBound(i), max);
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                    count, getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+                    getPercentileNanos(99) / 1e6, max / 1e6);
+        }
+    }
+}
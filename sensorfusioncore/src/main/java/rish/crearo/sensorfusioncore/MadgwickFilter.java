@@ -0,0 +1,210 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * Madgwick's gradient descent orientation filter (S. Madgwick, "An efficient orientation filter
+ * for inertial and inertial/magnetic sensor arrays", 2010), following his reference
+ * implementation. Falls back to the gyro + accelerometer variant until a magnetometer sample
+ * is available.
+ * <p>
+ * The quaternion is absolute: it rotates device coordinates into an earth frame with z up and
+ * x towards magnetic north. Constant cost per sample, no trig, no allocation.
+ */
+public class MadgwickFilter implements RestorableAlgorithm {
+
+    /* Madgwick's suggested default, trades convergence speed against gyro noise rejection */
+    public static final float DEFAULT_BETA = 0.1f;
+
+    private static final int STATE_TYPE = 3;
+
+    private final float beta;
+
+    /* (w, x, y, z) */
+    private final float q[] = {1, 0, 0, 0};
+    private float ax, ay, az;
+    private float mx, my, mz;
+    private boolean hasAcc, hasMag;
+
+    public MadgwickFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    /**
+     * @param beta gain of the gradient step, in rad/s
+     */
+    public MadgwickFilter(float beta) {
+        this.beta = beta;
+    }
+
+    @Override
+    public boolean updateAccelerometer(float x, float y, float z) {
+        ax = x;
+        ay = y;
+        az = z;
+        hasAcc = x != 0 || y != 0 || z != 0;
+        return hasAcc;
+    }
+
+    @Override
+    public void updateMagnetometer(float x, float y, float z) {
+        mx = x;
+        my = y;
+        mz = z;
+        hasMag = x != 0 || y != 0 || z != 0;
+    }
+
+    @Override
+    public void updateGyro(float dt, float gx, float gy, float gz) {
+        float q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+
+        // Rate of change of quaternion from gyroscope
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        if (hasAcc) {
+            float s0, s1, s2, s3;
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            final float ax = this.ax * recipNorm, ay = this.ay * recipNorm, az = this.az * recipNorm;
+
+            if (hasMag) {
+                recipNorm = invSqrt(this.mx * this.mx + this.my * this.my + this.mz * this.mz);
+                final float mx = this.mx * recipNorm, my = this.my * recipNorm, mz = this.mz * recipNorm;
+
+                final float _2q0mx = 2.0f * q0 * mx;
+                final float _2q0my = 2.0f * q0 * my;
+                final float _2q0mz = 2.0f * q0 * mz;
+                final float _2q1mx = 2.0f * q1 * mx;
+                final float _2q0 = 2.0f * q0;
+                final float _2q1 = 2.0f * q1;
+                final float _2q2 = 2.0f * q2;
+                final float _2q3 = 2.0f * q3;
+                final float _2q0q2 = 2.0f * q0 * q2;
+                final float _2q2q3 = 2.0f * q2 * q3;
+                final float q0q0 = q0 * q0;
+                final float q0q1 = q0 * q1;
+                final float q0q2 = q0 * q2;
+                final float q0q3 = q0 * q3;
+                final float q1q1 = q1 * q1;
+                final float q1q2 = q1 * q2;
+                final float q1q3 = q1 * q3;
+                final float q2q2 = q2 * q2;
+                final float q2q3 = q2 * q3;
+                final float q3q3 = q3 * q3;
+
+                // Reference direction of Earth's magnetic field
+                final float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2
+                        + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+                final float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1
+                        + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+                final float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+                final float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1
+                        + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+                final float _4bx = 2.0f * _2bx;
+                final float _4bz = 2.0f * _2bz;
+
+                // Objective function residuals, then the gradient step
+                final float fgx = 2.0f * q1q3 - _2q0q2 - ax;
+                final float fgy = 2.0f * q0q1 + _2q2q3 - ay;
+                final float fgz = 1 - 2.0f * q1q1 - 2.0f * q2q2 - az;
+                final float fbx = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+                final float fby = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+                final float fbz = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz;
+
+                s0 = -_2q2 * fgx + _2q1 * fgy - _2bz * q2 * fbx + (-_2bx * q3 + _2bz * q1) * fby
+                        + _2bx * q2 * fbz;
+                s1 = _2q3 * fgx + _2q0 * fgy - 2.0f * _2q1 * fgz + _2bz * q3 * fbx
+                        + (_2bx * q2 + _2bz * q0) * fby + (_2bx * q3 - _4bz * q1) * fbz;
+                s2 = -_2q0 * fgx + _2q3 * fgy - 2.0f * _2q2 * fgz + (-_4bx * q2 - _2bz * q0) * fbx
+                        + (_2bx * q1 + _2bz * q3) * fby + (_2bx * q0 - _4bz * q2) * fbz;
+                s3 = _2q1 * fgx + _2q2 * fgy + (-_4bx * q3 + _2bz * q1) * fbx
+                        + (-_2bx * q0 + _2bz * q2) * fby + _2bx * q1 * fbz;
+            } else {
+                final float _2q0 = 2.0f * q0;
+                final float _2q1 = 2.0f * q1;
+                final float _2q2 = 2.0f * q2;
+                final float _2q3 = 2.0f * q3;
+                final float _4q0 = 4.0f * q0;
+                final float _4q1 = 4.0f * q1;
+                final float _4q2 = 4.0f * q2;
+                final float _8q1 = 8.0f * q1;
+                final float _8q2 = 8.0f * q2;
+                final float q0q0 = q0 * q0;
+                final float q1q1 = q1 * q1;
+                final float q2q2 = q2 * q2;
+                final float q3q3 = q3 * q3;
+
+                s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+                s1 = _4q1 * q3q3 - _2q3 * ax + 4.0f * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1
+                        + _8q1 * q2q2 + _4q1 * az;
+                s2 = 4.0f * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1
+                        + _8q2 * q2q2 + _4q2 * az;
+                s3 = 4.0f * q1q1 * q3 - _2q1 * ax + 4.0f * q2q2 * q3 - _2q2 * ay;
+            }
+
+            final float sNormSq = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (sNormSq > 0) {
+                recipNorm = invSqrt(sNormSq);
+                qDot1 -= beta * s0 * recipNorm;
+                qDot2 -= beta * s1 * recipNorm;
+                qDot3 -= beta * s2 * recipNorm;
+                qDot4 -= beta * s3 * recipNorm;
+            }
+        }
+
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+
+        final float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q[0] = q0 * recipNorm;
+        q[1] = q1 * recipNorm;
+        q[2] = q2 * recipNorm;
+        q[3] = q3 * recipNorm;
+    }
+
+    @Override
+    public void getOrientation(Orientation orientation) {
+        orientation.setQuaternion(q);
+    }
+
+    @Override
+    public void reset() {
+        Quat.setIdentity(q);
+        hasAcc = false;
+        hasMag = false;
+    }
+
+    @Override
+    public int getStateType() {
+        return STATE_TYPE;
+    }
+
+    @Override
+    public int getStateSize() {
+        return 4;
+    }
+
+    /**
+     * Just the quaternion: if the device moved while stopped, the filter converges from there
+     * as it would from identity, only usually from much closer.
+     */
+    @Override
+    public void saveState(float state[]) {
+        System.arraycopy(q, 0, state, 0, 4);
+    }
+
+    @Override
+    public void restoreState(float state[]) {
+        reset();
+        System.arraycopy(state, 0, q, 0, 4);
+        Quat.normalize(q);
+    }
+
+    private static float invSqrt(float x) {
+        return 1.0f / (float) Math.sqrt(x);
+    }
+}
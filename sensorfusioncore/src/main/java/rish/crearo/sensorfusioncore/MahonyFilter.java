@@ -0,0 +1,191 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * Mahony's nonlinear complementary filter on SO(3) (R. Mahony et al., 2008), in the explicit
+ * PI form of his reference implementation: the cross product between measured and estimated
+ * gravity (and magnetic field) directions is fed back into the gyro rate. The integral term
+ * estimates gyro bias. Falls back to gyro + accelerometer until a magnetometer sample arrives.
+ * <p>
+ * The quaternion is absolute: it rotates device coordinates into an earth frame with z up and
+ * x towards magnetic north. Constant cost per sample, no trig, no allocation.
+ */
+public class MahonyFilter implements RestorableAlgorithm {
+
+    public static final float DEFAULT_KP = 0.5f;
+    public static final float DEFAULT_KI = 0.0f;
+
+    private static final int STATE_TYPE = 4;
+
+    private final float twoKp;
+    private final float twoKi;
+
+    /* (w, x, y, z) */
+    private final float q[] = {1, 0, 0, 0};
+    /* integral error, scaled by Ki */
+    private float integralFBx, integralFBy, integralFBz;
+    private float ax, ay, az;
+    private float mx, my, mz;
+    private boolean hasAcc, hasMag;
+
+    public MahonyFilter() {
+        this(DEFAULT_KP, DEFAULT_KI);
+    }
+
+    /**
+     * @param kp proportional gain, in 1/s
+     * @param ki integral gain, in 1/s^2; 0 disables gyro bias estimation
+     */
+    public MahonyFilter(float kp, float ki) {
+        this.twoKp = 2.0f * kp;
+        this.twoKi = 2.0f * ki;
+    }
+
+    @Override
+    public boolean updateAccelerometer(float x, float y, float z) {
+        ax = x;
+        ay = y;
+        az = z;
+        hasAcc = x != 0 || y != 0 || z != 0;
+        return hasAcc;
+    }
+
+    @Override
+    public void updateMagnetometer(float x, float y, float z) {
+        mx = x;
+        my = y;
+        mz = z;
+        hasMag = x != 0 || y != 0 || z != 0;
+    }
+
+    @Override
+    public void updateGyro(float dt, float gx, float gy, float gz) {
+        float q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+
+        if (hasAcc) {
+            float recipNorm = invSqrt(ax * ax + ay * ay + az * az);
+            final float ax = this.ax * recipNorm, ay = this.ay * recipNorm, az = this.az * recipNorm;
+
+            final float q0q1 = q0 * q1;
+            final float q0q2 = q0 * q2;
+            final float q1q1 = q1 * q1;
+            final float q1q3 = q1 * q3;
+            final float q2q2 = q2 * q2;
+            final float q2q3 = q2 * q3;
+            final float q3q3 = q3 * q3;
+
+            // Estimated direction of gravity
+            final float halfvx = q1q3 - q0q2;
+            final float halfvy = q0q1 + q2q3;
+            final float halfvz = q0 * q0 - 0.5f + q3q3;
+
+            // Error is the cross product between estimated and measured directions
+            float halfex = ay * halfvz - az * halfvy;
+            float halfey = az * halfvx - ax * halfvz;
+            float halfez = ax * halfvy - ay * halfvx;
+
+            if (hasMag) {
+                recipNorm = invSqrt(this.mx * this.mx + this.my * this.my + this.mz * this.mz);
+                final float mx = this.mx * recipNorm, my = this.my * recipNorm, mz = this.mz * recipNorm;
+                final float q0q3 = q0 * q3;
+                final float q1q2 = q1 * q2;
+
+                // Reference direction of Earth's magnetic field
+                final float hx = 2.0f * (mx * (0.5f - q2q2 - q3q3) + my * (q1q2 - q0q3) + mz * (q1q3 + q0q2));
+                final float hy = 2.0f * (mx * (q1q2 + q0q3) + my * (0.5f - q1q1 - q3q3) + mz * (q2q3 - q0q1));
+                final float bx = (float) Math.sqrt(hx * hx + hy * hy);
+                final float bz = 2.0f * (mx * (q1q3 - q0q2) + my * (q2q3 + q0q1) + mz * (0.5f - q1q1 - q2q2));
+
+                // Estimated direction of magnetic field
+                final float halfwx = bx * (0.5f - q2q2 - q3q3) + bz * (q1q3 - q0q2);
+                final float halfwy = bx * (q1q2 - q0q3) + bz * (q0q1 + q2q3);
+                final float halfwz = bx * (q0q2 + q1q3) + bz * (0.5f - q1q1 - q2q2);
+
+                halfex += my * halfwz - mz * halfwy;
+                halfey += mz * halfwx - mx * halfwz;
+                halfez += mx * halfwy - my * halfwx;
+            }
+
+            if (twoKi > 0.0f) {
+                integralFBx += twoKi * halfex * dt;
+                integralFBy += twoKi * halfey * dt;
+                integralFBz += twoKi * halfez * dt;
+                gx += integralFBx;
+                gy += integralFBy;
+                gz += integralFBz;
+            }
+
+            gx += twoKp * halfex;
+            gy += twoKp * halfey;
+            gz += twoKp * halfez;
+        }
+
+        // Integrate rate of change of quaternion
+        final float halfDt = 0.5f * dt;
+        gx *= halfDt;
+        gy *= halfDt;
+        gz *= halfDt;
+        final float qa = q0, qb = q1, qc = q2;
+        q0 += -qb * gx - qc * gy - q3 * gz;
+        q1 += qa * gx + qc * gz - q3 * gy;
+        q2 += qa * gy - qb * gz + q3 * gx;
+        q3 += qa * gz + qb * gy - qc * gx;
+
+        final float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q[0] = q0 * recipNorm;
+        q[1] = q1 * recipNorm;
+        q[2] = q2 * recipNorm;
+        q[3] = q3 * recipNorm;
+    }
+
+    @Override
+    public void getOrientation(Orientation orientation) {
+        orientation.setQuaternion(q);
+    }
+
+    @Override
+    public void reset() {
+        Quat.setIdentity(q);
+        integralFBx = 0;
+        integralFBy = 0;
+        integralFBz = 0;
+        hasAcc = false;
+        hasMag = false;
+    }
+
+    @Override
+    public int getStateType() {
+        return STATE_TYPE;
+    }
+
+    @Override
+    public int getStateSize() {
+        return 4 + 3;
+    }
+
+    /**
+     * The quaternion and the integral term, i.e. the gyro bias learnt with a non zero Ki.
+     */
+    @Override
+    public void saveState(float state[]) {
+        System.arraycopy(q, 0, state, 0, 4);
+        state[4] = integralFBx;
+        state[5] = integralFBy;
+        state[6] = integralFBz;
+    }
+
+    @Override
+    public void restoreState(float state[]) {
+        reset();
+        System.arraycopy(state, 0, q, 0, 4);
+        Quat.normalize(q);
+        integralFBx = state[4];
+        integralFBy = state[5];
+        integralFBz = state[6];
+    }
+
+    private static float invSqrt(float x) {
+        return 1.0f / (float) Math.sqrt(x);
+    }
+}
@@ -0,0 +1,220 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells from the gyroscope and accelerometer whether the device is stationary, moving a little
+ * or moving, so sensors can be slowed down when nothing happens.
+ * <p>
+ * Tracks a moving average of the angular speed and the variance of the acceleration magnitude,
+ * both over about {@link #WINDOW_SECONDS}. States go up as soon as either crosses a threshold,
+ * so motion is never missed for long, but only go down after the calmer state held for
+ * {@link #DEFAULT_SETTLE_SECONDS}, so a pause mid-gesture does not cause flapping. Works from
+ * the accelerometer alone when there is no gyroscope.
+ * <p>
+ * Also keeps the sensor time spent in each state. Allocation free. One thread feeds it and may
+ * use the getters; any thread may take a {@link #snapshot} of the state and times, published
+ * the way {@link SensorHealth} does.
+ */
+public class MotionClassifier {
+
+    public static final float WINDOW_SECONDS = 0.5f;
+    public static final float DEFAULT_SETTLE_SECONDS = 2f;
+
+    /* rad/s, and standard deviation of |acc| in m/s^2 */
+    private static final float STATIONARY_GYRO = 0.02f;
+    private static final float STATIONARY_ACC_STD = 0.05f;
+    private static final float LOW_MOTION_GYRO = 0.3f;
+    private static final float LOW_MOTION_ACC_STD = 0.5f;
+
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    private static final MotionState STATES[] = MotionState.values();
+
+    private static final int STATE = 0;
+    private static final int STATE_SINCE = 1;
+    private static final int TRANSITIONS = 2;
+    private static final int TIME_IN_STATE = 3;
+    private static final int SLOTS = TIME_IN_STATE + STATES.length;
+
+    private final long settleNs;
+
+    private float gyroMean;
+    private long lastGyroTimestamp = -1;
+    private float accMean;
+    private float accMeanSquare;
+    private long lastAccTimestamp = -1;
+
+    private MotionState state = MotionState.MOVING;
+    /* Since when samples have pointed at a lower state than the current one, -1 if they do not */
+    private long calmerSince = -1;
+    private long stateSince = -1;
+    private long lastTimestamp = -1;
+    private final long timeInState[] = new long[STATES.length];
+    private int transitions;
+    private final AtomicLongArray values = new AtomicLongArray(SLOTS);
+
+    public MotionClassifier() {
+        this(DEFAULT_SETTLE_SECONDS);
+    }
+
+    /**
+     * @param settleSeconds how long a calmer state must hold before switching down to it
+     */
+    public MotionClassifier(float settleSeconds) {
+        this.settleNs = (long) (settleSeconds * 1e9);
+        values.set(STATE, state.ordinal());
+        values.set(STATE_SINCE, stateSince);
+    }
+
+    /**
+     * @return true if this sample changed the state
+     */
+    public boolean onGyro(long timestamp, float x, float y, float z) {
+        float speed = (float) Math.sqrt(x * x + y * y + z * z);
+        float k = weight(timestamp, lastGyroTimestamp);
+        lastGyroTimestamp = timestamp;
+        gyroMean += k * (speed - gyroMean);
+        return update(timestamp);
+    }
+
+    /**
+     * @return true if this sample changed the state
+     */
+    public boolean onAccelerometer(long timestamp, float x, float y, float z) {
+        float norm = (float) Math.sqrt(x * x + y * y + z * z);
+        if (lastAccTimestamp == -1) {
+            accMean = norm;
+            accMeanSquare = norm * norm;
+        }
+        float k = weight(timestamp, lastAccTimestamp);
+        lastAccTimestamp = timestamp;
+        accMean += k * (norm - accMean);
+        accMeanSquare += k * (norm * norm - accMeanSquare);
+        return update(timestamp);
+    }
+
+    /**
+     * Weight of a new sample in an exponential average with a time constant of WINDOW_SECONDS,
+     * independent of the sample rate, which is exactly what changes underneath us.
+     */
+    private static float weight(long timestamp, long previous) {
+        if (previous == -1) return 1;
+        float dt = (timestamp - previous) * NS2S;
+        return dt <= 0 ? 0 : Math.min(1, dt / (WINDOW_SECONDS + dt));
+    }
+
+    private boolean update(long timestamp) {
+        if (stateSince == -1) values.lazySet(STATE_SINCE, stateSince = timestamp);
+        if (lastTimestamp != -1 && timestamp > lastTimestamp) {
+            final int i = state.ordinal();
+            values.lazySet(TIME_IN_STATE + i, timeInState[i] += timestamp - lastTimestamp);
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+
+        final MotionState measured = measure();
+        if (measured.ordinal() > state.ordinal()) {
+            return enter(measured, timestamp);
+        }
+        if (measured.ordinal() < state.ordinal()) {
+            if (calmerSince == -1) calmerSince = timestamp;
+            if (timestamp - calmerSince >= settleNs) return enter(measured, timestamp);
+        } else {
+            calmerSince = -1;
+        }
+        return false;
+    }
+
+    private MotionState measure() {
+        final float accStd = (float) Math.sqrt(Math.max(0, accMeanSquare - accMean * accMean));
+        if (gyroMean < STATIONARY_GYRO && accStd < STATIONARY_ACC_STD) return MotionState.STATIONARY;
+        if (gyroMean < LOW_MOTION_GYRO && accStd < LOW_MOTION_ACC_STD) return MotionState.LOW_MOTION;
+        return MotionState.MOVING;
+    }
+
+    private boolean enter(MotionState next, long timestamp) {
+        state = next;
+        stateSince = timestamp;
+        calmerSince = -1;
+        transitions++;
+        values.lazySet(STATE, state.ordinal());
+        values.lazySet(STATE_SINCE, stateSince);
+        values.lazySet(TRANSITIONS, transitions);
+        return true;
+    }
+
+    public MotionState getState() {
+        return state;
+    }
+
+    /**
+     * @return sensor time of the sample that entered the current state, nanoseconds
+     */
+    public long getStateSince() {
+        return stateSince;
+    }
+
+    /**
+     * @return nanoseconds of sensor time spent in state so far
+     */
+    public long getTimeInState(MotionState state) {
+        return timeInState[state.ordinal()];
+    }
+
+    /**
+     * @return number of state changes so far
+     */
+    public int getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Back to MOVING with empty averages; the time spent in each state is kept.
+     */
+    public void reset() {
+        gyroMean = 0;
+        lastGyroTimestamp = -1;
+        lastAccTimestamp = -1;
+        state = MotionState.MOVING;
+        calmerSince = -1;
+        stateSince = -1;
+        lastTimestamp = -1;
+        values.lazySet(STATE, state.ordinal());
+        values.lazySet(STATE_SINCE, stateSince);
+    }
+
+    /**
+     * State, transitions and time per state as of about now, from any thread. Each field is
+     * current, but not necessarily from the same sample as the others.
+     */
+    public Snapshot snapshot() {
+        long timeInState[] = new long[STATES.length];
+        for (int i = 0; i < timeInState.length; i++) {
+            timeInState[i] = values.get(TIME_IN_STATE + i);
+        }
+        return new Snapshot(STATES[(int) values.get(STATE)], values.get(STATE_SINCE),
+                (int) values.get(TRANSITIONS), timeInState);
+    }
+
+    public static final class Snapshot {
+
+        public final MotionState state;
+        /* Sensor time of the sample that entered state, nanoseconds, -1 before the first */
+        public final long stateSinceNanos;
+        public final int transitions;
+        private final long timeInState[];
+
+        Snapshot(MotionState state, long stateSinceNanos, int transitions, long timeInState[]) {
+            this.state = state;
+            this.stateSinceNanos = stateSinceNanos;
+            this.transitions = transitions;
+            this.timeInState = timeInState;
+        }
+
+        /**
+         * @return nanoseconds of sensor time spent in state
+         */
+        public long getTimeInState(MotionState state) {
+            return timeInState[state.ordinal()];
+        }
+    }
+}
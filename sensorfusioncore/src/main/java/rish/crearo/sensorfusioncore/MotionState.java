@@ -0,0 +1,19 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * How much the device is moving, as judged by {@link MotionClassifier}.
+ */
+public enum MotionState {
+    /**
+     * Lying still, e.g. on a desk: no rotation beyond gyro noise, constant gravity.
+     */
+    STATIONARY,
+    /**
+     * Held in a hand or slowly turned.
+     */
+    LOW_MOTION,
+    /**
+     * Anything faster.
+     */
+    MOVING
+}
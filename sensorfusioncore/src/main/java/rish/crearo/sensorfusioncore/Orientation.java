@@ -0,0 +1,95 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * An orientation as a quaternion, a rotation matrix and PRY Euler angles. Whichever form the
+ * engine produces is stored; the other forms are computed on first access after each update,
+ * so consumers only pay for the representation they actually use.
+ * <p>
+ * Instances handed to listeners are reused by the engine: read them inside the callback and
+ * copy anything you want to keep. The returned arrays must not be modified.
+ */
+public class Orientation {
+
+    private final float quaternion[] = new float[4];
+    private final float rotationMatrix[] = new float[9];
+    private final float euler[] = new float[3];
+
+    private boolean quaternionValid;
+    private boolean rotationMatrixValid;
+    private boolean eulerValid;
+
+    public Orientation() {
+        setIdentity();
+    }
+
+    public void setIdentity() {
+        Quat.setIdentity(quaternion);
+        quaternionValid = true;
+        rotationMatrixValid = false;
+        eulerValid = false;
+    }
+
+    public void setQuaternion(float q[]) {
+        System.arraycopy(q, 0, quaternion, 0, 4);
+        quaternionValid = true;
+        rotationMatrixValid = false;
+        eulerValid = false;
+    }
+
+    /**
+     * @param pry pitch, roll, yaw (x, y, z) in radians
+     */
+    public void setEuler(float pry[]) {
+        System.arraycopy(pry, 0, euler, 0, 3);
+        eulerValid = true;
+        quaternionValid = false;
+        rotationMatrixValid = false;
+    }
+
+    /**
+     * Copies other, in whichever representations it currently holds, without converting.
+     */
+    public void set(Orientation other) {
+        quaternionValid = other.quaternionValid;
+        rotationMatrixValid = other.rotationMatrixValid;
+        eulerValid = other.eulerValid;
+        if (quaternionValid) System.arraycopy(other.quaternion, 0, quaternion, 0, 4);
+        if (rotationMatrixValid) System.arraycopy(other.rotationMatrix, 0, rotationMatrix, 0, 9);
+        if (eulerValid) System.arraycopy(other.euler, 0, euler, 0, 3);
+    }
+
+    /**
+     * @return (w, x, y, z), rotating device coordinates into the reference frame
+     */
+    public float[] getQuaternion() {
+        if (!quaternionValid) {
+            Quat.fromEuler(euler, quaternion);
+            quaternionValid = true;
+        }
+        return quaternion;
+    }
+
+    /**
+     * @return 3x3 row major rotation matrix, same layout as SensorManager.getRotationMatrix
+     */
+    public float[] getRotationMatrix() {
+        if (!rotationMatrixValid) {
+            Quat.toRotationMatrix(getQuaternion(), rotationMatrix);
+            rotationMatrixValid = true;
+        }
+        return rotationMatrix;
+    }
+
+    /**
+     * @return PRY (x, y, z) in radians
+     */
+    public float[] getEuler() {
+        if (!eulerValid) {
+            Quat.toEuler(quaternion, euler);
+            eulerValid = true;
+        }
+        return euler;
+    }
+}
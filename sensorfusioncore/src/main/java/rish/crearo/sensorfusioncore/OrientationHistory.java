@@ -0,0 +1,196 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+
+/**
+ * The last N fused orientations with their timestamps, so data that arrives later (camera
+ * frames, network packets, ...) can be matched with the orientation at the time it was captured.
+ * <p>
+ * A preallocated ring of primitives: recording and {@link #orientationAt} are allocation free,
+ * lookups are a binary search plus a normalized lerp between the two neighbouring samples.
+ * <p>
+ * One thread may record (normally the engine's, via {@link FusionEngine#setHistory}) while any
+ * number of threads query. Readers never block the writer: they validate after reading that
+ * the slots they used were not overwritten meanwhile, and retry if they were. All slots are
+ * accessed through atomic arrays so those checks are ordered on every JVM and on ART.
+ */
+public class OrientationHistory implements OrientationListener {
+
+    private final int capacity;
+    private final AtomicLongArray timestamps;
+    /* (w, x, y, z) per slot, as float bits */
+    private final AtomicIntegerArray quaternions;
+    /* Number of samples ever recorded; sample n lives in slot n % capacity */
+    private final AtomicLong head = new AtomicLong();
+
+    /* Writer only */
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    /**
+     * @param capacity number of samples kept
+     */
+    public OrientationHistory(int capacity) {
+        if (capacity < 2) throw new IllegalArgumentException("capacity must be at least 2");
+        this.capacity = capacity;
+        timestamps = new AtomicLongArray(capacity);
+        quaternions = new AtomicIntegerArray(capacity * 4);
+    }
+
+    /**
+     * Sized to hold the given duration at the given rate, e.g. 2 seconds of 400 Hz gyro.
+     */
+    public static OrientationHistory forDuration(float seconds, float sampleRateHz) {
+        return new OrientationHistory((int) Math.ceil(seconds * sampleRateHz) + 1);
+    }
+
+    @Override
+    public void onOrientation(Orientation orientation, long timestamp) {
+        record(timestamp, orientation.getQuaternion());
+    }
+
+    /**
+     * Writer thread only.
+     *
+     * @param q (w, x, y, z)
+     * @return false if the sample was dropped for not being newer than the last one
+     */
+    public boolean record(long timestamp, float q[]) {
+        if (timestamp <= lastTimestamp) {
+            return false;
+        }
+        lastTimestamp = timestamp;
+
+        final long n = head.get();
+        final int slot = (int) (n % capacity);
+        // lazySet keeps these ordered after the previous head update; readers that see them
+        // therefore also see that head, which is what their overwrite check relies on.
+        timestamps.lazySet(slot, timestamp);
+        quaternions.lazySet(slot * 4, Float.floatToRawIntBits(q[0]));
+        quaternions.lazySet(slot * 4 + 1, Float.floatToRawIntBits(q[1]));
+        quaternions.lazySet(slot * 4 + 2, Float.floatToRawIntBits(q[2]));
+        quaternions.lazySet(slot * 4 + 3, Float.floatToRawIntBits(q[3]));
+        head.set(n + 1);
+        return true;
+    }
+
+    /**
+     * Orientation at the given time, interpolated between the two closest samples.
+     *
+     * @param out receives (w, x, y, z)
+     * @return false if timestamp is outside the range currently held, out is then untouched
+     */
+    public boolean orientationAt(long timestamp, float out[]) {
+        while (true) {
+            final long end = head.get();
+            final long start = Math.max(0, end - capacity + 1);
+            if (end - start < 1
+                    || timestamp < timestampOf(start)
+                    || timestamp > timestampOf(end - 1)) {
+                if (isValid(start)) return false;
+                continue;
+            }
+
+            // Last sample at or before timestamp
+            long lo = start, hi = end - 1;
+            while (lo < hi) {
+                final long mid = (lo + hi + 1) >>> 1;
+                if (timestampOf(mid) <= timestamp) lo = mid;
+                else hi = mid - 1;
+            }
+
+            final int a = (int) (lo % capacity) * 4;
+            float w = quaternionOf(a), x = quaternionOf(a + 1), y = quaternionOf(a + 2), z = quaternionOf(a + 3);
+            if (lo < end - 1) {
+                final long t0 = timestampOf(lo);
+                final long t1 = timestampOf(lo + 1);
+                final int b = (int) ((lo + 1) % capacity) * 4;
+                final float bw = quaternionOf(b), bx = quaternionOf(b + 1), by = quaternionOf(b + 2), bz = quaternionOf(b + 3);
+                float t = (float) (timestamp - t0) / (float) (t1 - t0);
+                if (w * bw + x * bx + y * by + z * bz < 0) t = -t; // short way round
+                final float s = 1.0f - Math.abs(t);
+                w = s * w + t * bw;
+                x = s * x + t * bx;
+                y = s * y + t * by;
+                z = s * z + t * bz;
+            }
+
+            // Every index touched is >= start, so start surviving means all of them did
+            if (!isValid(start)) continue;
+
+            out[0] = w;
+            out[1] = x;
+            out[2] = y;
+            out[3] = z;
+            Quat.normalize(out);
+            return true;
+        }
+    }
+
+    /**
+     * Same as {@link #orientationAt(long, float[])}, into an Orientation so Euler angles or the
+     * matrix can be read from it.
+     *
+     * @param scratch 4 floats owned by the calling thread
+     */
+    public boolean orientationAt(long timestamp, float scratch[], Orientation out) {
+        if (!orientationAt(timestamp, scratch)) {
+            return false;
+        }
+        out.setQuaternion(scratch);
+        return true;
+    }
+
+    /**
+     * @return timestamp of the oldest sample held, or Long.MIN_VALUE if empty
+     */
+    public long getOldestTimestamp() {
+        while (true) {
+            final long end = head.get();
+            if (end == 0) return Long.MIN_VALUE;
+            final long start = Math.max(0, end - capacity + 1);
+            final long timestamp = timestampOf(start);
+            if (isValid(start)) return timestamp;
+        }
+    }
+
+    /**
+     * @return timestamp of the newest sample held, or Long.MIN_VALUE if empty
+     */
+    public long getNewestTimestamp() {
+        final long end = head.get();
+        return end == 0 ? Long.MIN_VALUE : timestampOf(end - 1);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writer thread only; readers racing with a clear may still see old samples.
+     */
+    public void clear() {
+        head.set(0);
+        lastTimestamp = Long.MIN_VALUE;
+    }
+
+    private long timestampOf(long index) {
+        return timestamps.get((int) (index % capacity));
+    }
+
+    private float quaternionOf(int i) {
+        return Float.intBitsToFloat(quaternions.get(i));
+    }
+
+    /**
+     * Sample index survived everything read so far: the writer works on slot head % capacity,
+     * which is where index head - capacity used to live.
+     */
+    private boolean isValid(long index) {
+        return index > head.get() - capacity;
+    }
+}
@@ -0,0 +1,374 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+
+/**
+ * Extrapolates the latest orientation to a later time, e.g. when the frame showing it will
+ * reach the display, from the angular velocity and its trend:
+ * {@code q(t + h) = q(t) * exp((w h + a h^2 / 2) / 2)}, w and a in device coordinates.
+ * <p>
+ * The angular velocity comes from gyro samples when it is fed any ({@link #onGyro}), otherwise
+ * it is derived from consecutive orientations, which also works for acc/mag only rotation
+ * matrices. The trend is a smoothed derivative of it. Extrapolation never reaches further than
+ * the horizon given to the constructor; beyond that error grows faster than it helps.
+ * <p>
+ * With {@link #setErrorHorizon} the predictor also grades itself: every new orientation is
+ * compared with the prediction made that long before, and with the stale orientation a
+ * display would have shown without prediction. See {@link #getError()}.
+ * <p>
+ * One thread feeds it (normally the engine's, via {@link FusionEngine#setPredictor}) while any
+ * thread, e.g. the render thread, calls {@link #predict}. The published state is guarded by a
+ * sequence counter; readers retry if the writer published while they were reading, the writer
+ * never waits. No allocation on either side.
+ */
+public class OrientationPredictor implements OrientationListener {
+
+    public static final long DEFAULT_MAX_HORIZON_NS = 50000000L;
+
+    /* Smoothing time constant of the angular acceleration, seconds */
+    private static final float TREND_TIME_CONSTANT = 0.03f;
+    private static final float NS2S = 1.0f / 1000000000.0f;
+    private static final float TO_DEGREES = (float) (180 / Math.PI);
+
+    /* Published state: q (w, x, y, z), rate, trend, as float bits */
+    private static final int STATE_SIZE = 10;
+    private static final int RATE = 4;
+    private static final int TREND = 7;
+
+    /* Past states kept for grading, must be a power of two */
+    private static final int ERROR_STATES = 256;
+
+    /* Error counters, as in SensorHealth */
+    private static final int ERROR_COUNT = 0;
+    private static final int ERROR_SQUARES = 1;
+    private static final int HELD_SQUARES = 2;
+    private static final int ERROR_MAX = 3;
+    private static final int ERROR_SLOTS = 4;
+
+    private final long maxHorizonNs;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong publishedTimestamp = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicIntegerArray published = new AtomicIntegerArray(STATE_SIZE);
+    private final AtomicLongArray errors = new AtomicLongArray(ERROR_SLOTS);
+
+    /* Writer only */
+    private final float state[] = new float[STATE_SIZE];
+    private final float previous[] = new float[4];
+    private final float scratch[] = new float[4];
+    private long previousTimestamp = Long.MIN_VALUE;
+    private boolean hasGyro;
+    private long lastGyroTimestamp = Long.MIN_VALUE;
+
+    private long errorHorizonNs;
+    private final long pastTimestamps[] = new long[ERROR_STATES];
+    private final float pastStates[] = new float[ERROR_STATES * STATE_SIZE];
+    private int pastCount;
+    /* Oldest past state that may still be graded against */
+    private int pastCursor;
+    private long errorCount;
+    private double errorSquares, heldSquares;
+    private float errorMax;
+
+    public OrientationPredictor() {
+        this(DEFAULT_MAX_HORIZON_NS);
+    }
+
+    /**
+     * @param maxHorizonNs how far ahead of the last sample predictions may reach; targets
+     *                     further out get the orientation at this horizon
+     */
+    public OrientationPredictor(long maxHorizonNs) {
+        if (maxHorizonNs < 0) throw new IllegalArgumentException("horizon must not be negative");
+        this.maxHorizonNs = maxHorizonNs;
+    }
+
+    public long getMaxHorizonNs() {
+        return maxHorizonNs;
+    }
+
+    /**
+     * Grades every new orientation against the prediction made horizonNs earlier; 0 (the
+     * default) turns grading off. Writer thread only. Horizons longer than a few hundred
+     * gyro samples cannot be graded.
+     */
+    public void setErrorHorizon(long horizonNs) {
+        errorHorizonNs = horizonNs;
+        clearError();
+    }
+
+    /**
+     * Writer thread only.
+     *
+     * @param x angular velocity around x in rad/s, likewise y and z
+     */
+    public void onGyro(long timestamp, float x, float y, float z) {
+        hasGyro = true;
+        updateRate(timestamp, lastGyroTimestamp, x, y, z);
+        lastGyroTimestamp = timestamp;
+    }
+
+    @Override
+    public void onOrientation(Orientation orientation, long timestamp) {
+        record(timestamp, orientation.getQuaternion());
+    }
+
+    /**
+     * Writer thread only. Publishes q with the current angular velocity and trend.
+     *
+     * @param q (w, x, y, z)
+     */
+    public void record(long timestamp, float q[]) {
+        if (timestamp <= previousTimestamp) return;
+
+        if (!hasGyro && previousTimestamp != Long.MIN_VALUE) {
+            // Rate from the rotation since the last orientation, device frame: prev' * q
+            Quat.multiplyConjugate(previous, q, scratch);
+            final float sign = scratch[0] < 0 ? -2 : 2;
+            final float dt = (timestamp - previousTimestamp) * NS2S;
+            updateRate(timestamp, previousTimestamp,
+                    sign * scratch[1] / dt, sign * scratch[2] / dt, sign * scratch[3] / dt);
+        }
+        previous[0] = q[0];
+        previous[1] = q[1];
+        previous[2] = q[2];
+        previous[3] = q[3];
+        previousTimestamp = timestamp;
+
+        state[0] = q[0];
+        state[1] = q[1];
+        state[2] = q[2];
+        state[3] = q[3];
+        if (errorHorizonNs > 0) grade(timestamp);
+
+        // Odd while writing
+        final long s = sequence.get();
+        sequence.set(s + 1);
+        for (int i = 0; i < STATE_SIZE; i++) {
+            published.lazySet(i, Float.floatToRawIntBits(state[i]));
+        }
+        publishedTimestamp.lazySet(timestamp);
+        sequence.set(s + 2);
+    }
+
+    /**
+     * Orientation at targetTime, extrapolated from the latest one. Targets before the latest
+     * sample get the latest sample, targets beyond the horizon the orientation at the horizon.
+     *
+     * @param targetTime nanoseconds, in the time base of the sensor timestamps
+     * @param out        receives (w, x, y, z)
+     * @return false if nothing has been recorded yet, out is then untouched
+     */
+    public boolean predict(long targetTime, float out[]) {
+        float w, x, y, z, wx, wy, wz, ax, ay, az;
+        long timestamp;
+        while (true) {
+            final long s = sequence.get();
+            if ((s & 1) != 0) continue;
+            timestamp = publishedTimestamp.get();
+            w = stateOf(0);
+            x = stateOf(1);
+            y = stateOf(2);
+            z = stateOf(3);
+            wx = stateOf(RATE);
+            wy = stateOf(RATE + 1);
+            wz = stateOf(RATE + 2);
+            ax = stateOf(TREND);
+            ay = stateOf(TREND + 1);
+            az = stateOf(TREND + 2);
+            if (sequence.get() == s) break;
+        }
+        if (timestamp == Long.MIN_VALUE) return false;
+
+        long lead = targetTime - timestamp;
+        if (lead < 0) lead = 0;
+        else if (lead > maxHorizonNs) lead = maxHorizonNs;
+        final float h = lead * NS2S;
+        extrapolate(w, x, y, z, wx * h + 0.5f * ax * h * h, wy * h + 0.5f * ay * h * h,
+                wz * h + 0.5f * az * h * h, out);
+        return true;
+    }
+
+    /**
+     * Same as {@link #predict(long, float[])}, into an Orientation so Euler angles or the
+     * matrix can be read from it.
+     *
+     * @param scratch 4 floats owned by the calling thread
+     */
+    public boolean predict(long targetTime, float scratch[], Orientation out) {
+        if (!predict(targetTime, scratch)) {
+            return false;
+        }
+        out.setQuaternion(scratch);
+        return true;
+    }
+
+    /**
+     * @return timestamp of the latest orientation, or Long.MIN_VALUE if none
+     */
+    public long getTimestamp() {
+        return publishedTimestamp.get();
+    }
+
+    public PredictionError getError() {
+        final long count = errors.get(ERROR_COUNT);
+        final double squares = Double.longBitsToDouble(errors.get(ERROR_SQUARES));
+        final double held = Double.longBitsToDouble(errors.get(HELD_SQUARES));
+        return new PredictionError(count,
+                count == 0 ? 0 : (float) Math.sqrt(squares / count),
+                count == 0 ? 0 : (float) Math.sqrt(held / count),
+                Float.intBitsToFloat((int) errors.get(ERROR_MAX)));
+    }
+
+    /**
+     * Writer thread only.
+     */
+    public void reset() {
+        hasGyro = false;
+        lastGyroTimestamp = Long.MIN_VALUE;
+        previousTimestamp = Long.MIN_VALUE;
+        for (int i = RATE; i < STATE_SIZE; i++) {
+            state[i] = 0;
+        }
+        final long s = sequence.get();
+        sequence.set(s + 1);
+        publishedTimestamp.lazySet(Long.MIN_VALUE);
+        sequence.set(s + 2);
+        clearError();
+    }
+
+    /**
+     * New rate sample (x, y, z) at timestamp; the trend follows its smoothed derivative.
+     */
+    private void updateRate(long timestamp, long previousTimestamp, float x, float y, float z) {
+        if (previousTimestamp != Long.MIN_VALUE && timestamp > previousTimestamp) {
+            final float dt = (timestamp - previousTimestamp) * NS2S;
+            final float smoothing = dt / (TREND_TIME_CONSTANT + dt);
+            state[TREND] += smoothing * ((x - state[RATE]) / dt - state[TREND]);
+            state[TREND + 1] += smoothing * ((y - state[RATE + 1]) / dt - state[TREND + 1]);
+            state[TREND + 2] += smoothing * ((z - state[RATE + 2]) / dt - state[TREND + 2]);
+        }
+        state[RATE] = x;
+        state[RATE + 1] = y;
+        state[RATE + 2] = z;
+    }
+
+    /**
+     * Compares the state just set up with the prediction from the newest past state at least
+     * errorHorizonNs old, then keeps the state for later comparisons.
+     */
+    private void grade(long timestamp) {
+        final int mask = ERROR_STATES - 1;
+        final long due = timestamp - errorHorizonNs;
+        final int oldest = Math.max(0, pastCount - ERROR_STATES);
+        if (pastCursor < oldest) pastCursor = oldest;
+        while (pastCursor + 1 < pastCount && pastTimestamps[(pastCursor + 1) & mask] <= due) {
+            pastCursor++;
+        }
+        if (pastCursor < pastCount && pastTimestamps[pastCursor & mask] <= due) {
+            final int p = (pastCursor & mask) * STATE_SIZE;
+            final float h = Math.min(timestamp - pastTimestamps[pastCursor & mask], maxHorizonNs) * NS2S;
+            extrapolate(pastStates[p], pastStates[p + 1], pastStates[p + 2], pastStates[p + 3],
+                    pastStates[p + RATE] * h + 0.5f * pastStates[p + TREND] * h * h,
+                    pastStates[p + RATE + 1] * h + 0.5f * pastStates[p + TREND + 1] * h * h,
+                    pastStates[p + RATE + 2] * h + 0.5f * pastStates[p + TREND + 2] * h * h,
+                    scratch);
+            final float error = angleBetween(scratch, state, 0);
+            final float held = angleBetween(pastStates, state, p);
+            errorCount++;
+            errorSquares += error * error;
+            heldSquares += held * held;
+            if (error > errorMax) errorMax = error;
+            errors.lazySet(ERROR_SQUARES, Double.doubleToRawLongBits(errorSquares));
+            errors.lazySet(HELD_SQUARES, Double.doubleToRawLongBits(heldSquares));
+            errors.lazySet(ERROR_MAX, Float.floatToRawIntBits(errorMax));
+            errors.lazySet(ERROR_COUNT, errorCount);
+        }
+
+        final int slot = pastCount & mask;
+        pastTimestamps[slot] = timestamp;
+        System.arraycopy(state, 0, pastStates, slot * STATE_SIZE, STATE_SIZE);
+        pastCount++;
+    }
+
+    private void clearError() {
+        pastCount = pastCursor = 0;
+        errorCount = 0;
+        errorSquares = heldSquares = 0;
+        errorMax = 0;
+        for (int i = 0; i < ERROR_SLOTS; i++) {
+            errors.lazySet(i, 0);
+        }
+    }
+
+    private float stateOf(int i) {
+        return Float.intBitsToFloat(published.get(i));
+    }
+
+    /**
+     * out = q * exp(theta / 2), theta a rotation vector in device coordinates.
+     */
+    private static void extrapolate(float w, float x, float y, float z,
+                                    float tx, float ty, float tz, float out[]) {
+        final float angle = (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+        final float c, s;
+        if (angle < 1e-4f) {
+            // sin(a/2)/a ~ 1/2 for small a, cos(a/2) ~ 1
+            c = 1;
+            s = 0.5f;
+        } else {
+            c = (float) Math.cos(0.5f * angle);
+            s = (float) Math.sin(0.5f * angle) / angle;
+        }
+        final float dx = s * tx, dy = s * ty, dz = s * tz;
+        out[0] = w * c - x * dx - y * dy - z * dz;
+        out[1] = w * dx + x * c + y * dz - z * dy;
+        out[2] = w * dy - x * dz + y * c + z * dx;
+        out[3] = w * dz + x * dy - y * dx + z * c;
+        Quat.normalize(out);
+    }
+
+    /**
+     * Rotation angle between a[offset..offset + 3] and b, in degrees. From the chord rather
+     * than acos of the dot product, which has no resolution left for small angles in float.
+     */
+    private static float angleBetween(float a[], float b[], int offset) {
+        float minus = 0, plus = 0;
+        for (int i = 0; i < 4; i++) {
+            final float d = a[offset + i] - b[i], e = a[offset + i] + b[i];
+            minus += d * d;
+            plus += e * e;
+        }
+        final float chord = (float) Math.sqrt(Math.min(minus, plus));
+        return 4 * (float) Math.asin(Math.min(1, chord / 2)) * TO_DEGREES;
+    }
+
+    public static final class PredictionError {
+
+        /* Orientations graded */
+        public final long count;
+        /* RMS error of the predictions, and of holding the old orientation instead, degrees */
+        public final float rmsDegrees;
+        public final float heldRmsDegrees;
+        public final float maxDegrees;
+
+        PredictionError(long count, float rmsDegrees, float heldRmsDegrees, float maxDegrees) {
+            this.count = count;
+            this.rmsDegrees = rmsDegrees;
+            this.heldRmsDegrees = heldRmsDegrees;
+            this.maxDegrees = maxDegrees;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d graded, rms %.3f deg (%.3f deg without prediction), max %.3f deg",
+                    count, rmsDegrees, heldRmsDegrees, maxDegrees);
+        }
+    }
+}
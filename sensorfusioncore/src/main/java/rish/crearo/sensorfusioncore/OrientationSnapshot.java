@@ -0,0 +1,84 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * One orientation sample handed out by an {@link OrientationStream}: read only, and not
+ * overwritten while anybody holds it.
+ * <p>
+ * Snapshots are pooled and reference counted. One delivered to a subscriber is valid until
+ * its onNext returns; to keep it longer call {@link #retain()}, and {@link #release()} once
+ * done. The conversions write into arrays the caller owns, so any thread may read a snapshot.
+ */
+public final class OrientationSnapshot {
+
+    private final BlockingQueue<OrientationSnapshot> pool;
+    private final AtomicInteger references = new AtomicInteger();
+    private final float quaternion[] = new float[4];
+    private long timestamp;
+
+    OrientationSnapshot(BlockingQueue<OrientationSnapshot> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Fills a snapshot nobody holds; the caller then holds the only reference.
+     */
+    void set(long timestamp, float q[]) {
+        this.timestamp = timestamp;
+        quaternion[0] = q[0];
+        quaternion[1] = q[1];
+        quaternion[2] = q[2];
+        quaternion[3] = q[3];
+        references.set(1);
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param out receives (w, x, y, z)
+     */
+    public void getQuaternion(float out[]) {
+        out[0] = quaternion[0];
+        out[1] = quaternion[1];
+        out[2] = quaternion[2];
+        out[3] = quaternion[3];
+    }
+
+    /**
+     * @param pry receives pitch, roll, yaw (x, y, z) in radians, as FusionListener gets them
+     */
+    public void getEuler(float pry[]) {
+        Quat.toEuler(quaternion, pry);
+    }
+
+    /**
+     * @param m receives the 3x3 row major rotation matrix
+     */
+    public void getRotationMatrix(float m[]) {
+        Quat.toRotationMatrix(quaternion, m);
+    }
+
+    public OrientationSnapshot retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Gives up a reference; the last one returns the snapshot to its pool.
+     */
+    public void release() {
+        final int left = references.decrementAndGet();
+        if (left == 0) {
+            // A full pool means snapshots were allocated past its size; let those go
+            pool.offer(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("snapshot released more often than retained");
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+import rish.crearo.sensorfusionlib.listeners.OrientationSubscriber;
+
+/**
+ * Fans fused orientations out to any number of subscribers, each on its own executor, at its
+ * own pace.
+ * <p>
+ * A subscriber says how many samples it wants ({@link Subscription#request}) and what happens
+ * to the ones it is not ready for ({@link StreamPolicy}). Publishing only hands the sample to
+ * each subscription's small queue and, when it has demand, schedules a delivery on its
+ * executor. A slow subscriber therefore loses samples according to its policy but never
+ * holds up the publishing (sensor) thread or the other subscribers.
+ * <p>
+ * Samples are {@link OrientationSnapshot}s from a pool, shared between subscribers and never
+ * modified while handed out. Once the pool is warm, publishing allocates nothing as long as
+ * subscribers release snapshots about as fast as they come.
+ * <p>
+ * One thread publishes, normally the engine's via {@link FusionEngine#setStream}. Subscribing,
+ * requesting and cancelling are thread safe.
+ */
+public class OrientationStream implements OrientationListener {
+
+    public static final int DEFAULT_POOL_SIZE = 32;
+    /* Samples delivered per executor task before it yields to other work */
+    private static final int MAX_BATCH = 64;
+
+    private final ArrayBlockingQueue<OrientationSnapshot> pool;
+
+    /* Copy on write, so the publisher can iterate without locking or allocating */
+    private volatile Subscription subscriptions[] = new Subscription[0];
+
+    /* Publisher only */
+    private long allocated;
+
+    public OrientationStream() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param poolSize snapshots kept for reuse; about the number all subscribers together may
+     *                 hold at once, i.e. their buffer capacities plus one each
+     */
+    public OrientationStream(int poolSize) {
+        pool = new ArrayBlockingQueue<OrientationSnapshot>(poolSize);
+    }
+
+    /**
+     * @param executor where subscriber's callbacks run, e.g. a handler's thread; must not run
+     *                 tasks inline on the publishing thread if it may be slow
+     */
+    public Subscription subscribe(OrientationSubscriber subscriber, StreamPolicy policy, Executor executor) {
+        Subscription subscription = new Subscription(subscriber, policy, executor);
+        synchronized (this) {
+            Subscription current[] = subscriptions;
+            Subscription updated[] = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = subscription;
+            subscriptions = updated;
+        }
+        subscriber.onSubscribe(subscription);
+        return subscription;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.length;
+    }
+
+    /**
+     * @return snapshots created because the pool was empty, publisher thread only
+     */
+    public long getAllocatedCount() {
+        return allocated;
+    }
+
+    @Override
+    public void onOrientation(Orientation orientation, long timestamp) {
+        publish(timestamp, orientation.getQuaternion());
+    }
+
+    /**
+     * Publisher thread only.
+     *
+     * @param q (w, x, y, z)
+     */
+    public void publish(long timestamp, float q[]) {
+        final Subscription subscriptions[] = this.subscriptions;
+        if (subscriptions.length == 0) return;
+
+        OrientationSnapshot snapshot = pool.poll();
+        if (snapshot == null) {
+            snapshot = new OrientationSnapshot(pool);
+            allocated++;
+        }
+        snapshot.set(timestamp, q);
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(snapshot);
+        }
+        snapshot.release();
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        Subscription current[] = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription updated[] = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * One subscriber's demand and its queue of undelivered snapshots.
+     */
+    public final class Subscription {
+
+        private final OrientationSubscriber subscriber;
+        private final StreamPolicy policy;
+        private final Executor executor;
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        /* Guarded by this */
+        private final OrientationSnapshot queue[];
+        private int head;
+        private int size;
+        private long demand;
+        private boolean scheduled;
+        private boolean cancelled;
+        private long dropped;
+        private long delivered;
+
+        /* Publisher only */
+        private long nextDue = Long.MIN_VALUE;
+
+        private Subscription(OrientationSubscriber subscriber, StreamPolicy policy, Executor executor) {
+            this.subscriber = subscriber;
+            this.policy = policy;
+            this.executor = executor;
+            queue = new OrientationSnapshot[policy.capacity];
+        }
+
+        /**
+         * Asks for n more samples; Long.MAX_VALUE for everything, with the policy still
+         * deciding what to drop when the executor falls behind.
+         */
+        public void request(long n) {
+            if (n <= 0) throw new IllegalArgumentException("request must be positive");
+            synchronized (this) {
+                if (cancelled) return;
+                demand = demand + n < demand ? Long.MAX_VALUE : demand + n;
+                if (!shouldSchedule()) return;
+            }
+            executor.execute(drain);
+        }
+
+        /**
+         * Stops delivery and releases what is queued. A delivery already running completes.
+         */
+        public void cancel() {
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                while (size > 0) {
+                    poll().release();
+                }
+            }
+            remove(this);
+        }
+
+        public StreamPolicy getPolicy() {
+            return policy;
+        }
+
+        /**
+         * @return samples this subscriber lost to its policy, not counting those a fixed rate
+         * skips on purpose
+         */
+        public synchronized long getDroppedCount() {
+            return dropped;
+        }
+
+        public synchronized long getDeliveredCount() {
+            return delivered;
+        }
+
+        private void offer(OrientationSnapshot snapshot) {
+            if (policy.kind == StreamPolicy.FIXED_RATE) {
+                final long timestamp = snapshot.getTimestamp();
+                if (nextDue != Long.MIN_VALUE && timestamp < nextDue) return;
+                // Stay on the grid unless a gap left it behind
+                nextDue = nextDue != Long.MIN_VALUE && timestamp < nextDue + policy.periodNs
+                        ? nextDue + policy.periodNs : timestamp + policy.periodNs;
+            }
+            synchronized (this) {
+                if (cancelled) return;
+                if (size == queue.length) {
+                    poll().release();
+                    dropped++;
+                }
+                queue[(head + size) % queue.length] = snapshot.retain();
+                size++;
+                if (!shouldSchedule()) return;
+            }
+            executor.execute(drain);
+        }
+
+        /**
+         * Caller holds the lock; marks a drain as scheduled if one is needed.
+         */
+        private boolean shouldSchedule() {
+            if (scheduled || demand == 0 || size == 0) return false;
+            scheduled = true;
+            return true;
+        }
+
+        private void drain() {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                final OrientationSnapshot snapshot;
+                synchronized (this) {
+                    if (cancelled || demand == 0 || size == 0) {
+                        scheduled = false;
+                        return;
+                    }
+                    snapshot = poll();
+                    if (demand != Long.MAX_VALUE) demand--;
+                    delivered++;
+                }
+                try {
+                    subscriber.onNext(snapshot);
+                } finally {
+                    snapshot.release();
+                }
+            }
+            // More pending; let other tasks on the executor run first
+            executor.execute(drain);
+        }
+
+        /**
+         * Caller holds the lock and has checked size.
+         */
+        private OrientationSnapshot poll() {
+            final OrientationSnapshot snapshot = queue[head];
+            queue[head] = null;
+            head = (head + 1) % queue.length;
+            size--;
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * Azimuth/pitch/roll of the device as if its screen was an instrument panel, for a given
+ * display rotation. This is the math behind {@code OrientationFromRotation}, kept free of
+ * android.* so it can be benchmarked on a JVM.
+ */
+public final class PanelOrientation {
+
+    /* Same values as android.view.Surface.ROTATION_* */
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    /*
+     * The remap for each display rotation as a column permutation with signs: column i of the
+     * remapped matrix is REMAP_SIGN[rotation][i] times column REMAP_COLUMN[rotation][i] of the
+     * original. Derived once from remapCoordinateSystem, so both paths always agree.
+     */
+    private static final int REMAP_COLUMN[][] = new int[4][3];
+    private static final float REMAP_SIGN[][] = new float[4][3];
+
+    static {
+        // Row 0 holds 1-based column numbers, so the remapped row tells which went where
+        float columns[] = {1, 2, 3, 0, 0, 0, 0, 0, 0};
+        float scratch[] = new float[9];
+        float unused[] = new float[3];
+        for (int rotation = ROTATION_0; rotation <= ROTATION_270; rotation++) {
+            getOrientation(columns, rotation, scratch, unused);
+            for (int i = 0; i < 3; i++) {
+                REMAP_COLUMN[rotation][i] = (int) Math.abs(scratch[i]) - 1;
+                REMAP_SIGN[rotation][i] = Math.signum(scratch[i]);
+            }
+        }
+    }
+
+    private PanelOrientation() {
+    }
+
+    /**
+     * @param rotationMatrix  3x3 device rotation matrix
+     * @param displayRotation one of the ROTATION_* constants
+     * @param adjusted        3x3 scratch matrix receiving the remapped rotation
+     * @param orientation     receives azimuth, pitch, roll in radians, see RotationMath.getOrientation
+     */
+    @SuppressWarnings("SuspiciousNameCombination")
+    public static void getOrientation(float rotationMatrix[], int displayRotation,
+                                      float adjusted[], float orientation[]) {
+        final int worldAxisForDeviceAxisX;
+        final int worldAxisForDeviceAxisY;
+
+        // Remap the axes as if the device screen was the instrument panel,
+        // and adjust the rotation matrix for the device orientation.
+        switch (displayRotation) {
+            case ROTATION_0:
+            default:
+                worldAxisForDeviceAxisX = RotationMath.AXIS_X;
+                worldAxisForDeviceAxisY = RotationMath.AXIS_Z;
+                break;
+            case ROTATION_90:
+                worldAxisForDeviceAxisX = RotationMath.AXIS_Z;
+                worldAxisForDeviceAxisY = RotationMath.AXIS_MINUS_X;
+                break;
+            case ROTATION_180:
+                worldAxisForDeviceAxisX = RotationMath.AXIS_MINUS_X;
+                worldAxisForDeviceAxisY = RotationMath.AXIS_MINUS_Z;
+                break;
+            case ROTATION_270:
+                worldAxisForDeviceAxisX = RotationMath.AXIS_MINUS_Z;
+                worldAxisForDeviceAxisY = RotationMath.AXIS_X;
+                break;
+        }
+
+        RotationMath.remapCoordinateSystem(rotationMatrix, worldAxisForDeviceAxisX,
+                worldAxisForDeviceAxisY, adjusted);
+
+        // Transform rotation matrix into azimuth/pitch/roll
+        RotationMath.getOrientation(adjusted, orientation);
+    }
+
+    /**
+     * Same result as {@link #getOrientation(float[], int, float[], float[])}, from precomputed
+     * remap tables: reads the five matrix entries getOrientation needs straight from the
+     * unmapped matrix instead of building the remapped one.
+     */
+    public static void getOrientation(float rotationMatrix[], int displayRotation, float orientation[]) {
+        if (displayRotation < ROTATION_0 || displayRotation > ROTATION_270) displayRotation = ROTATION_0;
+        final int columns[] = REMAP_COLUMN[displayRotation];
+        final float signs[] = REMAP_SIGN[displayRotation];
+        // Remapped R[1], R[4], R[7] come from column 1; R[6] from column 0, R[8] from column 2
+        final int c0 = columns[0], c1 = columns[1], c2 = columns[2];
+        final float s0 = signs[0], s1 = signs[1], s2 = signs[2];
+        orientation[0] = (float) Math.atan2(s1 * rotationMatrix[c1], s1 * rotationMatrix[3 + c1]);
+        orientation[1] = (float) Math.asin(-s1 * rotationMatrix[6 + c1]);
+        orientation[2] = (float) Math.atan2(-s0 * rotationMatrix[6 + c0], s2 * rotationMatrix[6 + c2]);
+    }
+}
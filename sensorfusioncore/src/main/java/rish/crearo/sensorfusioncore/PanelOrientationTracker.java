@@ -0,0 +1,61 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusionlib.listeners.PanelOrientationListener;
+import rish.crearo.sensorfusionlib.listeners.RotationListener;
+
+/**
+ * Turns rotation matrices into panel azimuth/pitch/roll for the current display rotation and
+ * hands them on as three floats. Allocation free per sample.
+ * <p>
+ * The display rotation is not looked up per sample; whoever knows when it changes (a display
+ * listener, on any thread) pushes it in with {@link #setDisplayRotation}.
+ */
+public class PanelOrientationTracker implements RotationListener {
+
+    /* What the original implementation used to convert to degrees, kept so output is unchanged */
+    private static final float TO_DEGREES = -57;
+
+    private volatile int displayRotation = PanelOrientation.ROTATION_0;
+    private PanelOrientationListener listener;
+    private final float orientation[] = new float[3];
+
+    /**
+     * @param listener null to drop samples
+     */
+    public void setListener(PanelOrientationListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param displayRotation one of the PanelOrientation.ROTATION_* constants
+     */
+    public void setDisplayRotation(int displayRotation) {
+        this.displayRotation = displayRotation;
+    }
+
+    public int getDisplayRotation() {
+        return displayRotation;
+    }
+
+    /**
+     * Panel azimuth/pitch/roll of rotationMatrix for the current display rotation, in the units
+     * the listener gets. For rotation matrices from elsewhere, e.g. predicted ones.
+     */
+    public void getOrientation(float rotationMatrix[], float out[]) {
+        PanelOrientation.getOrientation(rotationMatrix, displayRotation, out);
+        out[0] *= TO_DEGREES;
+        out[1] *= TO_DEGREES;
+        out[2] *= TO_DEGREES;
+    }
+
+    @Override
+    public void onRotationMatrix(float[] rotationMatrix, long timestamp) {
+        final PanelOrientationListener listener = this.listener;
+        if (listener == null) {
+            return;
+        }
+        PanelOrientation.getOrientation(rotationMatrix, displayRotation, orientation);
+        listener.onOrientationChanged(orientation[0] * TO_DEGREES, orientation[1] * TO_DEGREES,
+                orientation[2] * TO_DEGREES, timestamp);
+    }
+}
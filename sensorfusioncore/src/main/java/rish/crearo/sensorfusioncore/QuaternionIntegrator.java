@@ -0,0 +1,140 @@
+package rish.crearo.sensorfusioncore;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+
+/**
+ * Integrates body frame angular velocity into a unit quaternion, without allocating.
+ * <p>
+ * The incremental rotation for one step uses a truncated series of cos/sin of the half angle,
+ * which is exact to fourth order in (|w| * dt) and needs no trig calls. At the sample rates
+ * we run at, a step is a few milliradians, far below where the truncation matters. What
+ * limits accuracy is how the rate is taken to vary during the step, see
+ * {@link IntegrationScheme}.
+ */
+public class QuaternionIntegrator {
+
+    private final IntegrationScheme scheme;
+    private final float q[] = new float[4];
+    private final float delta[] = new float[4];
+
+    /* Previous sample, for the higher order schemes */
+    private final float previous[] = new float[3];
+    private boolean hasPrevious;
+
+    /* RK4 scratch: stage quaternion and the four derivatives */
+    private final float stage[] = new float[4];
+    private final float k[] = new float[16];
+
+    public QuaternionIntegrator() {
+        this(IntegrationScheme.FIRST_ORDER);
+    }
+
+    public QuaternionIntegrator(IntegrationScheme scheme) {
+        this.scheme = scheme;
+        reset();
+    }
+
+    public IntegrationScheme getScheme() {
+        return scheme;
+    }
+
+    /**
+     * @param dt seconds since the previous sample
+     * @param x  angular velocity around x in rad/s, likewise y and z
+     */
+    public void integrate(float dt, float x, float y, float z) {
+        if (scheme == IntegrationScheme.FIRST_ORDER) {
+            rotate(0.5f * dt * x, 0.5f * dt * y, 0.5f * dt * z);
+            return;
+        }
+
+        // Without a previous sample, e.g. after a reset, the current one stands in for it
+        final float x0 = hasPrevious ? previous[0] : x;
+        final float y0 = hasPrevious ? previous[1] : y;
+        final float z0 = hasPrevious ? previous[2] : z;
+        previous[0] = x;
+        previous[1] = y;
+        previous[2] = z;
+        hasPrevious = true;
+
+        final float mx = 0.5f * (x0 + x), my = 0.5f * (y0 + y), mz = 0.5f * (z0 + z);
+        switch (scheme) {
+            case MIDPOINT:
+                rotate(0.5f * dt * mx, 0.5f * dt * my, 0.5f * dt * mz);
+                break;
+            case CONING:
+                // Half of: mean rate * dt + (w0 x w1) * dt^2 / 12
+                final float c = dt * dt * (1.0f / 24);
+                rotate(0.5f * dt * mx + c * (y0 * z - z0 * y),
+                        0.5f * dt * my + c * (z0 * x - x0 * z),
+                        0.5f * dt * mz + c * (x0 * y - y0 * x));
+                break;
+            case RK4:
+                rungeKutta(dt, x0, y0, z0, mx, my, mz, x, y, z);
+                break;
+            default:
+                throw new IllegalStateException("Unknown scheme " + scheme);
+        }
+    }
+
+    /**
+     * Turns q by the rotation vector 2 * (hx, hy, hz), in body coordinates.
+     */
+    private void rotate(float hx, float hy, float hz) {
+        final float halfAngleSq = hx * hx + hy * hy + hz * hz;
+        // cos(a) ~ 1 - a^2/2 + a^4/24, sin(a)/a ~ 1 - a^2/6 + a^4/120
+        final float c = 1 - halfAngleSq * (0.5f - halfAngleSq * (1.0f / 24));
+        final float s = 1 - halfAngleSq * ((1.0f / 6) - halfAngleSq * (1.0f / 120));
+        delta[0] = c;
+        delta[1] = hx * s;
+        delta[2] = hy * s;
+        delta[3] = hz * s;
+        Quat.multiply(q, delta, q);
+        Quat.normalizeFast(q);
+    }
+
+    /**
+     * q' = q (0, w) / 2 with w going linearly from (x0, y0, z0) through the mean (mx, my, mz)
+     * to (x1, y1, z1) over dt.
+     */
+    private void rungeKutta(float dt, float x0, float y0, float z0, float mx, float my, float mz,
+                            float x1, float y1, float z1) {
+        derivative(q, x0, y0, z0, 0);
+        stage(0.5f * dt, 0);
+        derivative(stage, mx, my, mz, 4);
+        stage(0.5f * dt, 4);
+        derivative(stage, mx, my, mz, 8);
+        stage(dt, 8);
+        derivative(stage, x1, y1, z1, 12);
+        final float h = dt * (1.0f / 6);
+        for (int i = 0; i < 4; i++) {
+            q[i] += h * (k[i] + 2 * k[4 + i] + 2 * k[8 + i] + k[12 + i]);
+        }
+        Quat.normalize(q);
+    }
+
+    private void stage(float h, int from) {
+        for (int i = 0; i < 4; i++) {
+            stage[i] = q[i] + h * k[from + i];
+        }
+    }
+
+    private void derivative(float p[], float x, float y, float z, int to) {
+        k[to] = 0.5f * (-p[1] * x - p[2] * y - p[3] * z);
+        k[to + 1] = 0.5f * (p[0] * x + p[2] * z - p[3] * y);
+        k[to + 2] = 0.5f * (p[0] * y - p[1] * z + p[3] * x);
+        k[to + 3] = 0.5f * (p[0] * z + p[1] * y - p[2] * x);
+    }
+
+    /**
+     * Live (w, x, y, z) quaternion, updated in place by {@link #integrate}.
+     */
+    public float[] getQuaternion() {
+        return q;
+    }
+
+    public void reset() {
+        Quat.setIdentity(q);
+        hasPrevious = false;
+    }
+}
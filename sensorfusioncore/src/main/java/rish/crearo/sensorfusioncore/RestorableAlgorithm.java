@@ -0,0 +1,28 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * A {@link FusionAlgorithm} whose state can be saved and put back later, so that a restart
+ * picks up where the last run left off instead of converging from scratch. See
+ * {@link FusionEngine#snapshot} and {@link FusionEngine#restore}.
+ */
+public interface RestorableAlgorithm extends FusionAlgorithm {
+
+    /**
+     * @return identifies the layout of the saved state; different for every algorithm, and for
+     * configurations of one algorithm that save different state
+     */
+    int getStateType();
+
+    /**
+     * @return number of floats {@link #saveState} writes
+     */
+    int getStateSize();
+
+    void saveState(float state[]);
+
+    /**
+     * Replaces all state with what {@link #saveState} wrote, as far as it is still valid after
+     * a pause; latest sensor samples are not kept.
+     */
+    void restoreState(float state[]);
+}
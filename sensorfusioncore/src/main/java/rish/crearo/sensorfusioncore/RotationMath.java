@@ -0,0 +1,136 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * JVM port of the rotation helpers from android.hardware.SensorManager that the fusion code
+ * relies on. The math and the argument conventions are kept identical to the platform versions
+ * so results match what we used to get on a device, but only 3x3 matrices are supported.
+ * <p>
+ * The per-sample paths use {@link rish.crearo.sensorfusioncore.math.Mat3} instead; this class
+ * is the reference it is checked against, and the source of the remap tables in
+ * {@link PanelOrientation}.
+ */
+public final class RotationMath {
+
+    public static final int AXIS_X = 1;
+    public static final int AXIS_Y = 2;
+    public static final int AXIS_Z = 3;
+    public static final int AXIS_MINUS_X = AXIS_X | 0x80;
+    public static final int AXIS_MINUS_Y = AXIS_Y | 0x80;
+    public static final int AXIS_MINUS_Z = AXIS_Z | 0x80;
+
+    /* Same thresholds SensorManager uses to reject free fall and a missing/aligned field */
+    private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f * 9.81f * 9.81f;
+    private static final float MIN_FIELD_NORM = 0.1f;
+
+    private RotationMath() {
+    }
+
+    /**
+     * Same as SensorManager.getRotationMatrix(R, null, gravity, geomagnetic) for a 3x3 R.
+     *
+     * @return false if the device is in free fall or the field is too weak / parallel to gravity,
+     * in which case R is left untouched.
+     */
+    public static boolean getRotationMatrix(float R[], float gravity[], float geomagnetic[]) {
+        float Ax = gravity[0];
+        float Ay = gravity[1];
+        float Az = gravity[2];
+
+        final float normsqA = (Ax * Ax + Ay * Ay + Az * Az);
+        if (normsqA < FREE_FALL_GRAVITY_SQUARED) {
+            return false;
+        }
+
+        final float Ex = geomagnetic[0];
+        final float Ey = geomagnetic[1];
+        final float Ez = geomagnetic[2];
+        float Hx = Ey * Az - Ez * Ay;
+        float Hy = Ez * Ax - Ex * Az;
+        float Hz = Ex * Ay - Ey * Ax;
+        final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+        if (normH < MIN_FIELD_NORM) {
+            return false;
+        }
+
+        final float invH = 1.0f / normH;
+        Hx *= invH;
+        Hy *= invH;
+        Hz *= invH;
+        final float invA = 1.0f / (float) Math.sqrt(normsqA);
+        Ax *= invA;
+        Ay *= invA;
+        Az *= invA;
+        final float Mx = Ay * Hz - Az * Hy;
+        final float My = Az * Hx - Ax * Hz;
+        final float Mz = Ax * Hy - Ay * Hx;
+
+        R[0] = Hx;
+        R[1] = Hy;
+        R[2] = Hz;
+        R[3] = Mx;
+        R[4] = My;
+        R[5] = Mz;
+        R[6] = Ax;
+        R[7] = Ay;
+        R[8] = Az;
+        return true;
+    }
+
+    /**
+     * Same as SensorManager.getOrientation(R, values) for a 3x3 R.
+     * values receives azimuth, pitch, roll (-z, -x, y) in radians.
+     */
+    public static float[] getOrientation(float R[], float values[]) {
+        values[0] = (float) Math.atan2(R[1], R[4]);
+        values[1] = (float) Math.asin(-R[7]);
+        values[2] = (float) Math.atan2(-R[6], R[8]);
+        return values;
+    }
+
+    /**
+     * Same as SensorManager.remapCoordinateSystem(inR, X, Y, outR) for 3x3 matrices.
+     * inR and outR must not be the same array.
+     */
+    public static boolean remapCoordinateSystem(float inR[], int X, int Y, float outR[]) {
+        if ((X & 0x7C) != 0 || (Y & 0x7C) != 0) {
+            return false; // invalid parameter
+        }
+        if (((X & 0x3) == 0) || ((Y & 0x3) == 0)) {
+            return false; // no axis specified
+        }
+        if ((X & 0x3) == (Y & 0x3)) {
+            return false; // same axis specified
+        }
+
+        // Z is "the other" axis, its sign is either +/- sign(X)*sign(Y)
+        // this can be calculated by exclusive-or'ing X and Y; except for
+        // the sign inversion (+/-) which is calculated below.
+        int Z = X ^ Y;
+
+        // extract the axis (remove the sign), offset in the range 0 to 2.
+        final int x = (X & 0x3) - 1;
+        final int y = (Y & 0x3) - 1;
+        final int z = (Z & 0x3) - 1;
+
+        // compute the sign of Z (whether it needs to be inverted)
+        final int axisY = (z + 1) % 3;
+        final int axisZ = (z + 2) % 3;
+        if (((x ^ axisY) | (y ^ axisZ)) != 0) {
+            Z ^= 0x80;
+        }
+
+        final boolean sx = (X >= 0x80);
+        final boolean sy = (Y >= 0x80);
+        final boolean sz = (Z >= 0x80);
+
+        for (int j = 0; j < 3; j++) {
+            final int offset = j * 3;
+            for (int i = 0; i < 3; i++) {
+                if (x == i) outR[offset + i] = sx ? -inR[offset] : inR[offset];
+                if (y == i) outR[offset + i] = sy ? -inR[offset + 1] : inR[offset + 1];
+                if (z == i) outR[offset + i] = sz ? -inR[offset + 2] : inR[offset + 2];
+            }
+        }
+        return true;
+    }
+}
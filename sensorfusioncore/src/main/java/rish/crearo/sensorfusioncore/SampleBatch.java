@@ -0,0 +1,46 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * Fixed capacity buffer of interleaved gyro/acc/mag samples, in delivery order, for
+ * {@link FusionEngine#onSamples(SampleBatch)}. Preallocated once and reused between batches.
+ */
+public class SampleBatch {
+
+    final int sensors[];
+    final long timestamps[];
+    /* x, y, z per sample */
+    final float values[];
+    int count;
+
+    public SampleBatch(int capacity) {
+        sensors = new int[capacity];
+        timestamps = new long[capacity];
+        values = new float[capacity * 3];
+    }
+
+    /**
+     * @param sensor one of the FusionEngine.SENSOR_* constants
+     * @return true if the batch is now full and should be processed before adding more
+     */
+    public boolean add(int sensor, long timestamp, float x, float y, float z) {
+        final int i = count++;
+        sensors[i] = sensor;
+        timestamps[i] = timestamp;
+        values[i * 3] = x;
+        values[i * 3 + 1] = y;
+        values[i * 3 + 2] = z;
+        return count == sensors.length;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public void clear() {
+        count = 0;
+    }
+}
@@ -0,0 +1,193 @@
+package rish.crearo.sensorfusioncore;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Delivery statistics of one sensor: event count, rate, dt jitter, gaps, timestamps that went
+ * backwards, samples the algorithm could not use and accuracy changes. A run of long intervals
+ * at a steady rate, as after the sampling rate is lowered, is taken as the new rate instead of
+ * as gaps.
+ * <p>
+ * One thread writes (the one events arrive on); each update is a few ordered stores into a
+ * preallocated atomic array, no locks, no allocation. Any thread may take a {@link #snapshot},
+ * whose fields are each current but not necessarily from the same instant.
+ */
+public class SensorHealth {
+
+    /* A dt this many times the average counts as a gap */
+    public static final float GAP_FACTOR = 3;
+    /* Samples before dt statistics are trusted enough to call gaps */
+    private static final int WARM_UP = 16;
+    private static final float SMOOTHING = 1 / 16f;
+    /* This many gaps in a row, each within a factor of two of their mean, are a new rate */
+    private static final int RATE_CHANGE_RUN = 8;
+
+    private static final int EVENTS = 0;
+    private static final int MEAN_DT = 1;
+    private static final int JITTER = 2;
+    private static final int GAPS = 3;
+    private static final int LONGEST_GAP = 4;
+    private static final int NON_MONOTONIC = 5;
+    private static final int REJECTED = 6;
+    private static final int ACCURACY_CHANGES = 7;
+    private static final int ACCURACY = 8;
+    private static final int SLOTS = 9;
+
+    private final String name;
+    private final AtomicLongArray values = new AtomicLongArray(SLOTS);
+
+    /* Writer only */
+    private long events;
+    private long lastTimestamp = -1;
+    private float meanDt;
+    private float jitter;
+    private long gaps;
+    private long longestGap;
+    private long nonMonotonic;
+    private long rejected;
+    private long accuracyChanges;
+    private int accuracy = -1;
+    /* The current run of gaps that may be a slower rate, and what to roll back to if it is */
+    private int run;
+    private float runMeanDt;
+    private long gapsBeforeRun;
+    private long longestGapBeforeRun;
+
+    public SensorHealth(String name) {
+        this.name = name;
+        values.set(ACCURACY, -1);
+    }
+
+    public void onEvent(long timestamp) {
+        values.lazySet(EVENTS, ++events);
+        if (lastTimestamp == -1) {
+            lastTimestamp = timestamp;
+            return;
+        }
+        final long dt = timestamp - lastTimestamp;
+        if (dt <= 0) {
+            // Out of order or repeated; keep the newest as reference
+            values.lazySet(NON_MONOTONIC, ++nonMonotonic);
+            return;
+        }
+        lastTimestamp = timestamp;
+
+        if (events > WARM_UP && dt > GAP_FACTOR * meanDt) {
+            if (run == 0 || dt > 2 * runMeanDt || 2 * dt < runMeanDt) {
+                run = 0;
+                runMeanDt = 0;
+                gapsBeforeRun = gaps;
+                longestGapBeforeRun = longestGap;
+            }
+            runMeanDt += (dt - runMeanDt) / ++run;
+            if (run < RATE_CHANGE_RUN) {
+                values.lazySet(GAPS, ++gaps);
+                if (dt > longestGap) values.lazySet(LONGEST_GAP, longestGap = dt);
+                // A stall says nothing about the regular rate
+                return;
+            }
+            // Not stalls but a slower rate, e.g. after a sampling rate change: take it over
+            run = 0;
+            values.lazySet(GAPS, gaps = gapsBeforeRun);
+            values.lazySet(LONGEST_GAP, longestGap = longestGapBeforeRun);
+            meanDt = runMeanDt;
+            jitter = 0;
+        } else {
+            run = 0;
+        }
+        if (meanDt == 0) {
+            meanDt = dt;
+        } else {
+            jitter += SMOOTHING * (Math.abs(dt - meanDt) - jitter);
+            meanDt += SMOOTHING * (dt - meanDt);
+        }
+        values.lazySet(MEAN_DT, (long) meanDt);
+        values.lazySet(JITTER, (long) jitter);
+    }
+
+    /**
+     * A sample the algorithm could not use, e.g. getRotationMatrix failed.
+     */
+    public void onRejected() {
+        onRejected(1);
+    }
+
+    /**
+     * count samples the algorithm could not use, e.g. the failed ticks of one synchronizer drain.
+     */
+    public void onRejected(int count) {
+        rejected += count;
+        values.lazySet(REJECTED, rejected);
+    }
+
+    public void onAccuracyChanged(int accuracy) {
+        if (accuracy == this.accuracy) return;
+        this.accuracy = accuracy;
+        values.lazySet(ACCURACY, accuracy);
+        values.lazySet(ACCURACY_CHANGES, ++accuracyChanges);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(name, values.get(EVENTS), values.get(MEAN_DT), values.get(JITTER),
+                values.get(GAPS), values.get(LONGEST_GAP), values.get(NON_MONOTONIC),
+                values.get(REJECTED), values.get(ACCURACY_CHANGES), (int) values.get(ACCURACY));
+    }
+
+    /**
+     * Writer thread only; counters read as zero afterwards.
+     */
+    public void reset() {
+        events = gaps = longestGap = nonMonotonic = rejected = accuracyChanges = 0;
+        lastTimestamp = -1;
+        meanDt = jitter = 0;
+        accuracy = -1;
+        run = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            values.lazySet(i, i == ACCURACY ? -1 : 0);
+        }
+    }
+
+    public static final class Snapshot {
+
+        public final String name;
+        public final long events;
+        /* Smoothed dt between events, and its smoothed absolute deviation, nanoseconds */
+        public final long meanDtNanos;
+        public final long jitterNanos;
+        public final long gaps;
+        public final long longestGapNanos;
+        public final long nonMonotonic;
+        public final long rejected;
+        public final long accuracyChanges;
+        /* Last reported SensorManager.SENSOR_STATUS_*, -1 if none */
+        public final int accuracy;
+
+        Snapshot(String name, long events, long meanDtNanos, long jitterNanos, long gaps,
+                 long longestGapNanos, long nonMonotonic, long rejected, long accuracyChanges,
+                 int accuracy) {
+            this.name = name;
+            this.events = events;
+            this.meanDtNanos = meanDtNanos;
+            this.jitterNanos = jitterNanos;
+            this.gaps = gaps;
+            this.longestGapNanos = longestGapNanos;
+            this.nonMonotonic = nonMonotonic;
+            this.rejected = rejected;
+            this.accuracyChanges = accuracyChanges;
+            this.accuracy = accuracy;
+        }
+
+        public float getRateHz() {
+            return meanDtNanos == 0 ? 0 : 1e9f / meanDtNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d events, %.1f Hz, jitter %.3f ms, %d gaps (longest %.1f ms), "
+                            + "%d out of order, %d rejected, accuracy %d (%d changes)",
+                    name, events, getRateHz(), jitterNanos / 1e6, gaps, longestGapNanos / 1e6,
+                    nonMonotonic, rejected, accuracy, accuracyChanges);
+        }
+    }
+}
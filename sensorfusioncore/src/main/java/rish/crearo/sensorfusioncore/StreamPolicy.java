@@ -0,0 +1,61 @@
+package rish.crearo.sensorfusioncore;
+
+/**
+ * What an {@link OrientationStream} does with samples a subscriber is not ready for.
+ */
+public final class StreamPolicy {
+
+    static final int LATEST = 0;
+    static final int FIXED_RATE = 1;
+    static final int BUFFER = 2;
+
+    private static final StreamPolicy LATEST_ONLY = new StreamPolicy(LATEST, 0, 1);
+
+    final int kind;
+    final long periodNs;
+    final int capacity;
+
+    private StreamPolicy(int kind, long periodNs, int capacity) {
+        this.kind = kind;
+        this.periodNs = periodNs;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Keeps only the newest undelivered sample; anything older is dropped. For consumers that
+     * only ever show the current state, e.g. a view.
+     */
+    public static StreamPolicy latest() {
+        return LATEST_ONLY;
+    }
+
+    /**
+     * Takes at most one sample per period of sensor time, then behaves like {@link #latest()}.
+     * For logging or networking at a fixed rate independent of the sensor rate.
+     */
+    public static StreamPolicy fixedRate(long periodNs) {
+        if (periodNs <= 0) throw new IllegalArgumentException("period must be positive");
+        return new StreamPolicy(FIXED_RATE, periodNs, 1);
+    }
+
+    /**
+     * Queues up to capacity samples; when full the oldest is dropped. For consumers that need
+     * every sample and are only occasionally slow, e.g. a recorder.
+     */
+    public static StreamPolicy buffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        return new StreamPolicy(BUFFER, 0, capacity);
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case FIXED_RATE:
+                return "fixedRate(" + periodNs + " ns)";
+            case BUFFER:
+                return "buffer(" + capacity + ")";
+            default:
+                return "latest()";
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back an archive written by a {@link TraceArchiveWriter}, one record at a time, in the
+ * order they were recorded. Same calls as a {@link TraceReader}:
+ * <pre>
+ *   reader.seek(start);
+ *   while (reader.next()) engine.onGyro(reader.getTimestamp(), ...);
+ * </pre>
+ * Only the index and one chunk per sensor are in memory at a time; chunks are read with
+ * positional reads, so archives may be larger than what can be mapped.
+ */
+public class TraceArchiveReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final float steps[] = new float[3];
+    private final Stream streams[] = new Stream[3];
+    private final long recordCount;
+
+    private ByteBuffer chunkBuffer;
+
+    private int sensor;
+    private int accuracy;
+    private long timestamp;
+    private float x, y, z;
+
+    /**
+     * @throws IOException if the file is not a complete archive
+     */
+    public TraceArchiveReader(File archive) throws IOException {
+        file = new RandomAccessFile(archive, "r");
+        channel = file.getChannel();
+        try {
+            final long length = channel.size();
+            if (length < TraceArchiveWriter.HEADER_SIZE + TraceArchiveWriter.FOOTER_SIZE) {
+                throw new IOException("Not a sensor archive: " + archive);
+            }
+            final byte header[] = read(0, TraceArchiveWriter.HEADER_SIZE);
+            if (getInt(header, 0) != TraceArchiveWriter.MAGIC) {
+                throw new IOException("Not a sensor archive: " + archive);
+            }
+            if (getShort(header, 4) != TraceArchiveWriter.VERSION) {
+                throw new IOException("Unsupported archive version " + getShort(header, 4) + ": " + archive);
+            }
+            for (int i = 0; i < steps.length; i++) {
+                steps[i] = Float.intBitsToFloat(getInt(header, 8 + i * 4));
+            }
+
+            final byte footer[] = read(length - TraceArchiveWriter.FOOTER_SIZE, TraceArchiveWriter.FOOTER_SIZE);
+            final long indexOffset = getLong(footer, 0);
+            final int chunkCount = getInt(footer, 8);
+            if (getInt(footer, 12) != TraceArchiveWriter.MAGIC || chunkCount < 0
+                    || indexOffset + (long) chunkCount * TraceArchiveWriter.INDEX_ENTRY_SIZE
+                    != length - TraceArchiveWriter.FOOTER_SIZE) {
+                throw new IOException("Incomplete sensor archive, not closed? " + archive);
+            }
+            final byte index[] = read(indexOffset, chunkCount * TraceArchiveWriter.INDEX_ENTRY_SIZE);
+
+            int counts[] = new int[3];
+            for (int c = 0; c < chunkCount; c++) {
+                final int s = index[c * TraceArchiveWriter.INDEX_ENTRY_SIZE];
+                if (s < FusionEngine.SENSOR_GYROSCOPE || s > FusionEngine.SENSOR_MAGNETOMETER) {
+                    throw new IOException("Corrupt archive index: " + archive);
+                }
+                counts[s - 1]++;
+            }
+            long records = 0;
+            int maxSamples = 0, maxLength = 0;
+            for (int s = 0; s < streams.length; s++) {
+                streams[s] = new Stream(counts[s]);
+                counts[s] = 0;
+            }
+            for (int c = 0; c < chunkCount; c++) {
+                final int p = c * TraceArchiveWriter.INDEX_ENTRY_SIZE;
+                final Stream stream = streams[index[p] - 1];
+                final int i = counts[index[p] - 1]++;
+                stream.sampleCounts[i] = getInt(index, p + 4);
+                stream.maxTimestamps[i] = getLong(index, p + 16);
+                stream.offsets[i] = getLong(index, p + 24);
+                stream.lengths[i] = getInt(index, p + 32);
+                records += stream.sampleCounts[i];
+                maxSamples = Math.max(maxSamples, stream.sampleCounts[i]);
+                maxLength = Math.max(maxLength, stream.lengths[i]);
+            }
+            recordCount = records;
+            chunkBuffer = ByteBuffer.allocate(maxLength);
+            for (Stream stream : streams) {
+                stream.allocate(maxSamples);
+            }
+            seek(Long.MIN_VALUE);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Continues from the first sample of each sensor at or after timestamp. Decodes one chunk
+     * per sensor, found through the index.
+     */
+    public void seek(long timestamp) throws IOException {
+        for (int s = 0; s < streams.length; s++) {
+            final Stream stream = streams[s];
+            // First chunk whose largest timestamp so far reaches the target; everything
+            // before it is earlier
+            int low = 0, high = stream.chunkCount;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (stream.maxTimestamps[middle] < timestamp) low = middle + 1;
+                else high = middle;
+            }
+            if (low == stream.chunk && low < stream.chunkCount) {
+                // Already decoded
+                stream.position = 0;
+            } else {
+                stream.load(low, steps[s]);
+            }
+            while (stream.position < stream.size && stream.timestamps[stream.position] < timestamp) {
+                stream.position++;
+            }
+        }
+    }
+
+    /**
+     * Moves on to the next record.
+     *
+     * @return false at the end of the archive
+     */
+    public boolean next() throws IOException {
+        Stream first = null;
+        int firstSensor = 0;
+        for (int s = 0; s < streams.length; s++) {
+            final Stream stream = streams[s];
+            if (stream.position == stream.size) {
+                if (stream.chunk + 1 >= stream.chunkCount) continue;
+                stream.load(stream.chunk + 1, steps[s]);
+            }
+            if (first == null || stream.sequences[stream.position] < first.sequences[first.position]) {
+                first = stream;
+                firstSensor = s + 1;
+            }
+        }
+        if (first == null) return false;
+
+        final int i = first.position++;
+        sensor = firstSensor;
+        accuracy = first.accuracies[i];
+        timestamp = first.timestamps[i];
+        x = first.x[i];
+        y = first.y[i];
+        z = first.z[i];
+        return true;
+    }
+
+    /**
+     * Reads records into batch until it is full or the archive ends.
+     *
+     * @return number of records added
+     */
+    public int read(SampleBatch batch) throws IOException {
+        int read = 0;
+        while (next()) {
+            read++;
+            if (batch.add(sensor, timestamp, x, y, z)) break;
+        }
+        return read;
+    }
+
+    /**
+     * @return records in the whole archive
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return quantization step of a FusionEngine.SENSOR_* id, 0 if stored exactly
+     */
+    public float getStep(int sensor) {
+        return steps[sensor - 1];
+    }
+
+    /**
+     * @return FusionEngine.SENSOR_* id of the current record
+     */
+    public int getSensor() {
+        return sensor;
+    }
+
+    public int getAccuracy() {
+        return accuracy;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    public float getZ() {
+        return z;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        final byte bytes[] = new byte[length];
+        readFully(ByteBuffer.wrap(bytes), position);
+        return bytes;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Archive truncated");
+            position += read;
+        }
+    }
+
+    /**
+     * One sensor's chunks, and the decoded samples of the current one.
+     */
+    private final class Stream {
+
+        final int chunkCount;
+        final int sampleCounts[];
+        final long maxTimestamps[];
+        final long offsets[];
+        final int lengths[];
+
+        long sequences[];
+        long timestamps[];
+        byte accuracies[];
+        float x[], y[], z[];
+        int chunk = -1;
+        int size;
+        int position;
+
+        /* Decoding position in chunkBuffer's array */
+        private int p;
+
+        Stream(int chunkCount) {
+            this.chunkCount = chunkCount;
+            sampleCounts = new int[chunkCount];
+            maxTimestamps = new long[chunkCount];
+            offsets = new long[chunkCount];
+            lengths = new int[chunkCount];
+        }
+
+        void allocate(int capacity) {
+            sequences = new long[capacity];
+            timestamps = new long[capacity];
+            accuracies = new byte[capacity];
+            x = new float[capacity];
+            y = new float[capacity];
+            z = new float[capacity];
+        }
+
+        /**
+         * Decodes chunk c, or empties the stream if there is no such chunk.
+         */
+        void load(int c, float step) throws IOException {
+            chunk = c;
+            position = 0;
+            size = 0;
+            if (c >= chunkCount) return;
+
+            chunkBuffer.clear();
+            chunkBuffer.limit(lengths[c]);
+            readFully(chunkBuffer, offsets[c]);
+            final byte bytes[] = chunkBuffer.array();
+            p = 0;
+
+            final int count = (int) getVarint(bytes);
+            if (count != sampleCounts[c]) throw new IOException("Corrupt archive chunk at " + offsets[c]);
+
+            long sequence = getVarint(bytes);
+            sequences[0] = sequence;
+            for (int i = 1; i < count; i++) {
+                sequence += getVarint(bytes) + 1;
+                sequences[i] = sequence;
+            }
+
+            long timestamp = getLong(bytes, p);
+            p += 8;
+            timestamps[0] = timestamp;
+            long delta = 0;
+            for (int i = 1; i < count; i++) {
+                delta += getZigZag(bytes);
+                timestamp += delta;
+                timestamps[i] = timestamp;
+            }
+
+            for (int i = 0; i < count; ) {
+                final byte accuracy = bytes[p++];
+                final int end = i + (int) getVarint(bytes);
+                while (i < end) accuracies[i++] = accuracy;
+            }
+
+            getValues(bytes, x, count, step);
+            getValues(bytes, y, count, step);
+            getValues(bytes, z, count, step);
+            size = count;
+        }
+
+        private void getValues(byte bytes[], float values[], int count, float step) {
+            if (step == 0) {
+                int bits = (int) getVarint(bytes);
+                values[0] = Float.intBitsToFloat(bits);
+                for (int i = 1; i < count; i++) {
+                    bits ^= (int) getVarint(bytes);
+                    values[i] = Float.intBitsToFloat(bits);
+                }
+            } else {
+                long value = getZigZag(bytes);
+                values[0] = value * step;
+                for (int i = 1; i < count; i++) {
+                    value += getZigZag(bytes);
+                    values[i] = value * step;
+                }
+            }
+        }
+
+        private long getVarint(byte bytes[]) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[p++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private long getZigZag(byte bytes[]) {
+            final long value = getVarint(bytes);
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    private static short getShort(byte bytes[], int p) {
+        return (short) ((bytes[p] & 0xff) | (bytes[p + 1] & 0xff) << 8);
+    }
+
+    private static int getInt(byte bytes[], int p) {
+        int value = 0;
+        for (int i = 3; i >= 0; i--) {
+            value = value << 8 | (bytes[p + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long getLong(byte bytes[], int p) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (bytes[p + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,320 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes sensor samples to a compact, seekable archive, for keeping long traces around. Read
+ * it back with {@link TraceArchiveReader}.
+ * <p>
+ * After a {@link #HEADER_SIZE} byte header (magic, version, the gyro, acc and mag
+ * quantization steps), each sensor's samples are buffered and written in chunks of up to
+ * chunkSize samples, one column at a time:
+ * <pre>
+ *   count                     varint
+ *   sequence                  varint first, then varint (gap - 1): position in the recording
+ *   timestamp                 8 bytes first, then zigzag varint delta, then delta of delta
+ *   accuracy                  runs of (byte value, varint length)
+ *   x, y, z                   quantized: zigzag varint first, then deltas
+ *                             lossless (step 0): float bits, then varint XOR with the previous
+ * </pre>
+ * Steady sample rates make the delta of delta of the timestamps a few bytes at most, and
+ * quantizing to a step below the sensor's resolution turns slowly changing values into small
+ * deltas. A quantized value is off by at most half its step.
+ * <p>
+ * After the chunks comes an index of {@link #INDEX_ENTRY_SIZE} byte entries (sensor, count,
+ * first sequence, largest timestamp so far, offset, length) and a {@link #FOOTER_SIZE} byte
+ * footer pointing at it, so a reader can find any time without decoding what comes before.
+ * Fixed size fields are little endian.
+ * <p>
+ * Writing a chunk does I/O on the calling thread. To record on the sensor path use a
+ * {@link TraceRecorder} and convert its trace afterwards with {@link #append(TraceReader)}.
+ */
+public class TraceArchiveWriter implements Closeable {
+
+    public static final int MAGIC = 0x41544653; // "SFTA" little endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int INDEX_ENTRY_SIZE = 40;
+    public static final int FOOTER_SIZE = 16;
+    public static final String EXTENSION = ".sfarchive";
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+    /* A fraction of the resolution of the phone sensors we have seen */
+    public static final float DEFAULT_GYRO_STEP = 1e-4f; // rad/s
+    public static final float DEFAULT_ACC_STEP = 1e-3f; // m/s^2
+    public static final float DEFAULT_MAG_STEP = 1e-2f; // uT
+
+    /* Worst case bytes per sample: five 10 byte varints and an accuracy run */
+    private static final int MAX_SAMPLE_SIZE = 5 * 10 + 11;
+
+    private final OutputStream out;
+    private final int chunkSize;
+    private final float steps[];
+    private final Column columns[] = new Column[3];
+    private final byte chunk[];
+
+    private long sequence;
+    private long offset;
+    private byte index[] = new byte[64 * INDEX_ENTRY_SIZE];
+    private int chunkCount;
+    private boolean closed;
+
+    public TraceArchiveWriter(File file) throws IOException {
+        this(file, DEFAULT_CHUNK_SIZE, DEFAULT_GYRO_STEP, DEFAULT_ACC_STEP, DEFAULT_MAG_STEP);
+    }
+
+    /**
+     * @param chunkSize samples per chunk and sensor; the unit a reader decodes when seeking
+     * @param gyroStep  quantization step of each sensor, 0 to store its values exactly
+     */
+    public TraceArchiveWriter(File file, int chunkSize, float gyroStep, float accStep, float magStep)
+            throws IOException {
+        this(new FileOutputStream(file), chunkSize, gyroStep, accStep, magStep);
+    }
+
+    /**
+     * Writes to any stream, e.g. to measure encoding alone. The stream is closed with the writer.
+     */
+    public TraceArchiveWriter(OutputStream out, int chunkSize, float gyroStep, float accStep, float magStep)
+            throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        if (!(gyroStep >= 0 && accStep >= 0 && magStep >= 0)) {
+            throw new IllegalArgumentException("steps must not be negative");
+        }
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.chunkSize = chunkSize;
+        steps = new float[]{gyroStep, accStep, magStep};
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column(chunkSize);
+        }
+        chunk = new byte[10 + chunkSize * MAX_SAMPLE_SIZE];
+
+        final byte header[] = new byte[HEADER_SIZE];
+        putInt(header, 0, MAGIC);
+        putShort(header, 4, VERSION);
+        putInt(header, 8, Float.floatToIntBits(gyroStep));
+        putInt(header, 12, Float.floatToIntBits(accStep));
+        putInt(header, 16, Float.floatToIntBits(magStep));
+        write(header, HEADER_SIZE);
+    }
+
+    /**
+     * Same arguments as {@link TraceRecorder#record}; samples come back in this order.
+     *
+     * @param sensor one of the FusionEngine.SENSOR_* ids
+     */
+    public void record(int sensor, long timestamp, float x, float y, float z, int accuracy) throws IOException {
+        if (sensor < FusionEngine.SENSOR_GYROSCOPE || sensor > FusionEngine.SENSOR_MAGNETOMETER) {
+            throw new IllegalArgumentException("Unknown sensor " + sensor);
+        }
+        if (closed) throw new IOException("Archive closed");
+        final int s = sensor - 1;
+        final Column column = columns[s];
+        final float step = steps[s];
+        final int i = column.count++;
+        column.sequences[i] = sequence++;
+        column.timestamps[i] = timestamp;
+        column.accuracies[i] = (byte) accuracy;
+        column.x[i] = quantize(x, step);
+        column.y[i] = quantize(y, step);
+        column.z[i] = quantize(z, step);
+        if (column.count == chunkSize) writeChunk(sensor);
+    }
+
+    /**
+     * Archives everything left in reader.
+     *
+     * @return number of records archived
+     */
+    public long append(TraceReader reader) throws IOException {
+        long count = 0;
+        while (reader.next()) {
+            record(reader.getSensor(), reader.getTimestamp(), reader.getX(), reader.getY(), reader.getZ(),
+                    reader.getAccuracy());
+            count++;
+        }
+        return count;
+    }
+
+    public long getRecordCount() {
+        return sequence;
+    }
+
+    /**
+     * @return bytes written so far, not counting samples still buffered
+     */
+    public long getSize() {
+        return offset;
+    }
+
+    private static int quantize(float value, float step) {
+        return step == 0 ? Float.floatToRawIntBits(value) : Math.round(value / step);
+    }
+
+    private void writeChunk(int sensor) throws IOException {
+        final Column column = columns[sensor - 1];
+        final boolean exact = steps[sensor - 1] == 0;
+        final int count = column.count;
+        final long sequences[] = column.sequences;
+        final long timestamps[] = column.timestamps;
+        final byte accuracies[] = column.accuracies;
+
+        int p = putVarint(chunk, 0, count);
+
+        p = putVarint(chunk, p, sequences[0]);
+        for (int i = 1; i < count; i++) {
+            p = putVarint(chunk, p, sequences[i] - sequences[i - 1] - 1);
+        }
+
+        putLong(chunk, p, timestamps[0]);
+        p += 8;
+        long previousDelta = 0;
+        for (int i = 1; i < count; i++) {
+            final long delta = timestamps[i] - timestamps[i - 1];
+            p = putZigZag(chunk, p, delta - previousDelta);
+            previousDelta = delta;
+        }
+
+        for (int i = 0; i < count; ) {
+            final byte accuracy = accuracies[i];
+            int run = 1;
+            while (i + run < count && accuracies[i + run] == accuracy) run++;
+            chunk[p++] = accuracy;
+            p = putVarint(chunk, p, run);
+            i += run;
+        }
+
+        p = putValues(column.x, count, exact, p);
+        p = putValues(column.y, count, exact, p);
+        p = putValues(column.z, count, exact, p);
+
+        long maxTimestamp = column.maxTimestamp;
+        for (int i = 0; i < count; i++) {
+            if (timestamps[i] > maxTimestamp) maxTimestamp = timestamps[i];
+        }
+        addIndexEntry(sensor, count, sequences[0], maxTimestamp, offset, p);
+        column.maxTimestamp = maxTimestamp;
+        column.count = 0;
+        write(chunk, p);
+    }
+
+    private int putValues(int values[], int count, boolean exact, int p) {
+        if (exact) {
+            p = putVarint(chunk, p, values[0] & 0xffffffffL);
+            for (int i = 1; i < count; i++) {
+                p = putVarint(chunk, p, (values[i] ^ values[i - 1]) & 0xffffffffL);
+            }
+        } else {
+            p = putZigZag(chunk, p, values[0]);
+            for (int i = 1; i < count; i++) {
+                p = putZigZag(chunk, p, (long) values[i] - values[i - 1]);
+            }
+        }
+        return p;
+    }
+
+    private void addIndexEntry(int sensor, int count, long firstSequence, long maxTimestamp, long offset,
+                               int length) {
+        int p = chunkCount * INDEX_ENTRY_SIZE;
+        if (p + INDEX_ENTRY_SIZE > index.length) {
+            byte grown[] = new byte[index.length * 2];
+            System.arraycopy(index, 0, grown, 0, p);
+            index = grown;
+        }
+        index[p] = (byte) sensor;
+        putInt(index, p + 4, count);
+        putLong(index, p + 8, firstSequence);
+        putLong(index, p + 16, maxTimestamp);
+        putLong(index, p + 24, offset);
+        putInt(index, p + 32, length);
+        chunkCount++;
+    }
+
+    private void write(byte bytes[], int length) throws IOException {
+        out.write(bytes, 0, length);
+        offset += length;
+    }
+
+    /**
+     * Writes the buffered samples, the index and the footer. The archive is unreadable until
+     * then.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            for (int sensor = FusionEngine.SENSOR_GYROSCOPE; sensor <= FusionEngine.SENSOR_MAGNETOMETER; sensor++) {
+                if (columns[sensor - 1].count > 0) writeChunk(sensor);
+            }
+            final long indexOffset = offset;
+            write(index, chunkCount * INDEX_ENTRY_SIZE);
+            final byte footer[] = new byte[FOOTER_SIZE];
+            putLong(footer, 0, indexOffset);
+            putInt(footer, 8, chunkCount);
+            putInt(footer, 12, MAGIC);
+            write(footer, FOOTER_SIZE);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Buffered samples of one sensor.
+     */
+    private static final class Column {
+
+        final long sequences[];
+        final long timestamps[];
+        final byte accuracies[];
+        final int x[], y[], z[];
+        int count;
+        long maxTimestamp = Long.MIN_VALUE;
+
+        Column(int capacity) {
+            sequences = new long[capacity];
+            timestamps = new long[capacity];
+            accuracies = new byte[capacity];
+            x = new int[capacity];
+            y = new int[capacity];
+            z = new int[capacity];
+        }
+    }
+
+    private static int putVarint(byte buffer[], int p, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[p++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        buffer[p++] = (byte) value;
+        return p;
+    }
+
+    private static int putZigZag(byte buffer[], int p, long value) {
+        return putVarint(buffer, p, (value << 1) ^ (value >> 63));
+    }
+
+    private static void putShort(byte buffer[], int p, short value) {
+        buffer[p] = (byte) value;
+        buffer[p + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte buffer[], int p, int value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[p + i] = (byte) (value >> (i * 8));
+        }
+    }
+
+    private static void putLong(byte buffer[], int p, long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[p + i] = (byte) (value >> (i * 8));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back the segments written by a {@link TraceRecorder}, one record at a time, in the
+ * order they were recorded:
+ * <pre>
+ *   while (reader.next()) engine.onGyro(reader.getTimestamp(), ...);
+ * </pre>
+ * Segments are memory mapped read only, one at a time.
+ */
+public class TraceReader implements Closeable {
+
+    private final File directory;
+    private final String prefix;
+
+    private int segmentIndex = -1;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    private int sensor;
+    private int accuracy;
+    private long timestamp;
+    private float x, y, z;
+
+    /**
+     * @param directory and prefix as given to the recorder
+     * @throws IOException if there is no first segment, or it is not a trace
+     */
+    public TraceReader(File directory, String prefix) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        if (!nextSegment()) {
+            throw new IOException("No trace at " + TraceRecorder.segmentFile(directory, prefix, 0));
+        }
+    }
+
+    /**
+     * Moves on to the next record.
+     *
+     * @return false at the end of the trace
+     */
+    public boolean next() throws IOException {
+        while (buffer != null) {
+            if (position + TraceRecorder.RECORD_SIZE <= limit) {
+                final int p = position;
+                int s = buffer.get(p);
+                if (s != 0) {
+                    sensor = s;
+                    accuracy = buffer.get(p + 1);
+                    x = buffer.getFloat(p + 4);
+                    y = buffer.getFloat(p + 8);
+                    z = buffer.getFloat(p + 12);
+                    timestamp = buffer.getLong(p + 16);
+                    position = p + TraceRecorder.RECORD_SIZE;
+                    return true;
+                }
+            }
+            // End of this segment, or of what was written to it before the recorder stopped
+            if (!nextSegment()) return false;
+        }
+        return false;
+    }
+
+    /**
+     * Reads records into batch until it is full or the trace ends.
+     *
+     * @return number of records added
+     */
+    public int read(SampleBatch batch) throws IOException {
+        int read = 0;
+        while (next()) {
+            read++;
+            if (batch.add(sensor, timestamp, x, y, z)) break;
+        }
+        return read;
+    }
+
+    private boolean nextSegment() throws IOException {
+        closeSegment();
+        File next = TraceRecorder.segmentFile(directory, prefix, segmentIndex + 1);
+        if (!next.isFile()) return false;
+        segmentIndex++;
+
+        file = new RandomAccessFile(next, "r");
+        long length = file.length();
+        if (length < TraceRecorder.HEADER_SIZE || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad segment size " + length + ": " + next);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != TraceRecorder.MAGIC) {
+            throw new IOException("Not a sensor trace: " + next);
+        }
+        if (buffer.getShort(4) != TraceRecorder.VERSION
+                || buffer.getShort(6) != TraceRecorder.RECORD_SIZE) {
+            throw new IOException("Unsupported trace version " + buffer.getShort(4) + ": " + next);
+        }
+        position = TraceRecorder.HEADER_SIZE;
+        limit = (int) length;
+        return true;
+    }
+
+    private void closeSegment() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return FusionEngine.SENSOR_* id of the current record
+     */
+    public int getSensor() {
+        return sensor;
+    }
+
+    public int getAccuracy() {
+        return accuracy;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public float getX() {
+        return x;
+    }
+
+    public float getY() {
+        return y;
+    }
+
+    public float getZ() {
+        return z;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
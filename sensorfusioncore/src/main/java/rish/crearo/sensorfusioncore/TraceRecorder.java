@@ -0,0 +1,167 @@
+package rish.crearo.sensorfusioncore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Appends raw sensor samples to memory mapped segment files, for replaying field problems later.
+ * <p>
+ * Every segment starts with a {@link #HEADER_SIZE} byte header (magic, version, record size,
+ * segment number) followed by fixed size little endian records:
+ * <pre>
+ *   0  byte   sensor, FusionEngine.SENSOR_*; 0 marks the end of the data
+ *   1  byte   accuracy, SensorManager.SENSOR_STATUS_*
+ *   2  short  reserved
+ *   4  float  x, y, z
+ *   16 long   timestamp, nanoseconds
+ * </pre>
+ * Recording a sample is a handful of absolute puts into the mapped buffer: no allocation and
+ * no system call. The kernel writes the pages back on its own. Only moving on to the next
+ * segment (every segmentSize bytes) maps a new file.
+ * <p>
+ * Single writer: give each sensor source its own recorder, or record from one thread.
+ */
+public class TraceRecorder implements Closeable {
+
+    public static final int MAGIC = 0x52544653; // "SFTR" little endian
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 24;
+    public static final String EXTENSION = ".sftrace";
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+
+    private int segmentIndex = -1;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int position;
+
+    private long recordCount;
+    private long droppedCount;
+    private IOException error;
+
+    /**
+     * @param directory   where segments go, created if missing
+     * @param prefix      segments are named prefix-00000.sftrace, prefix-00001.sftrace, ...
+     * @param segmentSize bytes per segment file, including the header
+     */
+    public TraceRecorder(File directory, String prefix, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("segmentSize too small: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        // Whole records only, so a record never straddles two segments
+        this.segmentSize = HEADER_SIZE + (segmentSize - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        nextSegment();
+    }
+
+    public static File segmentFile(File directory, String prefix, int index) {
+        return new File(directory, String.format(Locale.US, "%s-%05d%s", prefix, index, EXTENSION));
+    }
+
+    /**
+     * @param sensor   one of the FusionEngine.SENSOR_* ids
+     * @param accuracy SensorEvent.accuracy
+     */
+    public void record(int sensor, long timestamp, float x, float y, float z, int accuracy) {
+        if (buffer == null) {
+            droppedCount++;
+            return;
+        }
+        if (position == segmentSize) {
+            try {
+                nextSegment();
+            } catch (IOException e) {
+                // Keep the sensor path alive; recording just stops
+                error = e;
+                closeSegment();
+                droppedCount++;
+                return;
+            }
+        }
+
+        final int p = position;
+        buffer.putFloat(p + 4, x);
+        buffer.putFloat(p + 8, y);
+        buffer.putFloat(p + 12, z);
+        buffer.putLong(p + 16, timestamp);
+        buffer.put(p + 1, (byte) accuracy);
+        // Sensor last, it is what marks the record as present
+        buffer.put(p, (byte) sensor);
+        position = p + RECORD_SIZE;
+        recordCount++;
+    }
+
+    private void nextSegment() throws IOException {
+        closeSegment();
+        segmentIndex++;
+        file = new RandomAccessFile(segmentFile(directory, prefix, segmentIndex), "rw");
+        file.setLength(segmentSize);
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) RECORD_SIZE);
+        buffer.putInt(8, segmentIndex);
+        position = HEADER_SIZE;
+    }
+
+    private void closeSegment() {
+        if (file == null) {
+            return;
+        }
+        try {
+            buffer.force();
+            // Drop the unused tail of the last segment
+            if (position < segmentSize) file.setLength(position);
+            file.close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+        file = null;
+        buffer = null;
+    }
+
+    /**
+     * Forces written records to storage. Does I/O, keep it off the sensor path.
+     */
+    public void flush() {
+        if (buffer != null) buffer.force();
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return samples not recorded because a segment could not be created
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the error that stopped recording, if any
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+        if (error != null) throw error;
+    }
+}
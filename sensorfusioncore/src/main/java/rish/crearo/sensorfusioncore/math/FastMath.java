@@ -0,0 +1,59 @@
+package rish.crearo.sensorfusioncore.math;
+
+/**
+ * Float versions of the inverse trig functions the orientation code needs. Math.atan2 and
+ * Math.asin work in double and cost tens of nanoseconds each; these are a polynomial and a
+ * divide, and stay within {@link #MAX_ERROR} rad of Math's result, far below sensor noise.
+ */
+public final class FastMath {
+
+    public static final float PI = (float) Math.PI;
+    public static final float HALF_PI = (float) (Math.PI / 2);
+
+    /* Upper bound on the absolute error of atan2 and asin, in radians */
+    public static final float MAX_ERROR = 1e-6f;
+
+    /* atan(x) on [0, 1], Abramowitz and Stegun 4.4.49, odd coefficients a1..a15 */
+    private static final float A1 = 0.9999993329f;
+    private static final float A3 = -0.3332985605f;
+    private static final float A5 = 0.1994653599f;
+    private static final float A7 = -0.1390853351f;
+    private static final float A9 = 0.0964200441f;
+    private static final float A11 = -0.0559098861f;
+    private static final float A13 = 0.0218612288f;
+    private static final float A15 = -0.0040540580f;
+
+    private FastMath() {
+    }
+
+    /**
+     * Same quadrants and special cases as Math.atan2 for finite arguments; atan2(0, 0) is 0.
+     */
+    public static float atan2(float y, float x) {
+        final float ax = Math.abs(x), ay = Math.abs(y);
+        if (ax == 0 && ay == 0) {
+            // Math.atan2's signed zero cases: pi for x = -0, 0 for x = +0
+            return Math.copySign(Math.copySign(1, x) < 0 ? PI : 0, y);
+        }
+        final boolean steep = ay > ax;
+        final float t = steep ? ax / ay : ay / ax;
+        float angle = atanUnit(t);
+        if (steep) angle = HALF_PI - angle;
+        if (x < 0) angle = PI - angle;
+        return Math.copySign(angle, y);
+    }
+
+    /**
+     * @param x clamped to [-1, 1]
+     */
+    public static float asin(float x) {
+        if (x >= 1) return HALF_PI;
+        if (x <= -1) return -HALF_PI;
+        return atan2(x, (float) Math.sqrt((1 - x) * (1 + x)));
+    }
+
+    private static float atanUnit(float t) {
+        final float t2 = t * t;
+        return t * (A1 + t2 * (A3 + t2 * (A5 + t2 * (A7 + t2 * (A9 + t2 * (A11 + t2 * (A13 + t2 * A15)))))));
+    }
+}
@@ -0,0 +1,139 @@
+package rish.crearo.sensorfusioncore.math;
+
+/**
+ * Allocation free helpers for 3x3 row major matrices stored as float[9], covering what the
+ * fusion code used SensorManager for: the acc/mag rotation matrix and azimuth/pitch/roll.
+ * <p>
+ * Only the 3x3 rotation matrix is computed, no 4x4 variant and no inclination matrix. The
+ * results are checked against {@link rish.crearo.sensorfusioncore.RotationMath}, the JVM port
+ * of the platform code.
+ */
+public final class Mat3 {
+
+    /* Same thresholds SensorManager uses to reject free fall and a missing/aligned field */
+    private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f * 9.81f * 9.81f;
+    private static final float MIN_FIELD_NORM = 0.1f;
+    private static final float MIN_FIELD_NORM_SQUARED = MIN_FIELD_NORM * MIN_FIELD_NORM;
+
+    private Mat3() {
+    }
+
+    public static void setIdentity(float m[]) {
+        m[0] = 1;
+        m[1] = 0;
+        m[2] = 0;
+        m[3] = 0;
+        m[4] = 1;
+        m[5] = 0;
+        m[6] = 0;
+        m[7] = 0;
+        m[8] = 1;
+    }
+
+    /**
+     * out = a * b. out must not be the same array as a or b.
+     */
+    public static void multiply(float a[], float b[], float out[]) {
+        for (int r = 0; r < 9; r += 3) {
+            final float a0 = a[r], a1 = a[r + 1], a2 = a[r + 2];
+            out[r] = a0 * b[0] + a1 * b[3] + a2 * b[6];
+            out[r + 1] = a0 * b[1] + a1 * b[4] + a2 * b[7];
+            out[r + 2] = a0 * b[2] + a1 * b[5] + a2 * b[8];
+        }
+    }
+
+    /**
+     * out = m * v. out may be the same array as v.
+     */
+    public static void multiplyVector(float m[], float v[], float out[]) {
+        final float x = v[0], y = v[1], z = v[2];
+        out[0] = m[0] * x + m[1] * y + m[2] * z;
+        out[1] = m[3] * x + m[4] * y + m[5] * z;
+        out[2] = m[6] * x + m[7] * y + m[8] * z;
+    }
+
+    public static void transpose(float m[]) {
+        float t = m[1];
+        m[1] = m[3];
+        m[3] = t;
+        t = m[2];
+        m[2] = m[6];
+        m[6] = t;
+        t = m[5];
+        m[5] = m[7];
+        m[7] = t;
+    }
+
+    /**
+     * Whether {@link #fromGravityAndField} would accept gravity and geomagnetic, without the
+     * square roots and divisions of computing R. May differ from it by rounding right at the
+     * field threshold.
+     */
+    public static boolean acceptsGravityAndField(float gravity[], float geomagnetic[]) {
+        final float ax = gravity[0], ay = gravity[1], az = gravity[2];
+        if (ax * ax + ay * ay + az * az < FREE_FALL_GRAVITY_SQUARED) {
+            return false;
+        }
+        final float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+        final float hx = ey * az - ez * ay;
+        final float hy = ez * ax - ex * az;
+        final float hz = ex * ay - ey * ax;
+        return hx * hx + hy * hy + hz * hz >= MIN_FIELD_NORM_SQUARED;
+    }
+
+    /**
+     * The rotation from device to world (x east, y north, z up) coordinates, same result as
+     * SensorManager.getRotationMatrix(R, null, gravity, geomagnetic) for a 3x3 R.
+     *
+     * @return false if the device is in free fall or the field is too weak / parallel to gravity,
+     * in which case R is left untouched.
+     */
+    public static boolean fromGravityAndField(float R[], float gravity[], float geomagnetic[]) {
+        float ax = gravity[0], ay = gravity[1], az = gravity[2];
+        final float normSquaredA = ax * ax + ay * ay + az * az;
+        if (normSquaredA < FREE_FALL_GRAVITY_SQUARED) {
+            return false;
+        }
+
+        // East = field x up
+        final float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+        float hx = ey * az - ez * ay;
+        float hy = ez * ax - ex * az;
+        float hz = ex * ay - ey * ax;
+        final float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+        if (normH < MIN_FIELD_NORM) {
+            return false;
+        }
+
+        final float invH = 1.0f / normH;
+        hx *= invH;
+        hy *= invH;
+        hz *= invH;
+        final float invA = 1.0f / (float) Math.sqrt(normSquaredA);
+        ax *= invA;
+        ay *= invA;
+        az *= invA;
+
+        // North = up x east, unit length already
+        R[0] = hx;
+        R[1] = hy;
+        R[2] = hz;
+        R[3] = ay * hz - az * hy;
+        R[4] = az * hx - ax * hz;
+        R[5] = ax * hy - ay * hx;
+        R[6] = ax;
+        R[7] = ay;
+        R[8] = az;
+        return true;
+    }
+
+    /**
+     * Azimuth, pitch, roll (-z, -x, y) in radians, like SensorManager.getOrientation(R, values)
+     * but with {@link FastMath} trig.
+     */
+    public static void toOrientation(float R[], float values[]) {
+        values[0] = FastMath.atan2(R[1], R[4]);
+        values[1] = FastMath.asin(-R[7]);
+        values[2] = FastMath.atan2(-R[6], R[8]);
+    }
+}
@@ -0,0 +1,169 @@
+package rish.crearo.sensorfusioncore.math;
+
+/**
+ * Allocation free helpers for unit quaternions stored as float[4] in (w, x, y, z) order, the
+ * order SensorManager.getQuaternionFromVector uses.
+ * <p>
+ * A quaternion here rotates device coordinates into the reference frame. The Euler angles
+ * are the PRY (x, y, z) convention used throughout the library: R = Rz(yaw) * Rx(pitch) * Ry(roll).
+ */
+public final class Quat {
+
+    private Quat() {
+    }
+
+    public static void setIdentity(float q[]) {
+        q[0] = 1;
+        q[1] = 0;
+        q[2] = 0;
+        q[3] = 0;
+    }
+
+    /**
+     * out = a * b. out may be the same array as a or b.
+     */
+    public static void multiply(float a[], float b[], float out[]) {
+        final float w = a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3];
+        final float x = a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2];
+        final float y = a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1];
+        final float z = a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0];
+        out[0] = w;
+        out[1] = x;
+        out[2] = y;
+        out[3] = z;
+    }
+
+    /**
+     * out = conjugate(a) * b, i.e. the rotation taking a to b. out may alias a or b.
+     */
+    public static void multiplyConjugate(float a[], float b[], float out[]) {
+        final float w = a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+        final float x = a[0] * b[1] - a[1] * b[0] - a[2] * b[3] + a[3] * b[2];
+        final float y = a[0] * b[2] + a[1] * b[3] - a[2] * b[0] - a[3] * b[1];
+        final float z = a[0] * b[3] - a[1] * b[2] + a[2] * b[1] - a[3] * b[0];
+        out[0] = w;
+        out[1] = x;
+        out[2] = y;
+        out[3] = z;
+    }
+
+    /**
+     * Renormalizes a quaternion that is already close to unit length, using one Newton step
+     * of 1/sqrt around 1 instead of a sqrt and a divide. Good enough to stop drift when
+     * applied after every integration step.
+     */
+    public static void normalizeFast(float q[]) {
+        final float scale = 0.5f * (3.0f - (q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]));
+        q[0] *= scale;
+        q[1] *= scale;
+        q[2] *= scale;
+        q[3] *= scale;
+    }
+
+    public static void normalize(float q[]) {
+        final float norm = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        if (norm == 0) {
+            setIdentity(q);
+            return;
+        }
+        final float inv = 1.0f / norm;
+        q[0] *= inv;
+        q[1] *= inv;
+        q[2] *= inv;
+        q[3] *= inv;
+    }
+
+    /**
+     * Normalized linear interpolation from q towards target by t, written back into q.
+     * Takes the short way round.
+     */
+    public static void nlerp(float q[], float target[], float t) {
+        final float dot = q[0] * target[0] + q[1] * target[1] + q[2] * target[2] + q[3] * target[3];
+        final float s = dot < 0 ? -t : t;
+        final float oneMinusT = 1.0f - t;
+        q[0] = oneMinusT * q[0] + s * target[0];
+        q[1] = oneMinusT * q[1] + s * target[1];
+        q[2] = oneMinusT * q[2] + s * target[2];
+        q[3] = oneMinusT * q[3] + s * target[3];
+        normalize(q);
+    }
+
+    /**
+     * @param m 3x3 row major rotation matrix
+     */
+    public static void toRotationMatrix(float q[], float m[]) {
+        final float w = q[0], x = q[1], y = q[2], z = q[3];
+        final float xx = x * x, yy = y * y, zz = z * z;
+        final float xy = x * y, xz = x * z, yz = y * z;
+        final float wx = w * x, wy = w * y, wz = w * z;
+        m[0] = 1 - 2 * (yy + zz);
+        m[1] = 2 * (xy - wz);
+        m[2] = 2 * (xz + wy);
+        m[3] = 2 * (xy + wz);
+        m[4] = 1 - 2 * (xx + zz);
+        m[5] = 2 * (yz - wx);
+        m[6] = 2 * (xz - wy);
+        m[7] = 2 * (yz + wx);
+        m[8] = 1 - 2 * (xx + yy);
+    }
+
+    /**
+     * @param m 3x3 row major rotation matrix, e.g. from RotationMath.getRotationMatrix
+     */
+    public static void fromRotationMatrix(float m[], float q[]) {
+        final float trace = m[0] + m[4] + m[8];
+        if (trace > 0) {
+            final float s = 0.5f / (float) Math.sqrt(trace + 1.0f);
+            q[0] = 0.25f / s;
+            q[1] = (m[7] - m[5]) * s;
+            q[2] = (m[2] - m[6]) * s;
+            q[3] = (m[3] - m[1]) * s;
+        } else if (m[0] > m[4] && m[0] > m[8]) {
+            final float s = 2.0f * (float) Math.sqrt(1.0f + m[0] - m[4] - m[8]);
+            q[0] = (m[7] - m[5]) / s;
+            q[1] = 0.25f * s;
+            q[2] = (m[1] + m[3]) / s;
+            q[3] = (m[2] + m[6]) / s;
+        } else if (m[4] > m[8]) {
+            final float s = 2.0f * (float) Math.sqrt(1.0f + m[4] - m[0] - m[8]);
+            q[0] = (m[2] - m[6]) / s;
+            q[1] = (m[1] + m[3]) / s;
+            q[2] = 0.25f * s;
+            q[3] = (m[5] + m[7]) / s;
+        } else {
+            final float s = 2.0f * (float) Math.sqrt(1.0f + m[8] - m[0] - m[4]);
+            q[0] = (m[3] - m[1]) / s;
+            q[1] = (m[2] + m[6]) / s;
+            q[2] = (m[5] + m[7]) / s;
+            q[3] = 0.25f * s;
+        }
+    }
+
+    /**
+     * @param pry receives pitch, roll, yaw (x, y, z) in radians, with {@link FastMath} trig
+     */
+    public static void toEuler(float q[], float pry[]) {
+        final float w = q[0], x = q[1], y = q[2], z = q[3];
+        float sinPitch = 2 * (y * z + w * x);
+        if (sinPitch > 1) sinPitch = 1;
+        else if (sinPitch < -1) sinPitch = -1;
+        pry[0] = FastMath.asin(sinPitch);
+        pry[1] = FastMath.atan2(-2 * (x * z - w * y), 1 - 2 * (x * x + y * y));
+        pry[2] = FastMath.atan2(-2 * (x * y - w * z), 1 - 2 * (x * x + z * z));
+    }
+
+    /**
+     * @param pry pitch, roll, yaw (x, y, z) in radians
+     */
+    public static void fromEuler(float pry[], float q[]) {
+        final float cx = (float) Math.cos(pry[0] * 0.5f), sx = (float) Math.sin(pry[0] * 0.5f);
+        final float cy = (float) Math.cos(pry[1] * 0.5f), sy = (float) Math.sin(pry[1] * 0.5f);
+        final float cz = (float) Math.cos(pry[2] * 0.5f), sz = (float) Math.sin(pry[2] * 0.5f);
+        // Rx(pitch) * Ry(roll), then Rz(yaw) in front of it
+        final float pw = cx * cy, px = sx * cy, py = cx * sy, pz = sx * sy;
+        q[0] = cz * pw - sz * pz;
+        q[1] = cz * px - sz * py;
+        q[2] = cz * py + sz * px;
+        q[3] = cz * pz + sz * pw;
+    }
+}
@@ -0,0 +1,55 @@
+package rish.crearo.sensorfusioncore.math;
+
+/**
+ * Allocation free helpers for 3-vectors stored as float[3].
+ */
+public final class Vec3 {
+
+    private Vec3() {
+    }
+
+    public static void set(float v[], float x, float y, float z) {
+        v[0] = x;
+        v[1] = y;
+        v[2] = z;
+    }
+
+    public static float dot(float a[], float b[]) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    public static float lengthSquared(float v[]) {
+        return v[0] * v[0] + v[1] * v[1] + v[2] * v[2];
+    }
+
+    public static float length(float v[]) {
+        return (float) Math.sqrt(lengthSquared(v));
+    }
+
+    /**
+     * out = a x b. out may be the same array as a or b.
+     */
+    public static void cross(float a[], float b[], float out[]) {
+        final float x = a[1] * b[2] - a[2] * b[1];
+        final float y = a[2] * b[0] - a[0] * b[2];
+        final float z = a[0] * b[1] - a[1] * b[0];
+        out[0] = x;
+        out[1] = y;
+        out[2] = z;
+    }
+
+    public static void scale(float v[], float s) {
+        v[0] *= s;
+        v[1] *= s;
+        v[2] *= s;
+    }
+
+    /**
+     * @return the length before normalizing; v is left untouched if it is 0
+     */
+    public static float normalize(float v[]) {
+        final float length = length(v);
+        if (length > 0) scale(v, 1.0f / length);
+        return length;
+    }
+}
@@ -0,0 +1,15 @@
+package rish.crearo.sensorfusionlib.listeners;
+
+import rish.crearo.sensorfusioncore.Orientation;
+
+/**
+ * Receives the fused orientation in whatever representation the consumer needs. Matrix and
+ * Euler forms are only computed if asked for, so renderers can use the quaternion or matrix
+ * directly instead of converting Euler angles back every frame.
+ */
+public interface OrientationListener {
+    /**
+     * @param orientation reused between calls, copy what you need to keep
+     */
+    void onOrientation(Orientation orientation, long timestamp);
+}
@@ -0,0 +1,22 @@
+package rish.crearo.sensorfusionlib.listeners;
+
+import rish.crearo.sensorfusioncore.OrientationSnapshot;
+import rish.crearo.sensorfusioncore.OrientationStream;
+
+/**
+ * Pull based consumer of an {@link OrientationStream}: gets samples only as far as it has
+ * requested them, on the executor it subscribed with.
+ */
+public interface OrientationSubscriber {
+
+    /**
+     * Called once, on the subscribing thread, before any sample. Nothing is delivered until
+     * {@link OrientationStream.Subscription#request} is called.
+     */
+    void onSubscribe(OrientationStream.Subscription subscription);
+
+    /**
+     * @param snapshot valid until this returns, {@link OrientationSnapshot#retain()} it to keep it
+     */
+    void onNext(OrientationSnapshot snapshot);
+}
@@ -0,0 +1,10 @@
+package rish.crearo.sensorfusionlib.listeners;
+
+public interface PanelOrientationListener {
+    /**
+     * All in degrees, see {@link rish.crearo.sensorfusioncore.PanelOrientation}.
+     *
+     * @param timestamp sensor timestamp of the sample, nanoseconds
+     */
+    void onOrientationChanged(float azimuth, float pitch, float roll, long timestamp);
+}
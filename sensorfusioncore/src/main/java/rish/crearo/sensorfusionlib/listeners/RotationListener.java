@@ -0,0 +1,10 @@
+package rish.crearo.sensorfusionlib.listeners;
+
+public interface RotationListener {
+
+    /**
+     * @param timestamp sensor timestamp of the sample, nanoseconds
+     */
+    void onRotationMatrix(float rotationMatrix[], long timestamp);
+
+}
@@ -0,0 +1,105 @@
+package rish.crearo.sensorfusioncore;
+
+import org.junit.Test;
+
+import rish.crearo.sensorfusionlib.listeners.FusionListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AccMagSynchronizerTest {
+
+    private static final long MS = 1000000L;
+    private static final long ACC_PERIOD_NS = 5 * MS;
+    private static final long MAG_PERIOD_NS = 20 * MS;
+    private static final long FLUSH_NS = 500 * MS;
+    private static final int FLUSHES = 20;
+    private static final float SYNC_RATE_HZ = 100;
+
+    /* Every sample's x is its own time in seconds, so a pair taken at one instant has acc x == mag x */
+    private static float seconds(long timestamp) {
+        return timestamp * 1e-9f;
+    }
+
+    @Test
+    public void burstInDeliveryOrderIsPairedAtTheSameInstant() {
+        // Room for two samples, far less than one burst
+        AccMagSynchronizer sync = new AccMagSynchronizer(SYNC_RATE_HZ, AccMagSynchronizer.DEFAULT_MAX_LATENCY_NS, 2);
+        long lastMag = -1, firstTick = -1;
+        int ticks = 0;
+        for (int flush = 0; flush < FLUSHES; flush++) {
+            final long from = flush * FLUSH_NS, to = from + FLUSH_NS;
+            for (long t = from; t < to; t += ACC_PERIOD_NS) {
+                sync.addAccelerometer(t, seconds(t), 0, 0);
+            }
+            for (long t = from; t < to; t += MAG_PERIOD_NS) {
+                sync.addMagnetometer(t, seconds(t), 0, 0);
+                lastMag = t;
+            }
+            while (sync.next()) {
+                assertTrue("tick past the newest magnetometer sample", sync.getTimestamp() <= lastMag);
+                assertEquals(seconds(sync.getTimestamp()), sync.getAccelerometer()[0], 1e-5f);
+                assertEquals(seconds(sync.getTimestamp()), sync.getMagnetometer()[0], 1e-5f);
+                if (firstTick == -1) firstTick = sync.getTimestamp();
+                ticks++;
+            }
+        }
+        // Before the first tick only maxLatency of the first burst is kept; from then on, no tick is missed
+        assertTrue(firstTick <= FLUSH_NS);
+        assertEquals((lastMag - firstTick) / sync.getPeriodNs() + 1, ticks);
+    }
+
+    @Test
+    public void burstThroughEngineGetsEveryAlignedPair() {
+        final int pairs[] = new int[1];
+        final float mag[] = new float[1];
+        FusionAlgorithm recorder = new FusionAlgorithm() {
+            @Override
+            public void updateGyro(float dt, float x, float y, float z) {
+            }
+
+            @Override
+            public boolean updateAccelerometer(float x, float y, float z) {
+                assertEquals(x, mag[0], 1e-5f);
+                pairs[0]++;
+                return true;
+            }
+
+            @Override
+            public void updateMagnetometer(float x, float y, float z) {
+                mag[0] = x;
+            }
+
+            @Override
+            public void getOrientation(Orientation orientation) {
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+        FusionEngine engine = new FusionEngine(recorder, new FusionListener() {
+            @Override
+            public void onFusedOrientation(float fusedOrientation[], long timestamp) {
+            }
+        });
+        AccMagSynchronizer sync = new AccMagSynchronizer(SYNC_RATE_HZ);
+        engine.setAccMagSynchronizer(sync);
+
+        SampleBatch batch = new SampleBatch((int) (FLUSH_NS / ACC_PERIOD_NS + FLUSH_NS / MAG_PERIOD_NS));
+        long lastMag = -1;
+        for (int flush = 0; flush < FLUSHES; flush++) {
+            final long from = flush * FLUSH_NS, to = from + FLUSH_NS;
+            batch.clear();
+            for (long t = from; t < to; t += ACC_PERIOD_NS) {
+                batch.add(FusionEngine.SENSOR_ACCELEROMETER, t, seconds(t), 0, 0);
+            }
+            for (long t = from; t < to; t += MAG_PERIOD_NS) {
+                batch.add(FusionEngine.SENSOR_MAGNETOMETER, t, seconds(t), 0, 0);
+                lastMag = t;
+            }
+            assertEquals(0, engine.onSamples(batch));
+        }
+        assertEquals(lastMag / sync.getPeriodNs() + 1, pairs[0]);
+    }
+}
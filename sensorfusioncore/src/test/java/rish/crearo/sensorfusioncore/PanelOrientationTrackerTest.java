@@ -0,0 +1,85 @@
+package rish.crearo.sensorfusioncore;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import rish.crearo.sensorfusioncore.math.Quat;
+import rish.crearo.sensorfusionlib.listeners.PanelOrientationListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PanelOrientationTrackerTest {
+
+    private static final int EVENTS = 200000;
+
+    @Test
+    public void remapTablesMatchRemapCoordinateSystem() {
+        Random random = new Random(42);
+        float rotationMatrix[] = new float[9];
+        float adjusted[] = new float[9];
+        float expected[] = new float[3];
+        float actual[] = new float[3];
+        for (int i = 0; i < 10000; i++) {
+            randomRotation(random, rotationMatrix);
+            for (int rotation = PanelOrientation.ROTATION_0; rotation <= PanelOrientation.ROTATION_270; rotation++) {
+                PanelOrientation.getOrientation(rotationMatrix, rotation, adjusted, expected);
+                PanelOrientation.getOrientation(rotationMatrix, rotation, actual);
+                assertEquals(expected[0], actual[0], 0);
+                assertEquals(expected[1], actual[1], 0);
+                assertEquals(expected[2], actual[2], 0);
+            }
+        }
+    }
+
+    @Test
+    public void noAllocationPerEvent() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        float matrices[][] = new float[64][9];
+        Random random = new Random(7);
+        for (float matrix[] : matrices) {
+            randomRotation(random, matrix);
+        }
+        final float sum[] = new float[1];
+        PanelOrientationTracker tracker = new PanelOrientationTracker();
+        tracker.setListener(new PanelOrientationListener() {
+            @Override
+            public void onOrientationChanged(float azimuth, float pitch, float roll, long timestamp) {
+                sum[0] += azimuth + pitch + roll;
+            }
+        });
+
+        // Warm up, so class loading and compilation are not counted
+        run(tracker, matrices);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        run(tracker, matrices);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // Even one small object per event would be EVENTS * 16 bytes
+        assertTrue("allocated " + allocated + " bytes for " + EVENTS + " events", allocated < EVENTS);
+        assertTrue(!Float.isNaN(sum[0]));
+    }
+
+    private static void run(PanelOrientationTracker tracker, float matrices[][]) {
+        for (int i = 0; i < EVENTS; i++) {
+            tracker.setDisplayRotation(i & 3);
+            tracker.onRotationMatrix(matrices[i & 63], i);
+        }
+    }
+
+    private static void randomRotation(Random random, float rotationMatrix[]) {
+        float q[] = {(float) random.nextGaussian(), (float) random.nextGaussian(),
+                (float) random.nextGaussian(), (float) random.nextGaussian()};
+        Quat.normalize(q);
+        Quat.toRotationMatrix(q, rotationMatrix);
+    }
+}
@@ -0,0 +1,140 @@
+package rish.crearo.sensorfusioncore;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceArchiveTest {
+
+    private static final int RECORDS = 5000;
+    /* Small, so a few thousand records span many chunks */
+    private static final int CHUNK_SIZE = 64;
+    private static final long PERIODS_NS[] = {5000000L, 10000000L, 20000000L};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /* The recording: gyro, acc and mag interleaved in timestamp order, with jitter */
+    private final int sensors[] = new int[RECORDS];
+    private final long timestamps[] = new long[RECORDS];
+    private final float values[] = new float[RECORDS * 3];
+    private final int accuracies[] = new int[RECORDS];
+
+    public TraceArchiveTest() {
+        Random random = new Random(3);
+        long next[] = {0, 1000000L, 2000000L};
+        for (int i = 0; i < RECORDS; i++) {
+            int s = 0;
+            for (int j = 1; j < next.length; j++) {
+                if (next[j] < next[s]) s = j;
+            }
+            sensors[i] = s + 1;
+            timestamps[i] = next[s];
+            next[s] += PERIODS_NS[s] + random.nextInt(200000) - 100000;
+            for (int c = 0; c < 3; c++) {
+                values[i * 3 + c] = (float) (Math.sin(timestamps[i] * 1e-9 * (c + 1)) * (s + 1) * 10
+                        + random.nextGaussian() * 0.01);
+            }
+            accuracies[i] = i < RECORDS / 2 ? 3 : 2;
+        }
+    }
+
+    @Test
+    public void losslessRoundTripIsExact() throws IOException {
+        File file = write(0, 0, 0);
+        try (TraceArchiveReader reader = new TraceArchiveReader(file)) {
+            assertEquals(RECORDS, reader.getRecordCount());
+            for (int i = 0; i < RECORDS; i++) {
+                assertTrue(reader.next());
+                assertRecord(i, reader, 0);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void quantizedRoundTripIsWithinHalfAStep() throws IOException {
+        final float steps[] = {TraceArchiveWriter.DEFAULT_GYRO_STEP, TraceArchiveWriter.DEFAULT_ACC_STEP,
+                TraceArchiveWriter.DEFAULT_MAG_STEP};
+        File file = write(steps[0], steps[1], steps[2]);
+        assertTrue("quantized archive not smaller", file.length() < write(0, 0, 0).length());
+        try (TraceArchiveReader reader = new TraceArchiveReader(file)) {
+            for (int s = 0; s < steps.length; s++) {
+                assertEquals(steps[s], reader.getStep(s + 1), 0);
+            }
+            for (int i = 0; i < RECORDS; i++) {
+                assertTrue(reader.next());
+                assertRecord(i, reader, steps[sensors[i] - 1] / 2);
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void seekForwardAndBack() throws IOException {
+        File file = write(0, 0, 0);
+        final long end = timestamps[RECORDS - 1];
+        final long targets[] = {end / 2, end / 10, end * 9 / 10, end / 2 + 1, 0, end, end + 1};
+        try (TraceArchiveReader reader = new TraceArchiveReader(file)) {
+            for (long target : targets) {
+                reader.seek(target);
+                // Timestamps are in order per sensor, so what follows is every later record
+                for (int i = 0; i < RECORDS; i++) {
+                    if (timestamps[i] < target) continue;
+                    assertTrue("seek to " + target, reader.next());
+                    assertRecord(i, reader, 0);
+                }
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    @Test
+    public void emptyArchive() throws IOException {
+        File file = folder.newFile("empty" + TraceArchiveWriter.EXTENSION);
+        new TraceArchiveWriter(file).close();
+        try (TraceArchiveReader reader = new TraceArchiveReader(file)) {
+            assertEquals(0, reader.getRecordCount());
+            assertFalse(reader.next());
+            reader.seek(1000);
+            assertFalse(reader.next());
+        }
+    }
+
+    private File write(float gyroStep, float accStep, float magStep) throws IOException {
+        File file = folder.newFile();
+        try (TraceArchiveWriter writer = new TraceArchiveWriter(file, CHUNK_SIZE, gyroStep, accStep, magStep)) {
+            for (int i = 0; i < RECORDS; i++) {
+                writer.record(sensors[i], timestamps[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2],
+                        accuracies[i]);
+            }
+            assertEquals(RECORDS, writer.getRecordCount());
+        }
+        return file;
+    }
+
+    /**
+     * @param halfStep 0 for an exact match
+     */
+    private void assertRecord(int i, TraceArchiveReader reader, float halfStep) {
+        assertEquals("sensor of record " + i, sensors[i], reader.getSensor());
+        assertEquals("timestamp of record " + i, timestamps[i], reader.getTimestamp());
+        assertEquals("accuracy of record " + i, accuracies[i], reader.getAccuracy());
+        assertEquals(values[i * 3], reader.getX(), tolerance(values[i * 3], halfStep));
+        assertEquals(values[i * 3 + 1], reader.getY(), tolerance(values[i * 3 + 1], halfStep));
+        assertEquals(values[i * 3 + 2], reader.getZ(), tolerance(values[i * 3 + 2], halfStep));
+    }
+
+    private static float tolerance(float value, float halfStep) {
+        // Plus float rounding of the dequantized value
+        return halfStep == 0 ? 0 : halfStep + 2 * Math.ulp(value);
+    }
+}
@@ -0,0 +1,145 @@
+package rish.crearo.sensorfusioncore.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import rish.crearo.sensorfusioncore.RotationMath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MathEquivalenceTest {
+
+    private static final int SAMPLES = 100000;
+
+    @Test
+    public void atan2MatchesMath() {
+        Random random = new Random(1);
+        for (int i = 0; i < SAMPLES; i++) {
+            float scale = (i & 1) == 0 ? 1 : 1e-3f;
+            float y = (float) random.nextGaussian() * scale;
+            float x = (float) random.nextGaussian();
+            assertEquals(Math.atan2(y, x), FastMath.atan2(y, x), FastMath.MAX_ERROR);
+            assertEquals(Math.atan2(x, y), FastMath.atan2(x, y), FastMath.MAX_ERROR);
+        }
+        float edges[] = {0f, -0f, 1f, -1f};
+        for (float y : edges) {
+            for (float x : edges) {
+                assertEquals("atan2(" + y + ", " + x + ")",
+                        (float) Math.atan2(y, x), FastMath.atan2(y, x), FastMath.MAX_ERROR);
+                assertEquals(Math.copySign(1f, (float) Math.atan2(y, x)),
+                        Math.copySign(1f, FastMath.atan2(y, x)), 0);
+            }
+        }
+    }
+
+    @Test
+    public void asinMatchesMath() {
+        for (int i = -SAMPLES; i <= SAMPLES; i++) {
+            float x = (float) i / SAMPLES;
+            assertEquals(Math.asin(x), FastMath.asin(x), FastMath.MAX_ERROR);
+        }
+        assertEquals(FastMath.HALF_PI, FastMath.asin(1.0001f), 0);
+        assertEquals(-FastMath.HALF_PI, FastMath.asin(-1.0001f), 0);
+    }
+
+    @Test
+    public void rotationMatrixMatchesReference() {
+        Random random = new Random(2);
+        float gravity[] = new float[3];
+        float field[] = new float[3];
+        float expected[] = new float[9];
+        float actual[] = new float[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomVector(random, 9.81f, gravity);
+            randomVector(random, 45f, field);
+            boolean expectedValid = RotationMath.getRotationMatrix(expected, gravity, field);
+            boolean actualValid = Mat3.fromGravityAndField(actual, gravity, field);
+            assertEquals(expectedValid, actualValid);
+            assertEquals(actualValid, Mat3.acceptsGravityAndField(gravity, field));
+            for (int k = 0; k < 9; k++) {
+                assertEquals(expected[k], actual[k], 0);
+            }
+        }
+
+        // Free fall, and a field parallel to gravity
+        assertFalse(Mat3.fromGravityAndField(actual, new float[]{0.1f, 0, 0.2f}, field));
+        assertFalse(Mat3.fromGravityAndField(actual, new float[]{0, 0, 9.81f}, new float[]{0, 0, -40}));
+        assertFalse(Mat3.acceptsGravityAndField(new float[]{0.1f, 0, 0.2f}, field));
+        assertFalse(Mat3.acceptsGravityAndField(new float[]{0, 0, 9.81f}, new float[]{0, 0, -40}));
+    }
+
+    @Test
+    public void orientationMatchesReference() {
+        Random random = new Random(3);
+        float q[] = new float[4];
+        float R[] = new float[9];
+        float expected[] = new float[3];
+        float actual[] = new float[3];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRotation(random, q, R);
+            RotationMath.getOrientation(R, expected);
+            Mat3.toOrientation(R, actual);
+            assertEquals(expected[0], actual[0], FastMath.MAX_ERROR);
+            assertEquals(expected[1], actual[1], FastMath.MAX_ERROR);
+            assertEquals(expected[2], actual[2], FastMath.MAX_ERROR);
+        }
+    }
+
+    @Test
+    public void quaternionEulerRoundTrip() {
+        Random random = new Random(4);
+        float q[] = new float[4];
+        float R[] = new float[9];
+        float pry[] = new float[3];
+        float back[] = new float[4];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRotation(random, q, R);
+            Quat.toEuler(q, pry);
+            Quat.fromEuler(pry, back);
+            // q and -q are the same rotation
+            float dot = Math.abs(q[0] * back[0] + q[1] * back[1] + q[2] * back[2] + q[3] * back[3]);
+            assertEquals(1, dot, 1e-5f);
+        }
+    }
+
+    @Test
+    public void rotationMatrixTimesTransposeIsIdentity() {
+        Random random = new Random(5);
+        float q[] = new float[4];
+        float R[] = new float[9];
+        float Rt[] = new float[9];
+        float product[] = new float[9];
+        float identity[] = new float[9];
+        float v[] = new float[3];
+        Mat3.setIdentity(identity);
+        for (int i = 0; i < 1000; i++) {
+            randomRotation(random, q, R);
+            System.arraycopy(R, 0, Rt, 0, 9);
+            Mat3.transpose(Rt);
+            Mat3.multiply(R, Rt, product);
+            for (int k = 0; k < 9; k++) {
+                assertEquals(identity[k], product[k], 1e-5f);
+            }
+            randomVector(random, 1, v);
+            float length = Vec3.length(v);
+            Mat3.multiplyVector(R, v, v);
+            assertEquals(length, Vec3.length(v), 1e-5f);
+        }
+    }
+
+    private static void randomVector(Random random, float scale, float v[]) {
+        Vec3.set(v, (float) random.nextGaussian() * scale, (float) random.nextGaussian() * scale,
+                (float) random.nextGaussian() * scale);
+    }
+
+    private static void randomRotation(Random random, float q[], float R[]) {
+        q[0] = (float) random.nextGaussian();
+        q[1] = (float) random.nextGaussian();
+        q[2] = (float) random.nextGaussian();
+        q[3] = (float) random.nextGaussian();
+        Quat.normalize(q);
+        Quat.toRotationMatrix(q, R);
+    }
+}
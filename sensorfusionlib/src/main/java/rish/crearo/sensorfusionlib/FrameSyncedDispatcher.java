@@ -0,0 +1,91 @@
+package rish.crearo.sensorfusionlib;
+
+import android.view.Choreographer;
+
+import rish.crearo.sensorfusioncore.Orientation;
+import rish.crearo.sensorfusionlib.listeners.FusionListener;
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+
+/**
+ * Hands the fused orientation to a UI listener at most once per display frame.
+ * <p>
+ * Give this to the engine (typically running on the sensor thread, see
+ * {@link SensorFusion#enableSensorThread()}) as its OrientationListener. Every sample only
+ * overwrites a pending copy; on the next vsync the latest one is delivered on the main thread
+ * and everything in between is dropped. Sensor rate and UI rate are thus independent.
+ * <p>
+ * Must be created on the main thread.
+ */
+public class FrameSyncedDispatcher implements OrientationListener, Choreographer.FrameCallback {
+
+    private final Choreographer choreographer;
+    private final FusionListener fusionListener;
+    private final OrientationListener orientationListener;
+
+    /* Written on the sensor thread, guarded by lock */
+    private final Object lock = new Object();
+    private final Orientation pending = new Orientation();
+    private long pendingTimestamp;
+    private boolean frameScheduled;
+
+    /* Main thread only */
+    private final Orientation delivered = new Orientation();
+
+    /**
+     * @param fusionListener called on the main thread with PRY (x, y, z)
+     */
+    public FrameSyncedDispatcher(FusionListener fusionListener) {
+        this(fusionListener, null);
+    }
+
+    /**
+     * @param orientationListener called on the main thread
+     */
+    public FrameSyncedDispatcher(OrientationListener orientationListener) {
+        this(null, orientationListener);
+    }
+
+    private FrameSyncedDispatcher(FusionListener fusionListener, OrientationListener orientationListener) {
+        this.choreographer = Choreographer.getInstance();
+        this.fusionListener = fusionListener;
+        this.orientationListener = orientationListener;
+    }
+
+    @Override
+    public void onOrientation(Orientation orientation, long timestamp) {
+        synchronized (lock) {
+            pending.set(orientation);
+            pendingTimestamp = timestamp;
+            if (frameScheduled) {
+                return;
+            }
+            frameScheduled = true;
+        }
+        // Choreographer is thread safe, it hops to the main looper itself
+        choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        long timestamp;
+        synchronized (lock) {
+            delivered.set(pending);
+            timestamp = pendingTimestamp;
+            frameScheduled = false;
+        }
+        if (fusionListener != null)
+            fusionListener.onFusedOrientation(delivered.getEuler(), timestamp);
+        if (orientationListener != null)
+            orientationListener.onOrientation(delivered, timestamp);
+    }
+
+    /**
+     * Drops a pending delivery, e.g. when the UI goes away.
+     */
+    public void cancel() {
+        synchronized (lock) {
+            frameScheduled = false;
+        }
+        choreographer.removeFrameCallback(this);
+    }
+}
@@ -0,0 +1,28 @@
+package rish.crearo.sensorfusionlib;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a Looper, for subscribing to an OrientationStream from a thread with one,
+ * typically the main thread.
+ */
+public class HandlerExecutor implements Executor {
+
+    private final Handler handler;
+
+    public HandlerExecutor(Looper looper) {
+        handler = new Handler(looper);
+    }
+
+    public static HandlerExecutor mainThread() {
+        return new HandlerExecutor(Looper.getMainLooper());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+}
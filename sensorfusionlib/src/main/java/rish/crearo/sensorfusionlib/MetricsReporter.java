@@ -0,0 +1,60 @@
+package rish.crearo.sensorfusionlib;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import rish.crearo.sensorfusioncore.FusionMetrics;
+
+/**
+ * Takes a snapshot of {@link FusionMetrics} every period and starts the histograms over, so
+ * each report covers one period. Reports go to a listener, or to logcat without one.
+ * Runs on the main thread; the snapshot is the only allocation, once per period.
+ */
+public class MetricsReporter {
+
+    private static final String TAG = MetricsReporter.class.getSimpleName();
+
+    public interface Listener {
+        void onMetrics(FusionMetrics.Snapshot snapshot);
+    }
+
+    private final FusionMetrics metrics;
+    private final long periodMs;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean running;
+
+    private final Runnable report = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            FusionMetrics.Snapshot snapshot = metrics.snapshot(true);
+            if (listener != null) listener.onMetrics(snapshot);
+            else Log.i(TAG, snapshot.toString());
+            handler.postDelayed(this, periodMs);
+        }
+    };
+
+    /**
+     * @param listener null to log instead
+     */
+    public MetricsReporter(FusionMetrics metrics, long periodMs, Listener listener) {
+        this.metrics = metrics;
+        this.periodMs = periodMs;
+        this.listener = listener;
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+        // Whatever piled up before start is not part of the first period
+        metrics.snapshot(true);
+        handler.postDelayed(report, periodMs);
+    }
+
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(report);
+    }
+}
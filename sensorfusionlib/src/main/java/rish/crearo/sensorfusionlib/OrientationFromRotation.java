@@ -1,24 +1,44 @@
 package rish.crearo.sensorfusionlib;
 
 import android.app.Activity;
-import android.hardware.SensorManager;
-import android.view.Surface;
-import android.view.WindowManager;
-
-import rish.crearo.sensorfusionlib.listeners.RotationListener;
-
-public class OrientationFromRotation implements RotationListener {
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.view.Display;
+
+import rish.crearo.sensorfusioncore.FusionMetrics;
+import rish.crearo.sensorfusioncore.OrientationPredictor;
+import rish.crearo.sensorfusioncore.PanelOrientationTracker;
+import rish.crearo.sensorfusioncore.math.Quat;
+import rish.crearo.sensorfusionlib.listeners.PanelOrientationListener;
+
+/**
+ * Azimuth/pitch/roll of the activity's display, from acc/mag rotation matrices.
+ * <p>
+ * Nothing is allocated or looked up per sensor event: the display rotation is cached and
+ * refreshed by a DisplayListener, and the axis remap for it comes from precomputed tables,
+ * see {@link PanelOrientationTracker}.
+ * <p>
+ * With {@link #setPredictor} the orientation can also be asked for at a later time, e.g. when
+ * the frame being drawn will be on screen, see {@link #getPredictedOrientation}.
+ */
+public class OrientationFromRotation implements DisplayManager.DisplayListener {
 
     private static final String TAG = OrientationFromRotation.class.getSimpleName();
-    private final WindowManager windowManager;
+    private final Display display;
+    private final DisplayManager displayManager;
     private final RotationSensor rotationSensor;
-    private float[] adjustedRotationMatrix = new float[9];
+    private final PanelOrientationTracker tracker = new PanelOrientationTracker();
 
     private Listener listener;
+    private OrientationPredictor predictor;
+    /* getPredictedOrientation scratch */
+    private final float predicted[] = new float[4];
+    private final float predictedMatrix[] = new float[9];
 
     public OrientationFromRotation(Activity activity) {
-        windowManager = activity.getWindow().getWindowManager();
-        rotationSensor = new RotationSensor(activity.getApplicationContext(), this);
+        display = activity.getWindow().getWindowManager().getDefaultDisplay();
+        displayManager = (DisplayManager) activity.getSystemService(Context.DISPLAY_SERVICE);
+        rotationSensor = new RotationSensor(activity.getApplicationContext(), tracker);
     }
 
     public void startListening(Listener listener) {
@@ -26,65 +46,71 @@ public class OrientationFromRotation implements RotationListener {
             return;
         }
         this.listener = listener;
+        tracker.setDisplayRotation(display.getRotation());
+        tracker.setListener(listener);
+        displayManager.registerDisplayListener(this, null);
         rotationSensor.start();
     }
 
+    /**
+     * Records per stage timings of the rotation sensor into metrics, see
+     * {@link RotationSensor#setMetrics}. Pass null to stop.
+     */
+    public void setMetrics(FusionMetrics metrics) {
+        rotationSensor.setMetrics(metrics);
+    }
+
+    /**
+     * Pass null to stop predicting.
+     */
+    public void setPredictor(OrientationPredictor predictor) {
+        this.predictor = predictor;
+        rotationSensor.setPredictor(predictor);
+    }
+
+    /**
+     * Azimuth/pitch/roll as the listener gets them, extrapolated to frameTimeNanos. Call from
+     * one thread, normally the UI thread.
+     *
+     * @param frameTimeNanos System.nanoTime based, e.g. a Choreographer frame time plus the
+     *                       display latency
+     * @param out            receives azimuth, pitch, roll
+     * @return false without a predictor or before the first rotation matrix
+     */
+    public boolean getPredictedOrientation(long frameTimeNanos, float out[]) {
+        final OrientationPredictor predictor = this.predictor;
+        if (predictor == null || !predictor.predict(SensorClock.fromNanoTime(frameTimeNanos), predicted)) {
+            return false;
+        }
+        Quat.toRotationMatrix(predicted, predictedMatrix);
+        tracker.getOrientation(predictedMatrix, out);
+        return true;
+    }
+
     public void stopListening() {
         rotationSensor.stop();
+        displayManager.unregisterDisplayListener(this);
+        tracker.setListener(null);
         listener = null;
     }
 
-    @SuppressWarnings("SuspiciousNameCombination")
-    private void updateOrientation(float[] rotationMatrix) {
-        final int worldAxisForDeviceAxisX;
-        final int worldAxisForDeviceAxisY;
-
-        // Remap the axes as if the device screen was the instrument panel,
-        // and adjust the rotation matrix for the device orientation.
-        switch (windowManager.getDefaultDisplay().getRotation()) {
-            case Surface.ROTATION_0:
-            default:
-                worldAxisForDeviceAxisX = SensorManager.AXIS_X;
-                worldAxisForDeviceAxisY = SensorManager.AXIS_Z;
-                break;
-            case Surface.ROTATION_90:
-                worldAxisForDeviceAxisX = SensorManager.AXIS_Z;
-                worldAxisForDeviceAxisY = SensorManager.AXIS_MINUS_X;
-                break;
-            case Surface.ROTATION_180:
-                worldAxisForDeviceAxisX = SensorManager.AXIS_MINUS_X;
-                worldAxisForDeviceAxisY = SensorManager.AXIS_MINUS_Z;
-                break;
-            case Surface.ROTATION_270:
-                worldAxisForDeviceAxisX = SensorManager.AXIS_MINUS_Z;
-                worldAxisForDeviceAxisY = SensorManager.AXIS_X;
-                break;
+    @Override
+    public void onDisplayChanged(int displayId) {
+        if (displayId == display.getDisplayId()) {
+            tracker.setDisplayRotation(display.getRotation());
         }
+    }
 
-        SensorManager.remapCoordinateSystem(rotationMatrix, worldAxisForDeviceAxisX,
-                worldAxisForDeviceAxisY, adjustedRotationMatrix);
-
-        // Transform rotation matrix into azimuth/pitch/roll
-        float[] orientation = new float[3];
-        SensorManager.getOrientation(adjustedRotationMatrix, orientation);
-
-        // Convert radians to degrees
-        float pitch = orientation[1] * -57;
-        float roll = orientation[2] * -57;
-        float azimuth = orientation[0] * -57;
+    @Override
+    public void onDisplayAdded(int displayId) {
 
-        listener.onOrientationChanged(azimuth, pitch, roll);
     }
 
     @Override
-    public void onRotationMatrix(float[] rotationMatrix, float timestamp) {
-        if (listener == null) {
-            return;
-        }
-        updateOrientation(rotationMatrix);
+    public void onDisplayRemoved(int displayId) {
+
     }
 
-    public interface Listener {
-        void onOrientationChanged(float azimuth, float pitch, float roll);
+    public interface Listener extends PanelOrientationListener {
     }
 }
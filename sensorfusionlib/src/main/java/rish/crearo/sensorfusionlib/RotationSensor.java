@@ -5,12 +5,27 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import rish.crearo.sensorfusioncore.AccMagSynchronizer;
+import rish.crearo.sensorfusioncore.FusionEngine;
+import rish.crearo.sensorfusioncore.FusionHealth;
+import rish.crearo.sensorfusioncore.FusionMetrics;
+import rish.crearo.sensorfusioncore.MotionClassifier;
+import rish.crearo.sensorfusioncore.MotionState;
+import rish.crearo.sensorfusioncore.OrientationPredictor;
+import rish.crearo.sensorfusioncore.OrientationStream;
+import rish.crearo.sensorfusioncore.TraceRecorder;
+import rish.crearo.sensorfusioncore.math.Mat3;
+import rish.crearo.sensorfusioncore.math.Quat;
 import rish.crearo.sensorfusionlib.listeners.RotationListener;
 
 /**
- * All this does is gives you the rotation matrix as obtained from
- * {@link android.hardware.SensorManager#getRotationMatrix(float[], float[], float[], float[])}//
+ * All this does is gives you the acc/mag rotation matrix, the one
+ * {@link android.hardware.SensorManager#getRotationMatrix(float[], float[], float[], float[])}
+ * returns, computed with {@link Mat3#fromGravityAndField(float[], float[], float[])}.
  */
 public class RotationSensor implements SensorEventListener {
 
@@ -25,7 +40,70 @@ public class RotationSensor implements SensorEventListener {
     private float[] accData = new float[3];
     private float[] accMagRotationMatrix = new float[9];
 
+    /* Looper events are delivered on, null for the main one */
+    private final Handler sensorHandler;
+
+    /* Batching mode, see startBatched */
+    private final Handler batchHandler;
+    private final Runnable processBatch = new Runnable() {
+        @Override
+        public void run() {
+            processBatch();
+        }
+    };
+    /* Set by the caller of start, read on the sensor thread */
+    private volatile boolean batching;
+    private long batchAccTimestamp = -1;
+
+    private TraceRecorder traceRecorder;
+    private FusionMetrics metrics;
+    private FusionHealth health;
+    private OrientationPredictor predictor;
+    private OrientationStream stream;
+    private final float quaternion[] = new float[4];
+    private AccMagSynchronizer synchronizer;
+    private boolean synchronizerPending;
+    private int maxReportLatencyUs;
+
+    /* Adaptive rate, see setAdaptiveRate */
+    private MotionClassifier motionClassifier;
+    private final int statePeriodsUs[] = new int[MotionState.values().length];
+    private int samplingPeriodUs = SensorManager.SENSOR_DELAY_FASTEST;
+    private boolean started;
+    /* Guards started, samplingPeriodUs and (un)registering, see SensorFusion */
+    private final Object registrationLock = new Object();
+    private final Runnable resetMotionClassifier = new Runnable() {
+        @Override
+        public void run() {
+            motionClassifier.reset();
+        }
+    };
+    private final Runnable applyRate = new Runnable() {
+        @Override
+        public void run() {
+            applyRate();
+        }
+    };
+    private final Runnable resetState = new Runnable() {
+        @Override
+        public void run() {
+            batchAccTimestamp = -1;
+            synchronizerPending = false;
+            if (synchronizer != null) synchronizer.reset();
+        }
+    };
+
     public RotationSensor(Context context, RotationListener rotationListener) {
+        this(context, rotationListener, null);
+    }
+
+    /**
+     * @param sensorHandler events are processed, and the listener called, on this handler's
+     *                      thread; null for the main thread
+     */
+    public RotationSensor(Context context, RotationListener rotationListener, Handler sensorHandler) {
+        this.sensorHandler = sensorHandler;
+        this.batchHandler = sensorHandler != null ? sensorHandler : new Handler(Looper.getMainLooper());
         this.context = context;
         this.rotationListener = rotationListener;
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
@@ -33,32 +111,240 @@ public class RotationSensor implements SensorEventListener {
         sensorMag = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
     }
 
+    /**
+     * Records every raw event to recorder; null to stop. Use a recorder of its own, not the one
+     * of a SensorFusion, as the two may run on different threads.
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        this.traceRecorder = recorder;
+    }
+
+    /**
+     * Computes the rotation matrix once per synchronizer tick, from acc/mag values interpolated
+     * to that tick, instead of on every accelerometer event with the last magnetometer value.
+     * Pass null to go back to that. Call while stopped.
+     */
+    public void setAccMagSynchronizer(AccMagSynchronizer synchronizer) {
+        this.synchronizer = synchronizer;
+        if (synchronizer != null) synchronizer.reset();
+    }
+
+    /**
+     * Slows the sensors down while the device is still, judged from the accelerometer alone,
+     * see {@link SensorFusion#setAdaptiveRate}. Pass null to always use FASTEST. Call while stopped.
+     */
+    public void setAdaptiveRate(MotionClassifier classifier, int stationaryPeriodUs, int lowMotionPeriodUs) {
+        motionClassifier = classifier;
+        statePeriodsUs[MotionState.STATIONARY.ordinal()] = stationaryPeriodUs;
+        statePeriodsUs[MotionState.LOW_MOTION.ordinal()] = lowMotionPeriodUs;
+        statePeriodsUs[MotionState.MOVING.ordinal()] = SensorManager.SENSOR_DELAY_FASTEST;
+    }
+
+    /**
+     * @return state and time spent per state of the classifier given to setAdaptiveRate, null
+     * without one. Any thread; the classifier itself belongs to the event thread.
+     */
+    public MotionClassifier.Snapshot getMotionSnapshot() {
+        final MotionClassifier classifier = motionClassifier;
+        return classifier != null ? classifier.snapshot() : null;
+    }
+
+    /**
+     * Records how late events arrive (STAGE_DELIVERY), the rotation matrix computation
+     * (STAGE_FUSION) and the listener call (STAGE_DISPATCH) into metrics. Pass null to stop.
+     */
+    public void setMetrics(FusionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Counts acc/mag delivery statistics, failed rotation matrices (as rejected
+     * accelerometer samples) and accuracy changes into health. Pass null to stop.
+     */
+    public void setHealth(FusionHealth health) {
+        this.health = health;
+    }
+
+    /**
+     * Feeds every valid rotation matrix, as a quaternion, to predictor, which then derives the
+     * angular velocity from consecutive ones. Pass null to stop.
+     */
+    public void setPredictor(OrientationPredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * Publishes every valid rotation matrix, as a quaternion, to stream. Subscribers get an
+     * immutable snapshot instead of the matrix the listener gets, which is overwritten by the
+     * next sample. Pass null to stop.
+     */
+    public void setStream(OrientationStream stream) {
+        this.stream = stream;
+    }
+
     public void start() {
-        sensorManager.registerListener(this, sensorAcc, SensorManager.SENSOR_DELAY_FASTEST);
-        sensorManager.registerListener(this, sensorMag, SensorManager.SENSOR_DELAY_FASTEST);
+        startSensors(false, 0);
+    }
+
+    /**
+     * Lets the sensor hub buffer samples for up to maxReportLatencyUs. Each delivered burst only
+     * yields one rotation matrix, from the last accelerometer sample in it, since the
+     * listener would only ever see the last one anyway.
+     */
+    public void startBatched(int maxReportLatencyUs) {
+        startSensors(true, maxReportLatencyUs);
+    }
+
+    private void startSensors(boolean batching, int maxReportLatencyUs) {
+        this.batching = batching;
+        // Behind events of the last run still queued, before the first event of this one
+        if (motionClassifier != null) runOnEventThread(resetMotionClassifier);
+        synchronized (registrationLock) {
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            samplingPeriodUs = SensorManager.SENSOR_DELAY_FASTEST;
+            started = true;
+            registerSensors();
+        }
+    }
+
+    private void registerSensors() {
+        sensorManager.registerListener(this, sensorAcc, samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+        sensorManager.registerListener(this, sensorMag, samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+    }
+
+    private void applyRate() {
+        if (motionClassifier == null) return;
+        int periodUs = statePeriodsUs[motionClassifier.getState().ordinal()];
+        synchronized (registrationLock) {
+            if (!started || periodUs == samplingPeriodUs) return;
+            samplingPeriodUs = periodUs;
+            sensorManager.unregisterListener(this);
+            registerSensors();
+        }
     }
 
     public void stop() {
-        sensorManager.unregisterListener(this);
+        synchronized (registrationLock) {
+            started = false;
+            sensorManager.unregisterListener(this);
+        }
+        batchHandler.removeCallbacks(applyRate);
+        batchHandler.removeCallbacks(processBatch);
+        // Events already queued may still be using the synchronizer
+        runOnEventThread(resetState);
+    }
+
+    private void runOnEventThread(Runnable runnable) {
+        if (sensorHandler != null) sensorHandler.post(runnable);
+        else runnable.run();
     }
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (event.sensor.getType() == sensorMag.getType()) {
+        if (metrics != null)
+            metrics.record(FusionMetrics.STAGE_DELIVERY, SystemClock.elapsedRealtimeNanos() - event.timestamp);
+        // Every delivered event, batched or not; the matrix is only computed for some of them
+        if (health != null) health.get(sensorId(event.sensor)).onEvent(event.timestamp);
+        if (traceRecorder != null) {
+            final float values[] = event.values;
+            traceRecorder.record(sensorId(event.sensor), event.timestamp,
+                    values[0], values[1], values[2], event.accuracy);
+        }
+        if (motionClassifier != null && event.sensor.getType() == sensorAcc.getType()) {
+            final float values[] = event.values;
+            if (motionClassifier.onAccelerometer(event.timestamp, values[0], values[1], values[2])) {
+                batchHandler.removeCallbacks(applyRate);
+                batchHandler.post(applyRate);
+            }
+        }
+        if (synchronizer != null) {
+            addToSynchronizer(event);
+        } else if (event.sensor.getType() == sensorMag.getType()) {
             System.arraycopy(event.values, 0, magData, 0, event.values.length);
         } else if (event.sensor.getType() == sensorAcc.getType()) {
             System.arraycopy(event.values, 0, accData, 0, event.values.length);
-            calculateRotationMatrix(event.timestamp);
+            if (!batching) {
+                calculateRotationMatrix(event.timestamp);
+            } else {
+                // The whole burst is delivered from one looper message, so this runs after it
+                if (batchAccTimestamp == -1) batchHandler.post(processBatch);
+                batchAccTimestamp = event.timestamp;
+            }
         }
     }
 
+    private void addToSynchronizer(SensorEvent event) {
+        final float values[] = event.values;
+        if (event.sensor.getType() == sensorMag.getType())
+            synchronizer.addMagnetometer(event.timestamp, values[0], values[1], values[2]);
+        else
+            synchronizer.addAccelerometer(event.timestamp, values[0], values[1], values[2]);
+
+        if (!batching) {
+            while (synchronizer.next()) {
+                copySynchronized();
+                calculateRotationMatrix(synchronizer.getTimestamp());
+            }
+        } else if (!synchronizerPending) {
+            synchronizerPending = true;
+            batchHandler.post(processBatch);
+        }
+    }
+
+    private void copySynchronized() {
+        System.arraycopy(synchronizer.getAccelerometer(), 0, accData, 0, 3);
+        System.arraycopy(synchronizer.getMagnetometer(), 0, magData, 0, 3);
+    }
+
+    private void processBatch() {
+        if (synchronizer != null) {
+            // Only the last tick of the burst is worth a rotation matrix
+            synchronizerPending = false;
+            boolean ticked = false;
+            while (synchronizer.next()) {
+                ticked = true;
+            }
+            if (ticked) {
+                copySynchronized();
+                calculateRotationMatrix(synchronizer.getTimestamp());
+            }
+            return;
+        }
+        if (batchAccTimestamp == -1) return;
+        long timestamp = batchAccTimestamp;
+        batchAccTimestamp = -1;
+        calculateRotationMatrix(timestamp);
+    }
+
     private void calculateRotationMatrix(long timestamp) {
-        SensorManager.getRotationMatrix(accMagRotationMatrix, null, accData, magData);
+        final FusionMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean valid = Mat3.fromGravityAndField(accMagRotationMatrix, accData, magData);
+        if (!valid && health != null)
+            health.get(FusionEngine.SENSOR_ACCELEROMETER).onRejected();
+        if (valid && (predictor != null || stream != null)) {
+            Quat.fromRotationMatrix(accMagRotationMatrix, quaternion);
+            Quat.normalize(quaternion);
+            if (predictor != null) predictor.record(timestamp, quaternion);
+            if (stream != null) stream.publish(timestamp, quaternion);
+        }
+        if (metrics != null) {
+            long computed = System.nanoTime();
+            metrics.record(FusionMetrics.STAGE_FUSION, computed - start);
+            start = computed;
+        }
         rotationListener.onRotationMatrix(accMagRotationMatrix, timestamp);
+        if (metrics != null)
+            metrics.record(FusionMetrics.STAGE_DISPATCH, System.nanoTime() - start);
+    }
+
+    private int sensorId(Sensor sensor) {
+        return sensor.getType() == sensorMag.getType()
+                ? FusionEngine.SENSOR_MAGNETOMETER : FusionEngine.SENSOR_ACCELEROMETER;
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
-
+        if (health != null) health.onAccuracyChanged(sensorId(sensor), accuracy);
     }
 }
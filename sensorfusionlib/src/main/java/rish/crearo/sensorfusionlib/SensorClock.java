@@ -0,0 +1,22 @@
+package rish.crearo.sensorfusionlib;
+
+import android.os.SystemClock;
+
+/**
+ * Sensor event timestamps count from boot including deep sleep (elapsedRealtimeNanos), while
+ * System.nanoTime, and so Choreographer frame times, stop during deep sleep. Converts between
+ * the two, for asking an OrientationPredictor about a frame time.
+ */
+public final class SensorClock {
+
+    private SensorClock() {
+    }
+
+    /**
+     * @param nanoTime a System.nanoTime based time, e.g. Choreographer.FrameCallback's frameTimeNanos
+     * @return the same instant in sensor timestamp time
+     */
+    public static long fromNanoTime(long nanoTime) {
+        return nanoTime + (SystemClock.elapsedRealtimeNanos() - System.nanoTime());
+    }
+}
@@ -1,16 +1,40 @@
 package rish.crearo.sensorfusionlib;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
+import rish.crearo.sensorfusioncore.FusionEngine;
+import rish.crearo.sensorfusioncore.FusionHealth;
+import rish.crearo.sensorfusioncore.FusionMetrics;
+import rish.crearo.sensorfusioncore.FusionSnapshot;
+import rish.crearo.sensorfusioncore.MotionClassifier;
+import rish.crearo.sensorfusioncore.MotionState;
+import rish.crearo.sensorfusioncore.OrientationPredictor;
+import rish.crearo.sensorfusioncore.OrientationStream;
+import rish.crearo.sensorfusioncore.SampleBatch;
+import rish.crearo.sensorfusioncore.TraceRecorder;
 import rish.crearo.sensorfusionlib.listeners.FusionListener;
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
 import rish.crearo.sensorfusionlib.listeners.VerboseFusionListener;
 
 /**
+ * Android adapter around {@link FusionEngine}: registers the gyroscope, accelerometer and
+ * magnetometer with SensorManager and forwards every event to the engine.
+ * <p>
+ * Events, and so all fusion work and listener calls, arrive on the main thread unless
+ * {@link #enableSensorThread()} moves them to a thread of their own.
+ * <p>
  * Created by rish on 10/7/17.
  *
  * @author : bhardwaj.rish@gmail.com
@@ -19,56 +43,99 @@ import rish.crearo.sensorfusionlib.listeners.VerboseFusionListener;
 public class SensorFusion implements SensorEventListener {
 
     private static final String TAG = SensorFusion.class.getSimpleName();
-    /* Nanoseconds to seconds */
-    private static final float NS2S = 1.0f / 1000000000.0f;
     private SensorManager sensorManager;
     private Sensor sensorGyro, sensorAcc, sensorMag;
-    private long prevGyroTimestamp = 0;
 
-    /**
-     * This is the absolute difference in sensor values from the previously recorded reading.
-     * For gyroscope, it is simply the integration of angular velocity (angVel * dT)
-     * For acc/mag, it is the difference in orientation angles (YPR) obtained using
-     * SensorManager.getOrientation(rotationMatrix) between current and prev orientations
-     **/
-    private float gyroDiff[] = new float[3];
-    private float accMagDiff[] = new float[3];
+    private final FusionEngine engine;
 
-    /**
-     * Using these to clone values received from SensorEventListener callback
-     */
-    private float accData[], magData[];
+    /* Looper sensor events are delivered on; sensorHandler is null while that is the main one */
+    private HandlerThread sensorThread;
+    private Handler sensorHandler;
+    private Handler eventHandler = new Handler(Looper.getMainLooper());
 
-    /**
-     * Stores YPR(in that order) of the fused magnetometer and accelerometer obtained by calling
-     * SensorManager.getRotationMatrix(acc, mag), and then passing the rotation matrix received to
-     * SensorManager.getOrientation(rot).
-     */
-    private float accMagPrevOrientation[];
-    private float accMagOrientation[] = new float[3];
+    /* Batching mode, see startBatched */
+    private static final int BATCH_CAPACITY = 1024;
+    private final Runnable processBatch = new Runnable() {
+        @Override
+        public void run() {
+            processBatch();
+        }
+    };
+    private SampleBatch batch;
+    /* Set by the caller of start, read on the event thread */
+    private volatile boolean batching;
+    private int maxReportLatencyUs;
 
-    /* temp variable storing rotation matrix */
-    private float accMagRotationMatrix[] = new float[16];
+    /* Adaptive rate, see setAdaptiveRate */
+    private MotionClassifier motionClassifier;
+    private final int statePeriodsUs[] = new int[MotionState.values().length];
+    private int samplingPeriodUs = SensorManager.SENSOR_DELAY_FASTEST;
+    private boolean started;
+    /* Guards started, samplingPeriodUs and (un)registering: applyRate runs on the event thread,
+     * and must not register the sensors again once stop has unregistered them */
+    private final Object registrationLock = new Object();
+    private final Runnable resetMotionClassifier = new Runnable() {
+        @Override
+        public void run() {
+            motionClassifier.reset();
+        }
+    };
+    private final Runnable applyRate = new Runnable() {
+        @Override
+        public void run() {
+            applyRate();
+        }
+    };
+
+    private TraceRecorder traceRecorder;
+    private FusionMetrics metrics;
+    private FusionHealth health;
 
-    /* pitch, roll, yaw (x, y, z) */
-    private float accMagTrajectory[] = new float[3];
-    private float gyroTrajectoryCorrected[] = new float[3];
-    private float gyroTrajectoryRaw[] = new float[3];
-    private float fusedTrajectory[] = new float[3];
+    /* Warm start, see setWarmStart */
+    private SharedPreferences warmStartPreferences;
+    private String warmStartKey;
+    private final Runnable saveState = new Runnable() {
+        @Override
+        public void run() {
+            saveState();
+        }
+    };
+    private final Runnable restoreState = new Runnable() {
+        @Override
+        public void run() {
+            restoreState();
+        }
+    };
 
-    private VerboseFusionListener verboseFusionListener;
-    private FusionListener fusionListener;
-    private float alpha = 0.995f;
-    private float oneMinusAlpha = 1.0f - alpha;
+    private final Runnable resetEngine = new Runnable() {
+        @Override
+        public void run() {
+            engine.reset();
+            if (warmStartPreferences != null) warmStartPreferences.edit().remove(warmStartKey).apply();
+        }
+    };
 
     public SensorFusion(Context context, VerboseFusionListener verboseFusionListener) {
         initSensors(context);
-        this.verboseFusionListener = verboseFusionListener;
+        engine = new FusionEngine(verboseFusionListener);
     }
 
     public SensorFusion(Context context, FusionListener fusionListener) {
         initSensors(context);
-        this.fusionListener = fusionListener;
+        engine = new FusionEngine(fusionListener);
+    }
+
+    public SensorFusion(Context context, OrientationListener orientationListener) {
+        initSensors(context);
+        engine = new FusionEngine(orientationListener);
+    }
+
+    /**
+     * For anything beyond the defaults, e.g. a different {@link rish.crearo.sensorfusioncore.FusionAlgorithm}.
+     */
+    public SensorFusion(Context context, FusionEngine engine) {
+        initSensors(context);
+        this.engine = engine;
     }
 
     private void initSensors(Context context) {
@@ -78,114 +145,287 @@ public class SensorFusion implements SensorEventListener {
         sensorMag = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
     }
 
+    /**
+     * Processes sensor events on a library owned thread instead of the main thread, so fusion
+     * never competes with UI work. Listeners are then called on that thread too; wrap UI
+     * listeners in a {@link FrameSyncedDispatcher}. Call before {@link #start()}, and
+     * {@link #release()} when done.
+     */
+    public void enableSensorThread() {
+        if (sensorThread != null) {
+            return;
+        }
+        sensorThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+        eventHandler = sensorHandler;
+    }
+
+    /**
+     * Stops listening and lets the sensor thread, if any, finish.
+     */
+    public void release() {
+        stop();
+        if (sensorThread != null) {
+            sensorThread.quitSafely();
+            sensorThread = null;
+            sensorHandler = null;
+            eventHandler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    /**
+     * Records every raw event to recorder before it is processed; null to stop. Called on the
+     * thread events arrive on, so the recorder must not be shared with another source.
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        this.traceRecorder = recorder;
+    }
+
+    /**
+     * Slows the sensors down while the device is still: classifier watches the gyro and
+     * accelerometer, and sensors are registered again at the period for its state, FASTEST
+     * while MOVING. The engine keeps its state across the switch. Pass null to always use
+     * FASTEST. Call while stopped.
+     *
+     * @param stationaryPeriodUs sampling period while STATIONARY, e.g. SENSOR_DELAY_NORMAL
+     * @param lowMotionPeriodUs  sampling period while LOW_MOTION, e.g. SENSOR_DELAY_GAME
+     */
+    public void setAdaptiveRate(MotionClassifier classifier, int stationaryPeriodUs, int lowMotionPeriodUs) {
+        motionClassifier = classifier;
+        statePeriodsUs[MotionState.STATIONARY.ordinal()] = stationaryPeriodUs;
+        statePeriodsUs[MotionState.LOW_MOTION.ordinal()] = lowMotionPeriodUs;
+        statePeriodsUs[MotionState.MOVING.ordinal()] = SensorManager.SENSOR_DELAY_FASTEST;
+    }
+
+    /**
+     * @return state and time spent per state of the classifier given to setAdaptiveRate, null
+     * without one. Any thread; the classifier itself belongs to the event thread.
+     */
+    public MotionClassifier.Snapshot getMotionSnapshot() {
+        final MotionClassifier classifier = motionClassifier;
+        return classifier != null ? classifier.snapshot() : null;
+    }
+
+    /**
+     * Records how late events arrive (STAGE_DELIVERY), and through the engine the fusion and
+     * dispatch times, into metrics. Pass null to stop.
+     */
+    public void setMetrics(FusionMetrics metrics) {
+        this.metrics = metrics;
+        engine.setMetrics(metrics);
+    }
+
+    /**
+     * Counts per sensor delivery statistics, rejected samples and accuracy changes into
+     * health. Pass null to stop.
+     */
+    public void setHealth(FusionHealth health) {
+        this.health = health;
+        engine.setHealth(health);
+    }
+
+    /**
+     * Lets predictor extrapolate the fused orientation, e.g. to the next frame with
+     * {@link SensorClock#fromNanoTime} applied to Choreographer's frame time. Pass null to stop.
+     */
+    public void setPredictor(OrientationPredictor predictor) {
+        engine.setPredictor(predictor);
+    }
+
+    /**
+     * Publishes the fused orientation to stream, for subscribers that want it on their own
+     * thread and at their own pace, e.g. through a {@link HandlerExecutor}. Pass null to stop.
+     */
+    public void setStream(OrientationStream stream) {
+        engine.setStream(stream);
+    }
+
+    /**
+     * Saves the engine's state to preferences under key when sensors stop, and restores it
+     * when they start again, even in a new process, so the output is usable from the first
+     * samples instead of after seconds of convergence. See {@link FusionEngine#restore} for
+     * when a saved state is too old to use. {@link #reset()} discards it. Needs a
+     * {@link rish.crearo.sensorfusioncore.RestorableAlgorithm}, as all the library's are.
+     * Call while stopped; pass null to stop saving.
+     */
+    public void setWarmStart(SharedPreferences preferences, String key) {
+        warmStartPreferences = preferences;
+        warmStartKey = key;
+    }
+
     public void start() {
-        sensorManager.registerListener(this, sensorGyro, SensorManager.SENSOR_DELAY_FASTEST);
-        sensorManager.registerListener(this, sensorAcc, SensorManager.SENSOR_DELAY_FASTEST);
-        sensorManager.registerListener(this, sensorMag, SensorManager.SENSOR_DELAY_FASTEST);
+        startSensors(false, 0);
+    }
+
+    /**
+     * Lets the sensor hub buffer samples in its FIFO for up to maxReportLatencyUs before waking
+     * the application processor. Each delivered burst is collected and run through the engine
+     * in one go, so listeners hear about it once per burst rather than once per sample.
+     * Sensors without a FIFO fall back to continuous delivery, still processed in bursts.
+     */
+    public void startBatched(int maxReportLatencyUs) {
+        if (batch == null) batch = new SampleBatch(BATCH_CAPACITY);
+        startSensors(true, maxReportLatencyUs);
+    }
+
+    private void startSensors(boolean batching, int maxReportLatencyUs) {
+        this.batching = batching;
+        // Behind events of the last run still queued, before the first event of this one
+        if (motionClassifier != null) runOnEventThread(resetMotionClassifier);
+        // Before the first event, which is queued behind it on the event thread
+        if (warmStartPreferences != null) runOnEventThread(restoreState);
+        synchronized (registrationLock) {
+            this.maxReportLatencyUs = maxReportLatencyUs;
+            samplingPeriodUs = SensorManager.SENSOR_DELAY_FASTEST;
+            started = true;
+            registerSensors();
+        }
+    }
+
+    private void registerSensors() {
+        sensorManager.registerListener(this, sensorGyro, samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+        sensorManager.registerListener(this, sensorAcc, samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+        sensorManager.registerListener(this, sensorMag, samplingPeriodUs, maxReportLatencyUs, sensorHandler);
+    }
+
+    /**
+     * Registers the sensors again if the motion state calls for another rate. Runs on the event
+     * thread, after the event that changed the state; holds registrationLock so a concurrent
+     * stop either comes first, and this does nothing, or unregisters what this registers.
+     */
+    private void applyRate() {
+        if (motionClassifier == null) return;
+        int periodUs = statePeriodsUs[motionClassifier.getState().ordinal()];
+        synchronized (registrationLock) {
+            if (!started || periodUs == samplingPeriodUs) return;
+            samplingPeriodUs = periodUs;
+            sensorManager.unregisterListener(this);
+            registerSensors();
+        }
     }
 
     public void stop() {
-        sensorManager.unregisterListener(this);
+        final boolean wasStarted;
+        synchronized (registrationLock) {
+            wasStarted = started;
+            started = false;
+            sensorManager.unregisterListener(this);
+        }
+        eventHandler.removeCallbacks(applyRate);
+        if (batching) {
+            // Flush what is left of the current burst, on the thread that owns it
+            eventHandler.removeCallbacks(processBatch);
+            runOnEventThread(processBatch);
+        }
+        if (wasStarted && warmStartPreferences != null) runOnEventThread(saveState);
+    }
+
+    private void saveState() {
+        FusionSnapshot snapshot = engine.snapshot(System.currentTimeMillis());
+        if (snapshot == null) return;
+        warmStartPreferences.edit()
+                .putString(warmStartKey, Base64.encodeToString(snapshot.toByteArray(), Base64.NO_WRAP))
+                .apply();
+    }
+
+    private void restoreState() {
+        FusionSnapshot snapshot = null;
+        String saved = warmStartPreferences.getString(warmStartKey, null);
+        if (saved != null) {
+            try {
+                snapshot = FusionSnapshot.fromByteArray(Base64.decode(saved, Base64.NO_WRAP));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Discarding unreadable saved state", e);
+            }
+        }
+        engine.restore(snapshot, System.currentTimeMillis());
     }
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        if (metrics != null)
+            metrics.record(FusionMetrics.STAGE_DELIVERY, SystemClock.elapsedRealtimeNanos() - event.timestamp);
+        if (traceRecorder != null || motionClassifier != null) {
+            final float values[] = event.values;
+            final int sensor = sensorId(event.sensor.getType());
+            if (traceRecorder != null)
+                traceRecorder.record(sensor, event.timestamp, values[0], values[1], values[2], event.accuracy);
+            if (motionClassifier != null) classifyMotion(sensor, event.timestamp, values);
+        }
+        if (batching) {
+            addToBatch(event);
+            return;
+        }
+        final float values[] = event.values;
         if (event.sensor.getType() == sensorGyro.getType()) {
-            calculateRawGyroOrientation(event.values, event.timestamp);
-            if (verboseFusionListener != null)
-                verboseFusionListener.onGyroOrientation(gyroTrajectoryRaw, event.timestamp);
-            calculateFusedOrientation();
-            if (verboseFusionListener != null)
-                verboseFusionListener.onFusedOrientation(fusedTrajectory, event.timestamp);
-            if (fusionListener != null)
-                fusionListener.onFusedOrientation(fusedTrajectory, event.timestamp);
+            engine.onGyro(event.timestamp, values[0], values[1], values[2]);
         } else if (event.sensor.getType() == sensorMag.getType()) {
-            if (magData == null) magData = new float[3];
-            System.arraycopy(event.values, 0, magData, 0, event.values.length);
+            engine.onMagnetometer(event.timestamp, values[0], values[1], values[2]);
         } else if (event.sensor.getType() == sensorAcc.getType()) {
-            if (accData == null) accData = new float[3];
-            System.arraycopy(event.values, 0, accData, 0, event.values.length);
-            calculateAccMagOrientation();
-            if (verboseFusionListener != null)
-                verboseFusionListener.onAccMagOrientation(accMagTrajectory, event.timestamp);
-        }
-    }
-
-    private void calculateRawGyroOrientation(float angularVelocity[], long timestamp) {
-        if (prevGyroTimestamp != 0) {
-            float dt = (timestamp - prevGyroTimestamp) * NS2S;
-            gyroDiff[0] = dt * angularVelocity[0];
-            gyroDiff[1] = dt * angularVelocity[1];
-            gyroDiff[2] = dt * angularVelocity[2];
-        }
-        prevGyroTimestamp = timestamp;
-
-        /* Add these diff values to raw and corrected trajectory, just the same */
-        gyroTrajectoryRaw[0] += gyroDiff[0];
-        gyroTrajectoryRaw[1] += gyroDiff[1];
-        gyroTrajectoryRaw[2] += gyroDiff[2];
-
-        gyroTrajectoryCorrected[0] += gyroDiff[0];
-        gyroTrajectoryCorrected[1] += gyroDiff[1];
-        gyroTrajectoryCorrected[2] += gyroDiff[2];
-    }
-
-    private void calculateAccMagOrientation() {
-        if (magData != null && accData != null) {
-            if (SensorManager.getRotationMatrix(accMagRotationMatrix, null, accData, magData)) {
-                SensorManager.getOrientation(accMagRotationMatrix, accMagOrientation);
-                if (accMagPrevOrientation == null) {
-                    accMagPrevOrientation = new float[3];
-                    accMagDiff = new float[3];
-                } else {
-                    accMagDiff[0] = accMagOrientation[0] - accMagPrevOrientation[0];
-                    accMagDiff[1] = accMagOrientation[1] - accMagPrevOrientation[1];
-                    accMagDiff[2] = accMagOrientation[2] - accMagPrevOrientation[2];
-
-                    /*  Add these diff values to accMagTrajectory
-                     *  The getOrientation method returns value like so : -yaw, -pitch, roll (-z, -x, y)
-                     *  To stay consistent throughout, I convert these here to the PRY (x,y,z)
-                     *  I've followed throughout the code
-                     **/
-                    accMagTrajectory[0] -= accMagDiff[1]; // pitch
-                    accMagTrajectory[1] += accMagDiff[2]; // roll
-                    accMagTrajectory[2] -= accMagDiff[0]; // yaw
-                }
-
-                /* set cur values as prev */
-                accMagPrevOrientation[0] = accMagOrientation[0];
-                accMagPrevOrientation[1] = accMagOrientation[1];
-                accMagPrevOrientation[2] = accMagOrientation[2];
-            } else
+            if (!engine.onAccelerometer(event.timestamp, values[0], values[1], values[2]))
                 Log.e(TAG, "There was an error in calculating acc-mag orientation");
         }
     }
 
-    private void calculateFusedOrientation() {
-        fusedTrajectory[0] = (alpha * gyroTrajectoryCorrected[0]) + (oneMinusAlpha * accMagTrajectory[0]); // pitch
-        fusedTrajectory[1] = (alpha * gyroTrajectoryCorrected[1]) + (oneMinusAlpha * accMagTrajectory[1]); // roll
-        fusedTrajectory[2] = (alpha * gyroTrajectoryCorrected[2]) + (oneMinusAlpha * accMagTrajectory[2]); // yaw
-        System.arraycopy(fusedTrajectory, 0, gyroTrajectoryCorrected, 0, fusedTrajectory.length);
+    private void classifyMotion(int sensor, long timestamp, float values[]) {
+        final boolean changed;
+        if (sensor == FusionEngine.SENSOR_GYROSCOPE)
+            changed = motionClassifier.onGyro(timestamp, values[0], values[1], values[2]);
+        else if (sensor == FusionEngine.SENSOR_ACCELEROMETER)
+            changed = motionClassifier.onAccelerometer(timestamp, values[0], values[1], values[2]);
+        else
+            changed = false;
+        if (changed) {
+            // Not from inside the callback SensorManager is iterating over
+            eventHandler.removeCallbacks(applyRate);
+            eventHandler.post(applyRate);
+        }
     }
 
-    public void reset() {
-        gyroDiff = new float[3];
-        accData = null;
-        magData = null;
+    /**
+     * SensorManager hands over a FIFO burst one event at a time, all from a single message on
+     * the looper. Processing is posted behind that message when the first event of a batch
+     * arrives, so it runs once the whole burst has been collected.
+     */
+    private void addToBatch(SensorEvent event) {
+        final int sensor = sensorId(event.sensor.getType());
+        if (sensor == 0) return;
+
+        if (batch.isEmpty()) eventHandler.post(processBatch);
+        final float values[] = event.values;
+        if (batch.add(sensor, event.timestamp, values[0], values[1], values[2])) processBatch();
+    }
+
+    /**
+     * @return the FusionEngine.SENSOR_* id for an android sensor type, 0 if not one of ours
+     */
+    private int sensorId(int type) {
+        if (type == sensorGyro.getType()) return FusionEngine.SENSOR_GYROSCOPE;
+        if (type == sensorAcc.getType()) return FusionEngine.SENSOR_ACCELEROMETER;
+        if (type == sensorMag.getType()) return FusionEngine.SENSOR_MAGNETOMETER;
+        return 0;
+    }
+
+    private void processBatch() {
+        if (batch.isEmpty()) return;
+        int failed = engine.onSamples(batch);
+        batch.clear();
+        if (failed > 0)
+            Log.e(TAG, "There was an error in calculating acc-mag orientation for " + failed + " samples");
+    }
 
-        accMagPrevOrientation = null;
-        accMagOrientation = new float[3];
-        accMagDiff = new float[3];
-        accMagRotationMatrix = new float[16];
+    public void reset() {
+        runOnEventThread(resetEngine);
+    }
 
-        accMagTrajectory = new float[3]; /* -yaw, -pitch, roll (-z, -x, y) */
-        gyroTrajectoryCorrected = new float[3]; /* pitch, roll, yaw (x, y, z) */
-        gyroTrajectoryRaw = new float[3]; /* pitch, roll, yaw (x, y, z) */
-        fusedTrajectory = new float[3]; /* pitch, roll, yaw (x, y, z) */
+    private void runOnEventThread(Runnable runnable) {
+        if (sensorHandler != null) sensorHandler.post(runnable);
+        else runnable.run();
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // do nothing
+        if (health != null) health.onAccuracyChanged(sensorId(sensor.getType()), accuracy);
     }
-}
\ No newline at end of file
+}
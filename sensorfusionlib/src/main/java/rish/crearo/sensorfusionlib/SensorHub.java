@@ -0,0 +1,346 @@
+package rish.crearo.sensorfusionlib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import rish.crearo.sensorfusioncore.FusionAlgorithm;
+import rish.crearo.sensorfusioncore.FusionEngine;
+import rish.crearo.sensorfusioncore.FusionHealth;
+import rish.crearo.sensorfusioncore.FusionSnapshot;
+import rish.crearo.sensorfusioncore.Orientation;
+import rish.crearo.sensorfusioncore.math.Mat3;
+import rish.crearo.sensorfusionlib.listeners.FusionListener;
+import rish.crearo.sensorfusionlib.listeners.OrientationListener;
+import rish.crearo.sensorfusionlib.listeners.RotationListener;
+
+/**
+ * One set of sensor registrations and one fusion pipeline for the whole process, shared by any
+ * number of subscribers, instead of a SensorFusion or RotationSensor per screen or service.
+ * <p>
+ * Sensors are registered with the first subscriber that needs them and unregistered with the
+ * last: accelerometer and magnetometer for any subscriber, the gyroscope only for fused
+ * orientation. Rotation matrices are only computed while someone listens for them.
+ * <p>
+ * Everything runs on a thread of the hub's own; listeners are called there, with arrays that
+ * are reused for the next sample. Wrap UI listeners in a {@link FrameSyncedDispatcher}.
+ * Subscribing and unsubscribing is thread safe.
+ * <p>
+ * The hub runs the {@link rish.crearo.sensorfusioncore.ComplementaryFilter} unless the call
+ * that creates it, normally the first {@link #getInstance}, passes another algorithm.
+ */
+public final class SensorHub implements SensorEventListener {
+
+    private static final String TAG = SensorHub.class.getSimpleName();
+    private static SensorHub instance;
+
+    private final SensorManager sensorManager;
+    private final Sensor sensorGyro, sensorAcc, sensorMag;
+    private final Handler sensorHandler;
+    private final FusionEngine engine;
+
+    /* Copy on write, so the sensor thread can iterate without locking or allocating */
+    private volatile FusionListener fusionListeners[] = new FusionListener[0];
+    private volatile OrientationListener orientationListeners[] = new OrientationListener[0];
+    private volatile RotationListener rotationListeners[] = new RotationListener[0];
+    private volatile FusionHealth health;
+
+    /* Sensor thread only */
+    private final float accData[] = new float[3];
+    private final float magData[] = new float[3];
+    private final float rotationMatrix[] = new float[9];
+    private boolean hasMag;
+
+    private final OrientationListener engineListener = new OrientationListener() {
+        @Override
+        public void onOrientation(Orientation orientation, long timestamp) {
+            dispatchOrientation(orientation, timestamp);
+        }
+    };
+
+    /* Warm start, see setWarmStart; set under the lock, read on the sensor thread */
+    private volatile SharedPreferences warmStartPreferences;
+    private volatile String warmStartKey;
+
+    private final Runnable resetEngine = new Runnable() {
+        @Override
+        public void run() {
+            engine.reset();
+        }
+    };
+    private final Runnable saveState = new Runnable() {
+        @Override
+        public void run() {
+            saveState();
+        }
+    };
+    private final Runnable restoreState = new Runnable() {
+        @Override
+        public void run() {
+            restoreState();
+        }
+    };
+    private final Runnable discardState = new Runnable() {
+        @Override
+        public void run() {
+            engine.reset();
+            final SharedPreferences preferences = warmStartPreferences;
+            if (preferences != null) preferences.edit().remove(warmStartKey).apply();
+        }
+    };
+
+    public static SensorHub getInstance(Context context) {
+        return getInstance(context, null);
+    }
+
+    /**
+     * @param algorithm what the hub fuses with if this call creates it, null for the default;
+     *                  a hub that already exists keeps its own
+     */
+    public static synchronized SensorHub getInstance(Context context, FusionAlgorithm algorithm) {
+        if (instance == null) {
+            instance = new SensorHub(context.getApplicationContext(), algorithm);
+        }
+        return instance;
+    }
+
+    private SensorHub(Context context, FusionAlgorithm algorithm) {
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        sensorGyro = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        sensorAcc = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        sensorMag = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        thread.start();
+        sensorHandler = new Handler(thread.getLooper());
+        engine = algorithm != null ? new FusionEngine(algorithm, engineListener) : new FusionEngine(engineListener);
+    }
+
+    /**
+     * @param listener receives PRY (x, y, z) for every gyro sample
+     */
+    public synchronized void subscribeFused(FusionListener listener) {
+        boolean wasFusing = isFusing();
+        boolean hadSubscribers = hasSubscribers();
+        fusionListeners = add(fusionListeners, listener);
+        updateRegistrations(wasFusing, hadSubscribers);
+    }
+
+    public synchronized void subscribeOrientation(OrientationListener listener) {
+        boolean wasFusing = isFusing();
+        boolean hadSubscribers = hasSubscribers();
+        orientationListeners = add(orientationListeners, listener);
+        updateRegistrations(wasFusing, hadSubscribers);
+    }
+
+    /**
+     * @param listener receives the acc/mag rotation matrix for every accelerometer sample
+     */
+    public synchronized void subscribeRotation(RotationListener listener) {
+        boolean wasFusing = isFusing();
+        boolean hadSubscribers = hasSubscribers();
+        rotationListeners = add(rotationListeners, listener);
+        updateRegistrations(wasFusing, hadSubscribers);
+    }
+
+    public synchronized void unsubscribeFused(FusionListener listener) {
+        boolean wasFusing = isFusing();
+        boolean hadSubscribers = hasSubscribers();
+        fusionListeners = remove(fusionListeners, listener);
+        updateRegistrations(wasFusing, hadSubscribers);
+    }
+
+    public synchronized void unsubscribeOrientation(OrientationListener listener) {
+        boolean wasFusing = isFusing();
+        boolean hadSubscribers = hasSubscribers();
+        orientationListeners = remove(orientationListeners, listener);
+        updateRegistrations(wasFusing, hadSubscribers);
+    }
+
+    public synchronized void unsubscribeRotation(RotationListener listener) {
+        boolean wasFusing = isFusing();
+        boolean hadSubscribers = hasSubscribers();
+        rotationListeners = remove(rotationListeners, listener);
+        updateRegistrations(wasFusing, hadSubscribers);
+    }
+
+    /**
+     * Counts per sensor delivery statistics, rejected samples and accuracy changes into
+     * health. Pass null to stop.
+     */
+    public void setHealth(final FusionHealth health) {
+        this.health = health;
+        // The engine belongs to the sensor thread
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                engine.setHealth(health);
+            }
+        });
+    }
+
+    /**
+     * Saves the engine's state to preferences under key when the last fused subscriber leaves,
+     * and restores it when the next one comes, as {@link SensorFusion#setWarmStart} does. Call
+     * before the first fused subscriber; pass null to stop saving.
+     */
+    public synchronized void setWarmStart(SharedPreferences preferences, String key) {
+        warmStartPreferences = preferences;
+        warmStartKey = key;
+    }
+
+    /**
+     * Starts fusion over from no samples, and discards any saved warm start state.
+     */
+    public void reset() {
+        sensorHandler.post(discardState);
+    }
+
+    private boolean isFusing() {
+        return fusionListeners.length > 0 || orientationListeners.length > 0;
+    }
+
+    private boolean hasSubscribers() {
+        return isFusing() || rotationListeners.length > 0;
+    }
+
+    /**
+     * Registers or unregisters sensors for the change in subscribers. Caller holds the lock.
+     */
+    private void updateRegistrations(boolean wasFusing, boolean hadSubscribers) {
+        boolean fusing = isFusing();
+        boolean hasSubscribers = hasSubscribers();
+
+        if (hasSubscribers && !hadSubscribers) {
+            sensorManager.registerListener(this, sensorAcc, SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
+            sensorManager.registerListener(this, sensorMag, SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
+        }
+        if (fusing && !wasFusing) {
+            // Whatever the engine knew is stale by now, short of a saved state
+            sensorHandler.post(resetEngine);
+            if (warmStartPreferences != null) sensorHandler.post(restoreState);
+            sensorManager.registerListener(this, sensorGyro, SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
+        } else if (!fusing && wasFusing) {
+            sensorManager.unregisterListener(this, sensorGyro);
+            if (warmStartPreferences != null) sensorHandler.post(saveState);
+        }
+        if (!hasSubscribers && hadSubscribers) {
+            sensorManager.unregisterListener(this);
+        }
+    }
+
+    private void saveState() {
+        final SharedPreferences preferences = warmStartPreferences;
+        if (preferences == null) return;
+        FusionSnapshot snapshot = engine.snapshot(System.currentTimeMillis());
+        if (snapshot == null) return;
+        preferences.edit()
+                .putString(warmStartKey, Base64.encodeToString(snapshot.toByteArray(), Base64.NO_WRAP))
+                .apply();
+    }
+
+    private void restoreState() {
+        final SharedPreferences preferences = warmStartPreferences;
+        if (preferences == null) return;
+        FusionSnapshot snapshot = null;
+        String saved = preferences.getString(warmStartKey, null);
+        if (saved != null) {
+            try {
+                snapshot = FusionSnapshot.fromByteArray(Base64.decode(saved, Base64.NO_WRAP));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Discarding unreadable saved state", e);
+            }
+        }
+        engine.restore(snapshot, System.currentTimeMillis());
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        final float values[] = event.values;
+        final int type = event.sensor.getType();
+        final boolean fusing = isFusing();
+        // While fusing the engine counts acc/mag into health itself
+        final FusionHealth health = fusing ? null : this.health;
+        if (type == Sensor.TYPE_GYROSCOPE) {
+            engine.onGyro(event.timestamp, values[0], values[1], values[2]);
+        } else if (type == Sensor.TYPE_MAGNETIC_FIELD) {
+            if (fusing) engine.onMagnetometer(event.timestamp, values[0], values[1], values[2]);
+            if (health != null) health.get(FusionEngine.SENSOR_MAGNETOMETER).onEvent(event.timestamp);
+            System.arraycopy(values, 0, magData, 0, 3);
+            hasMag = true;
+        } else if (type == Sensor.TYPE_ACCELEROMETER) {
+            if (fusing) engine.onAccelerometer(event.timestamp, values[0], values[1], values[2]);
+            if (health != null) health.get(FusionEngine.SENSOR_ACCELEROMETER).onEvent(event.timestamp);
+            System.arraycopy(values, 0, accData, 0, 3);
+            dispatchRotationMatrix(event.timestamp, health);
+        }
+    }
+
+    private void dispatchRotationMatrix(long timestamp, FusionHealth health) {
+        final RotationListener listeners[] = rotationListeners;
+        if (listeners.length == 0 || !hasMag) return;
+        if (!Mat3.fromGravityAndField(rotationMatrix, accData, magData)) {
+            if (health != null) health.get(FusionEngine.SENSOR_ACCELEROMETER).onRejected();
+            return;
+        }
+        for (RotationListener listener : listeners) {
+            listener.onRotationMatrix(rotationMatrix, timestamp);
+        }
+    }
+
+    private void dispatchOrientation(Orientation orientation, long timestamp) {
+        final OrientationListener orientationListeners[] = this.orientationListeners;
+        for (OrientationListener listener : orientationListeners) {
+            listener.onOrientation(orientation, timestamp);
+        }
+        final FusionListener fusionListeners[] = this.fusionListeners;
+        if (fusionListeners.length == 0) return;
+        final float pry[] = orientation.getEuler();
+        for (FusionListener listener : fusionListeners) {
+            listener.onFusedOrientation(pry, timestamp);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        final FusionHealth health = this.health;
+        if (health != null) health.onAccuracyChanged(sensorId(sensor.getType()), accuracy);
+    }
+
+    private int sensorId(int type) {
+        if (type == Sensor.TYPE_GYROSCOPE) return FusionEngine.SENSOR_GYROSCOPE;
+        if (type == Sensor.TYPE_ACCELEROMETER) return FusionEngine.SENSOR_ACCELEROMETER;
+        if (type == Sensor.TYPE_MAGNETIC_FIELD) return FusionEngine.SENSOR_MAGNETOMETER;
+        return 0;
+    }
+
+    private static <T> T[] add(T listeners[], T listener) {
+        for (T existing : listeners) {
+            if (existing == listener) return listeners;
+        }
+        T added[] = Arrays.copyOf(listeners, listeners.length + 1);
+        added[listeners.length] = listener;
+        return added;
+    }
+
+    private static <T> T[] remove(T listeners[], T listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                T removed[] = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, removed, i, listeners.length - i - 1);
+                return removed;
+            }
+        }
+        return listeners;
+    }
+}
@@ -1,7 +0,0 @@
-package rish.crearo.sensorfusionlib.listeners;
-
-public interface RotationListener {
-
-    void onRotationMatrix(float rotationMatrix[], float timestamp);
-
-}